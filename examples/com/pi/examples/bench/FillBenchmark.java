@@ -0,0 +1,111 @@
+package com.pi.examples.bench;
+
+import com.pi.core.model.IndexBuffer;
+import com.pi.core.model.PrimitiveType;
+import com.pi.core.vertex.VertexCursor;
+import com.pi.core.vertex.VertexData;
+import com.pi.core.vertex.VertexData.VertexGenerator;
+import com.pi.core.vertex.VertexTypes.TexturedVertex3D;
+import com.pi.util.ParallelRange;
+
+/**
+ * Compares the parallel bulk fills of {@link VertexData} and
+ * {@link IndexBuffer} with a sequential loop over the same generator, checks
+ * that both produce the same bytes, and prints the time of each at several
+ * sizes around {@link ParallelRange#DEFAULT_GRAIN}. Only touches CPU side
+ * buffers, so no GL context is needed.
+ *
+ * <pre>
+ * java com.pi.examples.bench.FillBenchmark [rounds]
+ * </pre>
+ */
+public class FillBenchmark {
+	private static final int[] SIZES = { 1 << 10, 1 << 12, 1 << 14, 1 << 16, 1 << 18, 1 << 20, 1 << 22 };
+
+	private static final VertexGenerator VERTICES = new VertexGenerator() {
+		@Override
+		public void generate(VertexCursor c, int from, int to) {
+			for (int i = from; i < to; i++) {
+				c.seek(i);
+				final float t = i * 0.001f;
+				c.set(0, (float) Math.sin(t), (float) Math.cos(t), t);
+				c.set(1, 0, 1, 0);
+				c.set(2, t - (int) t, 1 - (t - (int) t));
+			}
+		}
+	};
+
+	private static final IndexBuffer.IndexGenerator INDICES = new IndexBuffer.IndexGenerator() {
+		@Override
+		public void generate(int[] dest, int from, int to) {
+			for (int i = from; i < to; i++)
+				dest[i - from] = ((i / 3) + (i % 3) * 7) & 0xFFFF;
+		}
+	};
+
+	private static boolean sameBytes(VertexData<?> a, VertexData<?> b) {
+		final int n = a.bufferObject.size();
+		if (n != b.bufferObject.size())
+			return false;
+		for (int i = 0; i < n; i++)
+			if (a.bufferObject.get(i) != b.bufferObject.get(i))
+				return false;
+		return true;
+	}
+
+	private static IndexBuffer indexBuffer(int n) {
+		return new IndexBuffer(PrimitiveType.TRIANGLES, 2, n);
+	}
+
+	private static double indices(IndexBuffer buffer, int n, int rounds, boolean parallel) {
+		int[] tmp = new int[n];
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++) {
+			final long start = System.nanoTime();
+			if (parallel) {
+				buffer.fill(n, INDICES);
+			} else {
+				INDICES.generate(tmp, 0, n);
+				buffer.write(tmp, 0, n);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e6;
+	}
+
+	public static void main(String[] args) {
+		final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		System.out.println("Parallelism " + java.util.concurrent.ForkJoinPool.getCommonPoolParallelism()
+				+ ", grain " + ParallelRange.DEFAULT_GRAIN + ", best of " + rounds + " rounds");
+		System.out.printf("%10s %14s %14s %8s %14s %14s %8s%n", "count", "vtx seq ms", "vtx par ms", "speedup",
+				"idx seq ms", "idx par ms", "speedup");
+		for (int n : SIZES) {
+			VertexData<TexturedVertex3D> seq = new VertexData<>(TexturedVertex3D.class, n, false);
+			VertexData<TexturedVertex3D> par = new VertexData<>(TexturedVertex3D.class, n, false);
+			final double vs = vertices(seq, rounds, false);
+			final double vp = vertices(par, rounds, true);
+			if (!sameBytes(seq, par))
+				throw new IllegalStateException("Parallel fill of " + n + " vertices differs from sequential.");
+			IndexBuffer seqIndices = indexBuffer(n), parIndices = indexBuffer(n);
+			final double is = indices(seqIndices, n, rounds, false);
+			final double ip = indices(parIndices, n, rounds, true);
+			for (int k = 0; k < n; k++)
+				if (seqIndices.getIndex(k) != parIndices.getIndex(k))
+					throw new IllegalStateException("Parallel fill of " + n + " indices differs at " + k + ".");
+			System.out.printf("%10d %14.3f %14.3f %8.2f %14.3f %14.3f %8.2f%n", n, vs, vp, vs / vp, is, ip, is / ip);
+		}
+	}
+
+	private static double vertices(VertexData<?> data, int rounds, boolean parallel) {
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++) {
+			final long start = System.nanoTime();
+			if (parallel)
+				data.fill(VERTICES);
+			else
+				VERTICES.generate(data.cursor(), 0, data.count());
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e6;
+	}
+}
@@ -0,0 +1,226 @@
+package com.pi.examples.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.pi.core.glsl.ShaderPreprocessor;
+
+/**
+ * Checks that {@link ShaderPreprocessor} gives the same output as the multi
+ * pass preprocessor it replaced, over include recursion, defines in layout
+ * qualifiers and <code>#foreach</code>, then prints the time each takes per
+ * shader. Output is compared line by line, ignoring blank lines and the order
+ * of the define header. Needs no GL context.
+ * <p>
+ * Includes are expanded depth first, so a header reached through another
+ * include lands where it is first needed. The multi pass version expanded
+ * every directive of one level before the next, and put such a header at a
+ * later direct include instead. Sources that include a header both directly
+ * and through another include differ on purpose, and are left out.
+ *
+ * <pre>
+ * java com.pi.examples.bench.PreprocessorBenchmark [rounds]
+ * </pre>
+ */
+public class PreprocessorBenchmark {
+	private static final Map<String, String> includes = new HashMap<>();
+	private static final Map<String, String> defines = new HashMap<>();
+
+	private static final String[][] SHADERS = {
+			{ "version and layout", "#version 330 core\n" + "layout(location = POSITION_LOC) in vec3 position;\n"
+					+ "layout(location = NORMAL_LOC) in vec3 normal;\n"
+					+ "layout(std140) uniform Lights { vec4 lightPos[LIGHT_COUNT]; };\n"
+					+ "void main() { gl_Position = vec4(position * SCALE, 1); }\n" },
+			{ "include recursion", "#version 330 core\n#include lighting\n"
+					+ "void main() { float v = shade(vec3(0)); }\n" },
+			{ "foreach", "#version 330 core\n#include common\nvoid light(int i) { }\n"
+					+ "void main() {\n\t#foreach(light, 0, LIGHT_COUNT)\n}\n" },
+			{ "no version", "#include lighting\nlayout(location = POSITION_LOC) out vec4 color;\n"
+					+ "void main() { #foreach(light, FIRST_LIGHT, LIGHT_COUNT) }\n" } };
+
+	private static void define(String name, String value) {
+		ShaderPreprocessor.define(name, value);
+		defines.put(name, value);
+	}
+
+	private static void include(String name, String src) {
+		ShaderPreprocessor.registerInclude(name, src);
+		includes.put(name, src);
+	}
+
+	public static void main(String[] args) {
+		final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		define("POSITION_LOC", "(0)");
+		define("NORMAL_LOC", "(1)");
+		define("LIGHT_COUNT", "(4)");
+		define("FIRST_LIGHT", "1");
+		define("SCALE", "(2.0)");
+		include("common", "#include constants\nstruct Material { vec4 albedo; };\n");
+		include("constants", "const float PI = 3.14159;\n#include common\n");
+		include("lighting", "#include common\nvoid light(int i);\n"
+				+ "float shade(vec3 p) {\n\t#foreach(light, 0, LIGHT_COUNT)\n\treturn PI;\n}\n"
+				+ "layout(std140) uniform Shadow { mat4 shadow[LIGHT_COUNT]; };\n");
+
+		for (String[] shader : SHADERS) {
+			final String actual = ShaderPreprocessor.preprocess(shader[1]);
+			final String expected = MultiPass.preprocess(shader[1]);
+			if (!normalize(actual).equals(normalize(expected)))
+				throw new IllegalStateException("Output differs for " + shader[0] + ".\nExpected:\n" + expected
+						+ "\nActual:\n" + actual);
+		}
+		System.out.println("Outputs match for " + SHADERS.length + " shaders");
+
+		// Warm up both before timing.
+		time(false, rounds / 10);
+		time(true, rounds / 10);
+		final double multi = time(false, rounds);
+		final double single = time(true, rounds);
+		System.out.printf("%12s %12s %8s%n", "multi us", "single us", "speedup");
+		System.out.printf("%12.3f %12.3f %8.2f%n", multi, single, multi / single);
+	}
+
+	/**
+	 * Drops blank lines and trailing whitespace, and sorts each run of define
+	 * lines, since the define maps don't keep an order.
+	 */
+	private static List<String> normalize(String src) {
+		List<String> lines = new ArrayList<>();
+		int defineRun = -1;
+		for (String line : src.split("\n")) {
+			line = line.replaceAll("\\s+$", "");
+			if (line.isEmpty())
+				continue;
+			if (line.startsWith("#define ")) {
+				if (defineRun < 0)
+					defineRun = lines.size();
+			} else if (defineRun >= 0) {
+				Collections.sort(lines.subList(defineRun, lines.size()));
+				defineRun = -1;
+			}
+			lines.add(line);
+		}
+		if (defineRun >= 0)
+			Collections.sort(lines.subList(defineRun, lines.size()));
+		return lines;
+	}
+
+	/**
+	 * @return the mean time to preprocess one shader, in microseconds
+	 */
+	private static double time(boolean singlePass, int rounds) {
+		int sink = 0;
+		final long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++)
+			for (String[] shader : SHADERS)
+				sink += (singlePass ? ShaderPreprocessor.preprocess(shader[1]) : MultiPass.preprocess(shader[1]))
+						.length();
+		final long elapsed = System.nanoTime() - start;
+		if (sink == 0)
+			System.out.println();
+		return elapsed / 1e3 / rounds / SHADERS.length;
+	}
+
+	/**
+	 * The preprocessor as it was before the single pass rewrite: defines,
+	 * includes, <code>#foreach</code> and layout defines each rescan the
+	 * whole source.
+	 */
+	private static class MultiPass {
+		private static final Pattern INCLUDE = Pattern.compile("#include[ \t]+?([^ \t\n\r]+)");
+
+		private static final Pattern FOREACH = Pattern
+				.compile("#foreach[ \t]*\\([ \t]*([^,\n]*)[ \t]*,[ \t]*([^,\n]*)[ \t]*,[ \t]*([^,\n]*)[ \t]*\\)[ \t]*");
+
+		private static final Pattern VERSION = Pattern.compile("#version[^\n\r]*(\r|)\n");
+
+		private static String doDefines(String src) {
+			Matcher mt = VERSION.matcher(src);
+			boolean np = mt.find();
+			StringBuilder res = new StringBuilder(src.length());
+			if (np)
+				res.append(src, 0, mt.end());
+			for (Entry<String, String> define : defines.entrySet())
+				res.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
+			if (np)
+				res.append(src, mt.end(), src.length());
+			else
+				res.append(src);
+			return res.toString();
+		}
+
+		private static String doForeach(String src) {
+			Matcher mt = FOREACH.matcher(src);
+			if (!mt.find())
+				return src;
+			StringBuilder res = new StringBuilder(src.length());
+			int prevHead = 0;
+			do {
+				res.append(src, prevHead, mt.start());
+				for (int i = evalMath(mt.group(2)); i < evalMath(mt.group(3)); i++)
+					res.append(mt.group(1)).append('(').append(i).append(");");
+				prevHead = mt.end();
+			} while (mt.find());
+			res.append(src, prevHead, src.length());
+			return res.toString();
+		}
+
+		private static String doIncludes(String src, Set<String> hasIncluded) {
+			Matcher mt = INCLUDE.matcher(src);
+			if (!mt.find())
+				return src;
+			StringBuilder res = new StringBuilder(src.length());
+			int prevHead = 0;
+			do {
+				res.append(src, prevHead, mt.start());
+				if (hasIncluded.add(mt.group(1))) {
+					String included = includes.get(mt.group(1));
+					if (included != null)
+						res.append(included).append('\n');
+				}
+				prevHead = mt.end();
+			} while (mt.find());
+			res.append(src, prevHead, src.length());
+			return doIncludes(res.toString(), hasIncluded);
+		}
+
+		private static String doLayoutDefines(String src) {
+			StringBuilder res = new StringBuilder(src.length());
+			String[] lines = src.split("\n");
+			for (int i = 0; i < lines.length; i++) {
+				boolean mod = true;
+				while (mod) {
+					mod = false;
+					if (lines[i].toLowerCase().contains("layout"))
+						for (Entry<String, String> def : defines.entrySet()) {
+							mod |= lines[i].contains(def.getKey());
+							String parse = def.getValue().trim();
+							if (parse.startsWith("(") && parse.endsWith(")"))
+								parse = parse.substring(1, parse.length() - 1);
+							lines[i] = lines[i].replace(def.getKey(), parse);
+						}
+				}
+				res.append(lines[i]).append('\n');
+			}
+			return res.toString();
+		}
+
+		private static int evalMath(String src) {
+			String code = src;
+			for (Entry<String, String> entry : defines.entrySet())
+				code = code.replace(entry.getKey(), entry.getValue());
+			return Integer.parseInt(code.replaceAll("[()]", "").trim());
+		}
+
+		private static String preprocess(String src) {
+			return doLayoutDefines(doForeach(doIncludes(doDefines(src), new HashSet<String>())));
+		}
+	}
+}
@@ -3,11 +3,11 @@ package com.pi.core;
 public class GLException extends RuntimeException {
 	private static final long serialVersionUID = 1L;
 
-	public GLException(Exception e) {
+	public GLException(Throwable e) {
 		super(e);
 	}
 
-	public GLException(String string, Exception log) {
+	public GLException(String string, Throwable log) {
 		super(string, log);
 	}
 
@@ -0,0 +1,62 @@
+package com.pi.core.buffers;
+
+/**
+ * A range handed out by a {@link RangeAllocator}. The offset can change when
+ * the allocator is defragmented, so it should be read when it's used rather
+ * than kept.
+ */
+public final class ArenaSlice {
+	private final RangeAllocator owner;
+	int offset;
+	private final int size;
+	private final int align;
+	boolean freed = false;
+
+	ArenaSlice(RangeAllocator owner, int offset, int size, int align) {
+		this.owner = owner;
+		this.offset = offset;
+		this.size = size;
+		this.align = align;
+	}
+
+	public int align() {
+		return align;
+	}
+
+	/**
+	 * @return one past the last unit of this slice
+	 */
+	public int end() {
+		return offset + size;
+	}
+
+	/**
+	 * Returns this slice to its allocator.
+	 */
+	public void free() {
+		owner.free(this);
+	}
+
+	public boolean isFreed() {
+		return freed;
+	}
+
+	public int offset() {
+		if (freed)
+			throw new IllegalStateException("Can't use a freed slice.");
+		return offset;
+	}
+
+	public RangeAllocator owner() {
+		return owner;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "ArenaSlice[" + offset + ", " + size + (freed ? ", freed]" : "]");
+	}
+}
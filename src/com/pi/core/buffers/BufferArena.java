@@ -0,0 +1,118 @@
+package com.pi.core.buffers;
+
+import java.nio.ByteBuffer;
+
+import com.pi.core.util.GPUObject;
+
+/**
+ * One large GL buffer that hands out byte ranges, so many small meshes can
+ * share a buffer object. The arena grows when it runs out of space, and
+ * {@link #defragment()} packs the live slices together.
+ * <p>
+ * The buffer is uploaded through {@link BufferType#COPY_WRITE}, so growing or
+ * uploading never disturbs the element array binding of a bound VAO.
+ */
+public class BufferArena extends GPUObject<BufferArena> {
+	private final GLGenericBuffer buffer;
+	private final RangeAllocator ranges;
+	private boolean uploaded = false;
+
+	public BufferArena(int capacity) {
+		this.buffer = new GLGenericBuffer(capacity).type(BufferType.COPY_WRITE);
+		this.ranges = new RangeAllocator(capacity);
+	}
+
+	/**
+	 * Allocates a byte range, growing the arena if needed.
+	 */
+	public ArenaSlice allocate(int bytes, int align) {
+		ArenaSlice slice = ranges.allocate(bytes, align);
+		if (slice == null) {
+			grow(Math.max(ranges.capacity() * 2, ranges.capacity() + bytes + align));
+			slice = ranges.allocate(bytes, align);
+		}
+		return slice;
+	}
+
+	/**
+	 * @return the CPU side data of this arena. Slice offsets are byte offsets
+	 *         into it.
+	 */
+	public ByteBuffer backing() {
+		return buffer.getBacking();
+	}
+
+	public GLGenericBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Packs the live slices to the start of the arena. Slice offsets change,
+	 * and the moved bytes are sent with the next upload.
+	 * 
+	 * @return the number of slices moved
+	 */
+	public int defragment() {
+		return ranges.defragment(new RangeAllocator.Mover() {
+			@Override
+			public void move(int from, int to, int size) {
+				byte[] tmp = new byte[size];
+				buffer.get(from, tmp, 0, size);
+				buffer.put(to, tmp, 0, size);
+				buffer.markDirty(to, to + size);
+			}
+		});
+	}
+
+	@Override
+	protected void gpuAllocInternal() {
+		uploaded = false;
+		buffer.gpuAlloc();
+	}
+
+	@Override
+	protected void gpuFreeInternal() {
+		uploaded = false;
+		buffer.gpuFree();
+	}
+
+	/**
+	 * Uploads the whole arena the first time, and after that only the ranges
+	 * marked dirty.
+	 */
+	@Override
+	protected void gpuUploadInternal() {
+		if (!uploaded)
+			buffer.gpuUpload();
+		else
+			buffer.gpuUploadDirty();
+		uploaded = true;
+	}
+
+	private void grow(int capacity) {
+		final int keep = ranges.highWater();
+		byte[] tmp = new byte[keep];
+		buffer.get(0, tmp, 0, keep);
+		buffer.resize(capacity, 0);
+		buffer.put(0, tmp, 0, keep);
+		// Resizing respecifies the GPU storage.
+		buffer.markDirty(0, keep);
+		ranges.grow(capacity);
+	}
+
+	/**
+	 * Marks a slice as changed, so it is sent with the next upload.
+	 */
+	public void markDirty(ArenaSlice slice) {
+		buffer.markDirty(slice.offset(), slice.end());
+	}
+
+	public RangeAllocator ranges() {
+		return ranges;
+	}
+
+	@Override
+	public String toString() {
+		return "BufferArena[" + ranges + "]";
+	}
+}
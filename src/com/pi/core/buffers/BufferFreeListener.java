@@ -0,0 +1,14 @@
+package com.pi.core.buffers;
+
+import com.pi.core.util.GLIdentifiable;
+
+/**
+ * Told when a buffer is freed, so caches of what is bound where can drop it
+ * before GL hands its name to a new buffer.
+ */
+public interface BufferFreeListener {
+	/**
+	 * Called before the buffer object is deleted, while its ID is still valid.
+	 */
+	public void freed(GLIdentifiable buffer);
+}
@@ -4,19 +4,37 @@ import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL21;
 import org.lwjgl.opengl.GL30;
 import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL40;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.opengl.GL43;
 
 public enum BufferType {
-	ARRAY(GL15.GL_ARRAY_BUFFER), COPY_READ(GL31.GL_COPY_READ_BUFFER),
-	COPY_WRITE(GL31.GL_COPY_WRITE_BUFFER), ELEMENT_ARRAY(
-			GL15.GL_ELEMENT_ARRAY_BUFFER),
-	PIXEL_PACK(GL21.GL_PIXEL_PACK_BUFFER), PIXEL_UNPACK(
-			GL21.GL_PIXEL_UNPACK_BUFFER), TEXTURE(GL31.GL_TEXTURE_BUFFER),
-	TRANSFORM_FEEDBACK(GL30.GL_TRANSFORM_FEEDBACK_BUFFER), UNIFORM(
-			GL31.GL_UNIFORM_BUFFER);
+	ARRAY(GL15.GL_ARRAY_BUFFER, GL42.GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT),
+	COPY_READ(GL31.GL_COPY_READ_BUFFER, GL42.GL_BUFFER_UPDATE_BARRIER_BIT),
+	COPY_WRITE(GL31.GL_COPY_WRITE_BUFFER, GL42.GL_BUFFER_UPDATE_BARRIER_BIT),
+	DISPATCH_INDIRECT(GL43.GL_DISPATCH_INDIRECT_BUFFER, GL42.GL_COMMAND_BARRIER_BIT),
+	DRAW_INDIRECT(GL40.GL_DRAW_INDIRECT_BUFFER, GL42.GL_COMMAND_BARRIER_BIT),
+	ELEMENT_ARRAY(GL15.GL_ELEMENT_ARRAY_BUFFER, GL42.GL_ELEMENT_ARRAY_BARRIER_BIT),
+	PIXEL_PACK(GL21.GL_PIXEL_PACK_BUFFER, GL42.GL_PIXEL_BUFFER_BARRIER_BIT),
+	PIXEL_UNPACK(GL21.GL_PIXEL_UNPACK_BUFFER, GL42.GL_PIXEL_BUFFER_BARRIER_BIT),
+	SHADER_STORAGE(GL43.GL_SHADER_STORAGE_BUFFER, GL43.GL_SHADER_STORAGE_BARRIER_BIT),
+	TEXTURE(GL31.GL_TEXTURE_BUFFER, GL42.GL_TEXTURE_FETCH_BARRIER_BIT),
+	TRANSFORM_FEEDBACK(GL30.GL_TRANSFORM_FEEDBACK_BUFFER, GL42.GL_TRANSFORM_FEEDBACK_BARRIER_BIT),
+	UNIFORM(GL31.GL_UNIFORM_BUFFER, GL42.GL_UNIFORM_BARRIER_BIT);
 	private final int code;
+	private final int barrierBit;
 
-	private BufferType(int code) {
+	private BufferType(int code, int barrierBit) {
 		this.code = code;
+		this.barrierBit = barrierBit;
+	}
+
+	/**
+	 * @return the memory barrier bit that makes shader writes visible to this
+	 *         kind of access
+	 */
+	public int barrierBit() {
+		return barrierBit;
 	}
 
 	public int code() {
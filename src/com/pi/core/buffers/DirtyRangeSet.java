@@ -0,0 +1,86 @@
+package com.pi.core.buffers;
+
+/**
+ * A sorted list of disjoint byte ranges. Ranges closer together than the gap
+ * threshold are merged, since one larger upload is cheaper than two small
+ * ones.
+ */
+class DirtyRangeSet {
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int count = 0;
+	private int gap;
+
+	DirtyRangeSet(int gap) {
+		gap(gap);
+	}
+
+	/**
+	 * Marks the range [min, max) dirty.
+	 */
+	void add(int min, int max) {
+		if (max <= min)
+			return;
+		// First range that could touch the new range.
+		int lo = 0, hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ends[mid] + gap < min)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		int j = lo;
+		while (j < count && starts[j] - gap <= max) {
+			min = Math.min(min, starts[j]);
+			max = Math.max(max, ends[j]);
+			j++;
+		}
+		int merged = j - lo;
+		if (merged == 0) {
+			if (count == starts.length) {
+				int[] ns = new int[count * 2];
+				int[] ne = new int[count * 2];
+				System.arraycopy(starts, 0, ns, 0, count);
+				System.arraycopy(ends, 0, ne, 0, count);
+				starts = ns;
+				ends = ne;
+			}
+			System.arraycopy(starts, lo, starts, lo + 1, count - lo);
+			System.arraycopy(ends, lo, ends, lo + 1, count - lo);
+			count++;
+		} else if (merged > 1) {
+			System.arraycopy(starts, j, starts, lo + 1, count - j);
+			System.arraycopy(ends, j, ends, lo + 1, count - j);
+			count -= merged - 1;
+		}
+		starts[lo] = min;
+		ends[lo] = max;
+	}
+
+	void clear() {
+		count = 0;
+	}
+
+	int count() {
+		return count;
+	}
+
+	int end(int i) {
+		return ends[i];
+	}
+
+	void gap(int gap) {
+		if (gap < 0)
+			throw new IllegalArgumentException("The merge gap can't be negative.");
+		this.gap = gap;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	int start(int i) {
+		return starts[i];
+	}
+}
@@ -1,20 +1,34 @@
 package com.pi.core.buffers;
 
 import java.nio.Buffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.opengl.GL45;
 
 import com.pi.core.debug.FrameCounter;
 import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.util.GLFeature;
 import com.pi.core.util.GLIdentifiable;
 import com.pi.core.util.GPUObject;
+import com.pi.core.util.MemoryBarriers;
 import com.pi.core.util.GLRef;
 import com.pi.util.ReferenceTable;
 
 abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUObject<R> implements GLIdentifiable {
+	/**
+	 * Dirty ranges closer than this many bytes get uploaded as one.
+	 */
+	private static final int DEFAULT_DIRTY_GAP = 128;
 	private static final int[][] HINT_TABLE;
+	/**
+	 * The buffer bound to each {@link BufferType}, by ordinal.
+	 */
 	@SuppressWarnings("rawtypes")
-	private static final ReferenceTable<GLBuffer> bound = new ReferenceTable<>(1);
+	private static final ReferenceTable<GLBuffer> bound = new ReferenceTable<>(BufferType.values().length);
+	private static final List<BufferFreeListener> freeListeners = new CopyOnWriteArrayList<>();
 
 	static {
 		BufferAccessHint[] ahv = BufferAccessHint.values();
@@ -42,13 +56,30 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 	private BufferType type;
 	protected E data;
 	private int glref;
+	private final DirtyRangeSet dirty = new DirtyRangeSet(DEFAULT_DIRTY_GAP);
+
+	/**
+	 * Registers a listener told whenever a buffer is freed.
+	 */
+	public static void addFreeListener(BufferFreeListener l) {
+		freeListeners.add(l);
+	}
+
+	/**
+	 * Forgets the buffer cached for the given type, so the next bind to it
+	 * always reaches GL. Call this after changing the binding behind the
+	 * cache's back, such as with glBindBufferBase or by binding a VAO.
+	 */
+	public static void forgetBinding(BufferType type) {
+		bound.empty(type);
+	}
 
 	public static void unbind(BufferType type) {
-		if (bound.isEmpty(0))
+		if (bound.isEmpty(type))
 			return;
 		GL15.glBindBuffer(type.code(), 0);
 		FrameCounter.increment(FrameParam.BUFFER_BINDS);
-		bound.empty(0);
+		bound.empty(type);
 	}
 
 	public GLBuffer(E data) {
@@ -65,6 +96,25 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 		this.modifyHint = BufferModifyHint.STATIC;
 	}
 
+	/**
+	 * Creates a buffer with no CPU side backing. Used by buffers that get their
+	 * backing from the GPU, such as persistently mapped buffers.
+	 * 
+	 * @param size
+	 *            the size in bytes
+	 * @param type
+	 *            the buffer type
+	 */
+	protected GLBuffer(int size, BufferType type) {
+		this.size = size;
+		this.data = null;
+		this.glref = GLRef.NULL;
+		this.type = type;
+
+		this.accessHint = BufferAccessHint.DRAW;
+		this.modifyHint = BufferModifyHint.STREAM;
+	}
+
 	@SuppressWarnings("unchecked")
 	public R access(BufferAccessHint a) {
 		if (a == null)
@@ -75,11 +125,15 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 		return (R) this;
 	}
 
-	private void allocBufferStorage() {
+	protected void allocBufferStorage() {
 		int ahI = accessHint.ordinal();
 		int mhI = modifyHint.ordinal();
-		bind();
-		GL15.glBufferData(type.code(), size, HINT_TABLE[ahI][mhI]);
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glNamedBufferData(glref, size, HINT_TABLE[ahI][mhI]);
+		} else {
+			bind();
+			GL15.glBufferData(type.code(), size, HINT_TABLE[ahI][mhI]);
+		}
 	}
 
 	public void bind() {
@@ -89,11 +143,13 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 	public void bind(BufferType type) {
 		if (GLRef.isNull(glref))
 			throw new IllegalStateException("Can't bind an unallocated buffer");
-		if (bound.isAttached(0, this))
+		if (MemoryBarriers.pending())
+			MemoryBarriers.require(this, type.barrierBit());
+		if (bound.isAttached(type, this))
 			return;
 		GL15.glBindBuffer(type.code(), glref);
 		FrameCounter.increment(FrameParam.BUFFER_BINDS);
-		bound.attach(0, this);
+		bound.attach(type, this);
 	}
 
 	public void cpuAlloc() {
@@ -105,6 +161,19 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 		data = null;
 	}
 
+	/**
+	 * Sets the gap threshold used to merge dirty ranges.
+	 * 
+	 * @param gap
+	 *            dirty ranges closer than this many bytes are merged
+	 * @return this buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public R dirtyGap(int gap) {
+		dirty.gap(gap);
+		return (R) this;
+	}
+
 	public void dispose() {
 		gpuFreeInternal();
 		cpuFree();
@@ -125,9 +194,14 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 
 	protected abstract void glGetBufferSubData(int target, long offset, E data);
 
+	protected abstract void glGetNamedBufferSubData(int buffer, long offset, E data);
+
+	protected abstract void glNamedBufferSubData(int buffer, long offset, E data);
+
 	@Override
 	protected void gpuAllocInternal() {
-		glref = GL15.glGenBuffers();
+		// Buffers from glGenBuffers only exist once bound, so DSA needs glCreateBuffers.
+		glref = GLFeature.DIRECT_STATE_ACCESS.available() ? GL45.glCreateBuffers() : GL15.glGenBuffers();
 		if (GLRef.isNull(glref))
 			throw new NullPointerException("Failed to generate buffer");
 		allocBufferStorage();
@@ -139,15 +213,28 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 			throw new IllegalStateException("Can't sync from GPU when no buffer object exists.");
 		if (data == null)
 			cpuAlloc();
+		MemoryBarriers.require(this, GL42.GL_BUFFER_UPDATE_BARRIER_BIT);
 		data.position(0);
-		bind();
-		glGetBufferSubData(type.code(), 0, data);
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			glGetNamedBufferSubData(glref, 0, data);
+		} else {
+			bind();
+			glGetBufferSubData(type.code(), 0, data);
+		}
 	}
 
 	@Override
 	protected void gpuFreeInternal() {
-		if (GLRef.notNull(glref))
+		if (GLRef.notNull(glref)) {
+			// A new buffer may get this name, so drop it from binding caches.
+			for (BufferFreeListener l : freeListeners)
+				l.freed(this);
 			GL15.glDeleteBuffers(glref);
+			// Deleting a bound buffer unbinds it.
+			for (BufferType t : BufferType.values())
+				if (bound.isAttached(t, this))
+					bound.empty(t);
+		}
 		glref = GLRef.NULL;
 	}
 
@@ -157,13 +244,42 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 			throw new IllegalStateException("Can't sync to GPU when no buffer object exists.");
 		data.position(0);
 		data.limit(size);
-		bind();
-		glBufferSubData(type.code(), 0, data);
+		subData(0, data);
+		dirty.clear();
 
 		FrameCounter.increment(FrameParam.BUFFER_UPLOADS);
 		FrameCounter.increment(FrameParam.BUFFER_THROUGHPUT, data.capacity());
 	}
 
+	/**
+	 * Uploads every range marked with {@link #markDirty(int, int)} since the
+	 * last upload, using one glBufferSubData per merged range.
+	 */
+	public void gpuUploadDirty() {
+		if (GLRef.isNull(glref))
+			throw new IllegalStateException("Can't sync to GPU when no buffer object exists.");
+		if (dirty.isEmpty())
+			return;
+		int uploaded = 0;
+		for (int i = 0; i < dirty.count(); i++) {
+			int min = Math.max(dirty.start(i), 0);
+			int max = Math.min(dirty.end(i), size);
+			if (max <= min)
+				continue;
+			data.limit(data.capacity());
+			data.position(min);
+			data.limit(max);
+			subData(min, data);
+			uploaded += max - min;
+			FrameCounter.increment(FrameParam.BUFFER_UPLOADS);
+		}
+		data.limit(data.capacity());
+		FrameCounter.increment(FrameParam.BUFFER_DIRTY_RANGES, dirty.count());
+		FrameCounter.increment(FrameParam.BUFFER_THROUGHPUT, uploaded);
+		FrameCounter.increment(FrameParam.BUFFER_BYTES_SAVED, size - uploaded);
+		dirty.clear();
+	}
+
 	public void gpuUploadPartial(int minR, int maxR) {
 		if (GLRef.isNull(glref))
 			throw new IllegalStateException("Can't sync to GPU when no buffer object exists.");
@@ -175,13 +291,29 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 		data.limit(data.capacity());
 		data.position(min);
 		data.limit(max);
-		bind();
-		glBufferSubData(type.code(), min, data);
+		subData(min, data);
+		data.limit(data.capacity());
 
 		FrameCounter.increment(FrameParam.BUFFER_UPLOADS);
 		FrameCounter.increment(FrameParam.BUFFER_THROUGHPUT, max - min);
 	}
 
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+
+	/**
+	 * Marks the range [min, max) as changed on the CPU side.
+	 * 
+	 * @param min
+	 *            the first dirty byte
+	 * @param max
+	 *            one past the last dirty byte
+	 */
+	public void markDirty(int min, int max) {
+		dirty.add(min, max);
+	}
+
 	@SuppressWarnings("unchecked")
 	public R modify(BufferModifyHint a) {
 		if (a == null)
@@ -192,6 +324,20 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 		return (R) this;
 	}
 
+	/**
+	 * Respecifies the GPU storage, so writing the buffer again doesn't wait
+	 * for draws still reading the old storage. The GPU contents are undefined
+	 * until uploaded again.
+	 * 
+	 * @return this buffer
+	 */
+	@SuppressWarnings("unchecked")
+	public R orphan() {
+		if (allocated())
+			allocBufferStorage();
+		return (R) this;
+	}
+
 	/**
 	 * Resizes the buffer. Warning: This DOES NOT preserve buffer contents. Can
 	 * be run even if buffer is allocated.
@@ -222,12 +368,28 @@ abstract class GLBuffer<E extends Buffer, R extends GLBuffer<E, R>> extends GPUO
 			if (data == null || data.capacity() < ns || data.capacity() > cap) {
 				data = genBuffer(cap);
 			}
+			dirty.clear();
 			if (allocated())
 				allocBufferStorage();
 		}
 		return (R) this;
 	}
 
+	/**
+	 * Writes the remaining contents of a buffer at an offset, binding only if
+	 * direct state access isn't available. Shader writes to the buffer must
+	 * finish first.
+	 */
+	private void subData(long offset, E data) {
+		MemoryBarriers.require(this, GL42.GL_BUFFER_UPDATE_BARRIER_BIT);
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			glNamedBufferSubData(glref, offset, data);
+		} else {
+			bind();
+			glBufferSubData(type.code(), offset, data);
+		}
+	}
+
 	public int size() {
 		return size;
 	}
@@ -7,6 +7,7 @@ import java.nio.ShortBuffer;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL45;
 
 public class GLGenericBuffer extends GLBuffer<ByteBuffer, GLGenericBuffer> {
 	public GLGenericBuffer(ByteBuffer backing) {
@@ -50,6 +51,16 @@ public class GLGenericBuffer extends GLBuffer<ByteBuffer, GLGenericBuffer> {
 		GL15.glGetBufferSubData(target, offset, data);
 	}
 
+	@Override
+	protected void glGetNamedBufferSubData(int buffer, long offset, ByteBuffer data) {
+		GL45.glGetNamedBufferSubData(buffer, offset, data);
+	}
+
+	@Override
+	protected void glNamedBufferSubData(int buffer, long offset, ByteBuffer data) {
+		GL45.glNamedBufferSubData(buffer, offset, data);
+	}
+
 	public IntBuffer integerImageAt(int i) {
 		super.data.limit(super.data.capacity());
 		super.data.position(i);
@@ -0,0 +1,235 @@
+package com.pi.core.buffers;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.opengl.GL45;
+
+import com.pi.core.GLException;
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.util.GLFeature;
+
+/**
+ * A persistently mapped ring buffer for data that is rewritten every frame.
+ * The buffer is split into a number of regions; the CPU writes into one
+ * region while the GPU reads from the others. Each region is protected by a
+ * fence so it is only reused once the GPU is done with it.
+ */
+public class GLStreamBuffer extends GLBuffer<ByteBuffer, GLStreamBuffer> {
+	private static final int DEFAULT_REGION_COUNT = 3;
+	/**
+	 * Timeout for a single fence wait, in nanoseconds.
+	 */
+	private static final long FENCE_WAIT_TIMEOUT = 1000000L;
+	private static final int STORAGE_FLAGS = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT
+			| GL44.GL_MAP_COHERENT_BIT;
+
+	private final int regionSize;
+	private final int regionCount;
+	private final long[] fences;
+
+	private int region;
+	private int head;
+
+	public GLStreamBuffer(int regionSize) {
+		this(regionSize, DEFAULT_REGION_COUNT, BufferType.ARRAY);
+	}
+
+	public GLStreamBuffer(int regionSize, int regionCount, BufferType type) {
+		super(regionSize * regionCount, type);
+		if (regionCount < 1)
+			throw new IllegalArgumentException("A stream buffer needs at least one region.");
+		this.regionSize = regionSize;
+		this.regionCount = regionCount;
+		this.fences = new long[regionCount];
+		this.region = 0;
+		this.head = 0;
+	}
+
+	@Override
+	protected void allocBufferStorage() {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glNamedBufferStorage(getID(), size(), STORAGE_FLAGS);
+			data = GL45.glMapNamedBufferRange(getID(), 0, size(), STORAGE_FLAGS);
+		} else {
+			bind();
+			GL44.glBufferStorage(type().code(), size(), STORAGE_FLAGS);
+			data = GL30.glMapBufferRange(type().code(), 0, size(), STORAGE_FLAGS);
+		}
+		if (data == null)
+			throw new GLException("Failed to persistently map stream buffer", "glMapBufferRange returned null");
+		region = 0;
+		head = 0;
+	}
+
+	/**
+	 * Fences the current region and moves to the next one, waiting for the GPU
+	 * to finish reading it if needed. Call this once per frame, after the draw
+	 * calls that use the current region have been issued.
+	 */
+	public void advance() {
+		if (data == null)
+			throw new IllegalStateException("Can't advance an unallocated stream buffer.");
+		if (fences[region] != 0)
+			GL32.glDeleteSync(fences[region]);
+		fences[region] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		region = (region + 1) % regionCount;
+		head = 0;
+		waitForRegion(region);
+	}
+
+	@Override
+	public void cpuAlloc() {
+		// The backing is the persistent mapping; it exists while allocated.
+	}
+
+	@Override
+	public void cpuFree() {
+		// The backing is the persistent mapping; it exists while allocated.
+	}
+
+	public FloatBuffer floatImageAt(int i) {
+		data.limit(data.capacity());
+		data.position(i);
+		return data.asFloatBuffer();
+	}
+
+	@Override
+	protected ByteBuffer genBuffer(int size) {
+		throw new UnsupportedOperationException("Stream buffers are backed by a persistent mapping.");
+	}
+
+	@Override
+	protected void glBufferSubData(int target, long offset, ByteBuffer data) {
+		throw new UnsupportedOperationException("Stream buffers are written through their mapping.");
+	}
+
+	@Override
+	protected void glGetBufferSubData(int target, long offset, ByteBuffer data) {
+		throw new UnsupportedOperationException("Stream buffers can't be read back.");
+	}
+
+	@Override
+	protected void glGetNamedBufferSubData(int buffer, long offset, ByteBuffer data) {
+		throw new UnsupportedOperationException("Stream buffers can't be read back.");
+	}
+
+	@Override
+	protected void glNamedBufferSubData(int buffer, long offset, ByteBuffer data) {
+		throw new UnsupportedOperationException("Stream buffers are written through their mapping.");
+	}
+
+	@Override
+	protected void gpuDownloadInternal() {
+		throw new UnsupportedOperationException("Stream buffers can't be read back.");
+	}
+
+	@Override
+	protected void gpuFreeInternal() {
+		for (int i = 0; i < fences.length; i++) {
+			if (fences[i] != 0)
+				GL32.glDeleteSync(fences[i]);
+			fences[i] = 0;
+		}
+		// Deleting the buffer implicitly unmaps it.
+		data = null;
+		super.gpuFreeInternal();
+	}
+
+	@Override
+	protected void gpuUploadInternal() {
+		// The mapping is coherent, writes are visible without an upload.
+	}
+
+	public IntBuffer integerImageAt(int i) {
+		data.limit(data.capacity());
+		data.position(i);
+		return data.asIntBuffer();
+	}
+
+	public int region() {
+		return region;
+	}
+
+	public int regionCount() {
+		return regionCount;
+	}
+
+	/**
+	 * @return the byte offset of the current region in the buffer
+	 */
+	public int regionOffset() {
+		return region * regionSize;
+	}
+
+	public int regionSize() {
+		return regionSize;
+	}
+
+	/**
+	 * Reserves space in the current region.
+	 * 
+	 * @param bytes
+	 *            the number of bytes to reserve
+	 * @param align
+	 *            the alignment of the reserved space, a power of two
+	 * @return the byte offset of the reserved space in the buffer
+	 */
+	public int reserve(int bytes, int align) {
+		if (data == null)
+			throw new IllegalStateException("Can't write to an unallocated stream buffer.");
+		int start = (head + align - 1) & -align;
+		if (start + bytes > regionSize)
+			throw new IllegalStateException("Stream buffer region overflow: " + (start + bytes) + " of " + regionSize
+					+ " bytes.  Increase the region size.");
+		head = start + bytes;
+		FrameCounter.increment(FrameParam.STREAM_THROUGHPUT, bytes);
+		return regionOffset() + start;
+	}
+
+	@Override
+	public GLStreamBuffer resize(int ns, int pad) {
+		if (ns != size())
+			throw new UnsupportedOperationException("Stream buffers have immutable storage; create a new one.");
+		return this;
+	}
+
+	private void waitForRegion(int r) {
+		if (fences[r] == 0)
+			return;
+		int res = GL32.glClientWaitSync(fences[r], 0, 0);
+		if (res == GL32.GL_TIMEOUT_EXPIRED) {
+			FrameCounter.increment(FrameParam.STREAM_REGION_WAITS);
+			do {
+				res = GL32.glClientWaitSync(fences[r], GL32.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_WAIT_TIMEOUT);
+			} while (res == GL32.GL_TIMEOUT_EXPIRED);
+		}
+		if (res == GL32.GL_WAIT_FAILED)
+			throw new GLException("Stream buffer fence wait failed", "glClientWaitSync returned GL_WAIT_FAILED");
+		GL32.glDeleteSync(fences[r]);
+		fences[r] = 0;
+	}
+
+	/**
+	 * Copies the remaining contents of the given buffer into the current
+	 * region.
+	 * 
+	 * @param src
+	 *            the source data
+	 * @param align
+	 *            the alignment of the written data, a power of two
+	 * @return the byte offset of the written data in the buffer
+	 */
+	public int write(ByteBuffer src, int align) {
+		int off = reserve(src.remaining(), align);
+		data.limit(data.capacity());
+		data.position(off);
+		data.put(src);
+		return off;
+	}
+}
@@ -0,0 +1,180 @@
+package com.pi.core.buffers;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * A first fit free list allocator over the range [0, capacity). The units are
+ * up to the user; {@link BufferArena} uses bytes and mesh arenas use vertices.
+ * Adjacent free blocks are merged, and {@link #defragment(Mover)} packs every
+ * live slice to the start of the range.
+ */
+public class RangeAllocator {
+	private final TreeMap<Integer, Integer> free = new TreeMap<>();
+	private final TreeMap<Integer, ArenaSlice> used = new TreeMap<>();
+	private int capacity;
+	private int usedSize = 0;
+
+	private static int alignUp(int v, int align) {
+		return ((v + align - 1) / align) * align;
+	}
+
+	public RangeAllocator(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+		this.capacity = capacity;
+		if (capacity > 0)
+			free.put(0, capacity);
+	}
+
+	private void addFree(int offset, int size) {
+		if (size <= 0)
+			return;
+		Entry<Integer, Integer> prev = free.floorEntry(offset);
+		if (prev != null && prev.getKey() + prev.getValue() == offset) {
+			offset = prev.getKey();
+			size += prev.getValue();
+		}
+		Integer next = free.get(offset + size);
+		if (next != null) {
+			free.remove(offset + size);
+			size += next;
+		}
+		free.put(offset, size);
+	}
+
+	/**
+	 * Allocates a range.
+	 * 
+	 * @param size
+	 *            the size of the range
+	 * @param align
+	 *            the alignment of the range's offset
+	 * @return the slice, or null if no free block is large enough
+	 */
+	public ArenaSlice allocate(int size, int align) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Slice size must be positive: " + size);
+		if (align <= 0)
+			throw new IllegalArgumentException("Slice alignment must be positive: " + align);
+		for (Entry<Integer, Integer> block : free.entrySet()) {
+			final int start = block.getKey();
+			final int end = start + block.getValue();
+			final int offset = alignUp(start, align);
+			if (offset + size > end)
+				continue;
+			free.remove(start);
+			if (offset > start)
+				free.put(start, offset - start);
+			if (offset + size < end)
+				free.put(offset + size, end - offset - size);
+			ArenaSlice slice = new ArenaSlice(this, offset, size, align);
+			used.put(offset, slice);
+			usedSize += size;
+			return slice;
+		}
+		return null;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Packs every live slice towards the start of the range, in offset order,
+	 * leaving one free block at the end.
+	 * 
+	 * @param mover
+	 *            moves the data of each relocated slice
+	 * @return the number of slices moved
+	 */
+	public int defragment(Mover mover) {
+		TreeMap<Integer, ArenaSlice> packed = new TreeMap<>();
+		free.clear();
+		int head = 0, moved = 0;
+		for (ArenaSlice slice : used.values()) {
+			final int offset = alignUp(head, slice.align());
+			addFree(head, offset - head);
+			if (offset != slice.offset) {
+				mover.move(slice.offset, offset, slice.size());
+				slice.offset = offset;
+				moved++;
+			}
+			packed.put(offset, slice);
+			head = offset + slice.size();
+		}
+		addFree(head, capacity - head);
+		used.clear();
+		used.putAll(packed);
+		return moved;
+	}
+
+	public void free(ArenaSlice slice) {
+		if (slice.owner() != this)
+			throw new IllegalArgumentException("Slice doesn't belong to this allocator.");
+		if (slice.freed)
+			throw new IllegalStateException("Slice was already freed.");
+		used.remove(slice.offset);
+		usedSize -= slice.size();
+		slice.freed = true;
+		addFree(slice.offset, slice.size());
+	}
+
+	/**
+	 * @return the fraction of free space that isn't in the largest free block
+	 */
+	public float fragmentation() {
+		final int freeSize = capacity - usedSize;
+		return freeSize == 0 ? 0 : 1 - largestFree() / (float) freeSize;
+	}
+
+	/**
+	 * Grows the range. Existing slices keep their offsets.
+	 */
+	public void grow(int capacity) {
+		if (capacity < this.capacity)
+			throw new IllegalArgumentException("Can't shrink an allocator from " + this.capacity + " to " + capacity);
+		addFree(this.capacity, capacity - this.capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return one past the end of the last live slice
+	 */
+	public int highWater() {
+		return used.isEmpty() ? 0 : used.lastEntry().getValue().end();
+	}
+
+	public int largestFree() {
+		int largest = 0;
+		for (Integer size : free.values())
+			largest = Math.max(largest, size);
+		return largest;
+	}
+
+	/**
+	 * @return the live slices, in offset order
+	 */
+	public Iterator<ArenaSlice> slices() {
+		return used.values().iterator();
+	}
+
+	@Override
+	public String toString() {
+		return "RangeAllocator[" + usedSize + "/" + capacity + ", " + used.size() + " slices, " + free.size()
+				+ " free blocks]";
+	}
+
+	public int used() {
+		return usedSize;
+	}
+
+	public static interface Mover {
+		/**
+		 * Moves data from [from, from + size) to [to, to + size). The
+		 * destination is always before the source, and they may overlap.
+		 */
+		public void move(int from, int to, int size);
+	}
+}
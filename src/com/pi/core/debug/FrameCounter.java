@@ -177,11 +177,24 @@ public class FrameCounter {
 		BUFFER_BINDS,
 		BUFFER_UPLOADS,
 		BUFFER_THROUGHPUT("Bpf"),
+		BUFFER_DIRTY_RANGES,
+		BUFFER_BYTES_SAVED("Bpf"),
 		VAO_CHANGE,
 		SHADER_CHANGE,
 		SHADER_DATA_COMMIT,
 		TEXTURE_BINDS,
-		UNIFORM_BUFFER_INDEXED;
+		SAMPLER_BINDS,
+		UNIFORM_BUFFER_INDEXED,
+		UNIFORM_UPLOADS,
+		UNIFORM_UPLOADS_SKIPPED,
+		STREAM_THROUGHPUT("Bpf"),
+		STREAM_REGION_WAITS,
+		DRAW_CALLS,
+		DRAW_COMMANDS,
+		QUEUE_ITEMS,
+		QUEUE_CHANGES_SAVED,
+		COMPUTE_DISPATCHES,
+		MEMORY_BARRIERS;
 
 		static {
 			int mlen = 0;
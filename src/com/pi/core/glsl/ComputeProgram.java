@@ -0,0 +1,212 @@
+package com.pi.core.glsl;
+
+import java.io.InputStream;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.opengl.GL43;
+
+import com.pi.core.buffers.BufferFreeListener;
+import com.pi.core.buffers.BufferType;
+import com.pi.core.buffers.GLGenericBuffer;
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.texture.Texture;
+import com.pi.core.util.GLIdentifiable;
+import com.pi.core.util.MemoryBarriers;
+import com.pi.util.ReferenceTable;
+
+/**
+ * A program made of a single compute shader. Storage buffers and images are
+ * attached by binding point and bound when dispatching. Resources the shader
+ * may write are reported to {@link MemoryBarriers}, so later reads through
+ * other paths get only the barriers they need.
+ */
+public class ComputeProgram extends ShaderProgram {
+	private static final int MAX_IMAGE_UNITS = 16;
+	private static int maxStorageBindings = -1;
+	private static ReferenceTable<GLGenericBuffer> bound_ssbos;
+
+	// Sized on first use, since the binding count needs a context.
+	private GLGenericBuffer[] storage = new GLGenericBuffer[0];
+	private boolean[] storageWrites = new boolean[0];
+	private final Texture[] images = new Texture[MAX_IMAGE_UNITS];
+	private final int[] imageLevel = new int[MAX_IMAGE_UNITS];
+	private final int[] imageAccess = new int[MAX_IMAGE_UNITS];
+	private final int[] workGroupSize = new int[3];
+
+	static {
+		GLGenericBuffer.addFreeListener(new BufferFreeListener() {
+			@Override
+			public void freed(GLIdentifiable buffer) {
+				if (bound_ssbos == null || !(buffer instanceof GLGenericBuffer))
+					return;
+				for (int i = 0; i < bound_ssbos.size(); i++)
+					if (bound_ssbos.isAttached(i, (GLGenericBuffer) buffer))
+						bound_ssbos.empty(i);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of shader storage buffer binding points
+	 */
+	public static int maxStorageBindings() {
+		if (maxStorageBindings < 0)
+			maxStorageBindings = GL11.glGetInteger(GL43.GL_MAX_SHADER_STORAGE_BUFFER_BINDINGS);
+		return maxStorageBindings;
+	}
+
+	public ComputeProgram() {
+		super();
+	}
+
+	public ComputeProgram(InputStream src) {
+		super();
+		compute(src);
+	}
+
+	private void bindResources() {
+		bind();
+		commitData();
+		if (storage.length > 0 && bound_ssbos == null)
+			bound_ssbos = new ReferenceTable<>(maxStorageBindings());
+		for (int i = 0; i < storage.length; i++) {
+			GLGenericBuffer b = storage[i];
+			if (b == null)
+				continue;
+			MemoryBarriers.require(b, BufferType.SHADER_STORAGE.barrierBit());
+			if (!bound_ssbos.isAttached(i, b)) {
+				GL30.glBindBufferBase(GL43.GL_SHADER_STORAGE_BUFFER, i, b.getID());
+				GLGenericBuffer.forgetBinding(BufferType.SHADER_STORAGE);
+				bound_ssbos.attach(i, b);
+			}
+		}
+		for (int i = 0; i < images.length; i++) {
+			Texture t = images[i];
+			if (t == null)
+				continue;
+			MemoryBarriers.require(t, GL42.GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+			GL42.glBindImageTexture(i, t.getID(), imageLevel[i], false, 0, imageAccess[i], t.getInternalFormat());
+		}
+	}
+
+	/**
+	 * Dispatches the given number of work groups.
+	 */
+	public void dispatch(int groupsX, int groupsY, int groupsZ) {
+		bindResources();
+		GL43.glDispatchCompute(groupsX, groupsY, groupsZ);
+		dispatched();
+	}
+
+	private void dispatched() {
+		for (int i = 0; i < storage.length; i++)
+			if (storage[i] != null && storageWrites[i])
+				MemoryBarriers.written(storage[i]);
+		for (int i = 0; i < images.length; i++)
+			if (images[i] != null && imageAccess[i] != GL15.GL_READ_ONLY)
+				MemoryBarriers.written(images[i]);
+		FrameCounter.increment(FrameParam.COMPUTE_DISPATCHES);
+	}
+
+	/**
+	 * Dispatches with the group counts read from a buffer, laid out as three
+	 * unsigned ints.
+	 * 
+	 * @param commands
+	 *            the buffer holding the group counts
+	 * @param offset
+	 *            the byte offset of the group counts
+	 */
+	public void dispatchIndirect(GLGenericBuffer commands, long offset) {
+		bindResources();
+		commands.bind(BufferType.DISPATCH_INDIRECT);
+		GL43.glDispatchComputeIndirect(offset);
+		dispatched();
+	}
+
+	/**
+	 * Dispatches enough work groups to cover the given number of invocations
+	 * on each axis.
+	 */
+	public void dispatchInvocations(int x, int y, int z) {
+		dispatch(groups(x, 0), groups(y, 1), groups(z, 2));
+	}
+
+	@Override
+	void finishLink() {
+		super.finishLink();
+		IntBuffer size = BufferUtils.createIntBuffer(3);
+		GL20.glGetProgramiv(getID(), GL43.GL_COMPUTE_WORK_GROUP_SIZE, size);
+		size.get(workGroupSize);
+	}
+
+	private int groups(int invocations, int axis) {
+		return (invocations + workGroupSize[axis] - 1) / workGroupSize[axis];
+	}
+
+	/**
+	 * Attaches a texture level as an image.
+	 * 
+	 * @param unit
+	 *            the image unit
+	 * @param t
+	 *            the texture, or null to detach
+	 * @param level
+	 *            the mipmap level
+	 * @param access
+	 *            GL_READ_ONLY, GL_WRITE_ONLY or GL_READ_WRITE
+	 * @return this program
+	 */
+	public ComputeProgram image(int unit, Texture t, int level, int access) {
+		images[unit] = t;
+		imageLevel[unit] = level;
+		imageAccess[unit] = access;
+		return this;
+	}
+
+	@Override
+	public ComputeProgram link() {
+		super.link();
+		return this;
+	}
+
+	/**
+	 * Attaches a shader storage buffer.
+	 * 
+	 * @param binding
+	 *            the binding point
+	 * @param b
+	 *            the buffer, or null to detach
+	 * @param writes
+	 *            false if the shader only reads the buffer, so no barrier is
+	 *            needed after dispatching
+	 * @return this program
+	 */
+	public ComputeProgram storage(int binding, GLGenericBuffer b, boolean writes) {
+		if (binding < 0 || binding >= maxStorageBindings())
+			throw new IllegalArgumentException("Binding " + binding + " is out of range; there are "
+					+ maxStorageBindings() + " storage bindings.");
+		if (storage.length == 0) {
+			storage = new GLGenericBuffer[maxStorageBindings()];
+			storageWrites = new boolean[storage.length];
+		}
+		storage[binding] = b;
+		storageWrites[binding] = writes;
+		return this;
+	}
+
+	/**
+	 * @return the local work group size on the given axis, as declared by the
+	 *         shader
+	 */
+	public int workGroupSize(int axis) {
+		return workGroupSize[axis];
+	}
+}
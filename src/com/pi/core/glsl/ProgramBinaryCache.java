@@ -0,0 +1,199 @@
+package com.pi.core.glsl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+
+/**
+ * An on-disk cache of linked program binaries. Entries are keyed by a hash of
+ * the preprocessed sources of every stage plus the GL vendor, renderer and
+ * version, so a driver update or a changed define misses instead of loading a
+ * stale binary. Binaries the driver rejects are deleted and the program is
+ * compiled normally.
+ * <p>
+ * Disabled until {@link #directory(File)} is called.
+ */
+public class ProgramBinaryCache {
+	private static final int MAGIC = 0x50425943;
+	/**
+	 * Magic, binary format and compile time.
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + 8;
+
+	private static File directory = null;
+	private static String driver = null;
+
+	private static int hits = 0, misses = 0, rejected = 0;
+	private static long savedNanos = 0;
+
+	/**
+	 * Enables the cache.
+	 * 
+	 * @param dir
+	 *            the cache directory, or null to disable the cache
+	 */
+	public static void directory(File dir) {
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalArgumentException("Can't create the program cache directory " + dir);
+		directory = dir;
+	}
+
+	public static boolean enabled() {
+		return directory != null;
+	}
+
+	private static File file(String key) {
+		return new File(directory, key + ".bin");
+	}
+
+	public static int hits() {
+		return hits;
+	}
+
+	/**
+	 * @return the cache key of a program, as a hex string
+	 */
+	static String key(List<Integer> types, List<String> sources) {
+		if (driver == null)
+			driver = GL11.glGetString(GL11.GL_VENDOR) + "\n" + GL11.glGetString(GL11.GL_RENDERER) + "\n"
+					+ GL11.glGetString(GL11.GL_VERSION);
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(driver.getBytes(StandardCharsets.UTF_8));
+			for (int i = 0; i < sources.size(); i++) {
+				md.update((byte) 0);
+				md.update(Integer.toString(types.get(i)).getBytes(StandardCharsets.UTF_8));
+				md.update((byte) 0);
+				md.update(sources.get(i).getBytes(StandardCharsets.UTF_8));
+			}
+			StringBuilder sb = new StringBuilder(64);
+			for (byte b : md.digest())
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new UnsupportedOperationException("SHA-256 isn't available", e);
+		}
+	}
+
+	/**
+	 * Tries to load a cached binary into a program.
+	 * 
+	 * @return true if the program was loaded and linked
+	 */
+	static boolean load(int program, String key) {
+		File f = file(key);
+		if (!f.isFile()) {
+			misses++;
+			return false;
+		}
+		final long start = System.nanoTime();
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel ch = raf.getChannel()) {
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			map.order(ByteOrder.nativeOrder());
+			if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC)
+				throw new IOException("Bad program cache header");
+			final int format = map.getInt(4);
+			final long compileNanos = map.getLong(8);
+			map.position(HEADER_SIZE);
+			GL41.glProgramBinary(program, format, map.slice());
+			if (GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) == GL11.GL_FALSE)
+				throw new IOException("The driver rejected the cached binary");
+			hits++;
+			savedNanos += Math.max(0, compileNanos - (System.nanoTime() - start));
+			return true;
+		} catch (IOException e) {
+			rejected++;
+			misses++;
+			f.delete();
+			return false;
+		}
+	}
+
+	public static int misses() {
+		return misses;
+	}
+
+	/**
+	 * Asks the driver to keep the binary of a program that is about to be
+	 * linked.
+	 */
+	static void prepare(int program) {
+		GL41.glProgramParameteri(program, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+	}
+
+	/**
+	 * @return how many cached binaries were rejected by the driver or
+	 *         unreadable
+	 */
+	public static int rejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return the compile and link time avoided by cache hits, less the time
+	 *         spent loading
+	 */
+	public static long savedNanos() {
+		return savedNanos;
+	}
+
+	public static String stats() {
+		return "ProgramBinaryCache[hits=" + hits + ", misses=" + misses + ", rejected=" + rejected + ", saved="
+				+ (savedNanos / 1000000) + "ms]";
+	}
+
+	/**
+	 * Writes the binary of a freshly linked program.
+	 */
+	static void store(int program, String key, long compileNanos) {
+		final int length = GL20.glGetProgrami(program, GL41.GL_PROGRAM_BINARY_LENGTH);
+		if (length <= 0)
+			return;
+		ByteBuffer data = BufferUtils.createByteBuffer(HEADER_SIZE + length);
+		IntBuffer format = BufferUtils.createIntBuffer(1);
+		data.position(HEADER_SIZE);
+		ByteBuffer binary = data.slice();
+		GL41.glGetProgramBinary(program, null, format, binary);
+		data.putInt(0, MAGIC);
+		data.putInt(4, format.get(0));
+		data.putLong(8, compileNanos);
+		data.position(0);
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", directory);
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel ch = raf.getChannel()) {
+				while (data.hasRemaining())
+					ch.write(data);
+			}
+			try {
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				// A torn entry fails the header or driver checks, and is rebuilt.
+				Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			System.err.println("Unable to write program cache entry " + key + ": " + e);
+		} finally {
+			if (tmp != null && tmp.exists() && !tmp.delete())
+				tmp.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.pi.core.glsl;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lwjgl.opengl.GL20;
+
+/**
+ * Compiles many programs without serializing on the driver. Reading and
+ * preprocessing sources runs on an executor; the GL work runs on the GL thread
+ * inside {@link #poll()}, which starts every prepared program's compile and
+ * link before checking any of them. With KHR_parallel_shader_compile the
+ * results are only checked once the driver reports completion.
+ *
+ * <pre>
+ * ShaderCompiler compiler = new ShaderCompiler();
+ * Future&lt;ShaderProgram&gt; f = compiler.program(new ShaderProgram()).joined(src).submit();
+ * // ... load other assets, calling compiler.poll() on the GL thread ...
+ * compiler.finish();
+ * </pre>
+ *
+ * The preprocessor's defines and includes must not change while sources are
+ * being prepared.
+ */
+public class ShaderCompiler {
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Job> prepared = new ConcurrentLinkedQueue<>();
+	private final List<Job> linking = new ArrayList<>();
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	public ShaderCompiler() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ShaderCompiler(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Polls until every submitted program is linked or has failed. Must be
+	 * called on the GL thread.
+	 */
+	public void finish() {
+		while (!poll())
+			Thread.yield();
+	}
+
+	/**
+	 * @return the number of submitted programs that haven't completed
+	 */
+	public int outstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * Does the pending GL work. Must be called on the GL thread.
+	 *
+	 * @return true if no programs are outstanding
+	 */
+	public boolean poll() {
+		Job job;
+		while ((job = prepared.poll()) != null) {
+			try {
+				job.program.beginLink();
+				linking.add(job);
+			} catch (RuntimeException e) {
+				job.fail(e);
+			}
+		}
+		Iterator<Job> it = linking.iterator();
+		while (it.hasNext()) {
+			job = it.next();
+			try {
+				if (!job.program.linkReady())
+					continue;
+				it.remove();
+				job.program.finishLink();
+				job.complete();
+			} catch (RuntimeException e) {
+				it.remove();
+				job.fail(e);
+			}
+		}
+		return outstanding.get() == 0;
+	}
+
+	/**
+	 * Starts describing a program to compile.
+	 */
+	public Job program(ShaderProgram program) {
+		return new Job(program);
+	}
+
+	/**
+	 * A program and the sources to attach to it.
+	 */
+	public class Job {
+		private final ShaderProgram program;
+		// Null types mark joined sources.
+		private final List<Integer> types = new ArrayList<>();
+		private final List<Object> sources = new ArrayList<>();
+		private final CompletableFuture<ShaderProgram> result = new CompletableFuture<>();
+
+		private Job(ShaderProgram program) {
+			this.program = program;
+		}
+
+		private void complete() {
+			outstanding.decrementAndGet();
+			result.complete(program);
+		}
+
+		private void fail(Throwable t) {
+			outstanding.decrementAndGet();
+			result.completeExceptionally(t);
+		}
+
+		public Job fragment(InputStream src) {
+			return stage(GL20.GL_FRAGMENT_SHADER, src);
+		}
+
+		/**
+		 * Adds a file of several stages split by type comments.
+		 *
+		 * @see ShaderProgram#joined(InputStream)
+		 */
+		public Job joined(InputStream src) {
+			types.add(null);
+			sources.add(src);
+			return this;
+		}
+
+		public Job joined(String src) {
+			types.add(null);
+			sources.add(src);
+			return this;
+		}
+
+		/**
+		 * Adds a stage. The source is read and preprocessed on the executor.
+		 *
+		 * @param type
+		 *            the stage type, such as GL_VERTEX_SHADER
+		 * @param src
+		 *            an InputStream or a String
+		 */
+		public Job stage(int type, Object src) {
+			if (!(src instanceof InputStream) && !(src instanceof String))
+				throw new IllegalArgumentException("Shader sources must be an InputStream or a String.");
+			types.add(type);
+			sources.add(src);
+			return this;
+		}
+
+		/**
+		 * Queues the program. The future completes on the GL thread, in
+		 * {@link ShaderCompiler#poll()}.
+		 */
+		public Future<ShaderProgram> submit() {
+			outstanding.incrementAndGet();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < types.size(); i++) {
+							Integer type = types.get(i);
+							Object src = sources.get(i);
+							if (type == null && src instanceof InputStream)
+								program.joined((InputStream) src);
+							else if (type == null)
+								program.joined((String) src);
+							else if (src instanceof InputStream)
+								program.attach(type, (InputStream) src);
+							else
+								program.attach(type, (String) src);
+						}
+						prepared.add(Job.this);
+					} catch (RuntimeException e) {
+						fail(e);
+					}
+				}
+			});
+			return result;
+		}
+
+		public Job vertex(InputStream src) {
+			return stage(GL20.GL_VERTEX_SHADER, src);
+		}
+	}
+}
@@ -2,19 +2,35 @@ package com.pi.core.glsl;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.pi.io.FileUtil;
 
+/**
+ * Expands includes, defines, <code>#foreach</code> and defines used in layout
+ * qualifiers in a single pass over the output. Each include is parsed once into
+ * a {@link Chunk} of literal text and directives, and the parsed form is kept
+ * until the include is registered again, so programs that share headers don't
+ * rescan them.
+ * <p>
+ * Cached forms are checked against what they were built from before use, so a
+ * worker thread that finishes building one after a define or include changed
+ * can't publish stale output.
+ */
 public class ShaderPreprocessor {
-	private final static Map<String, String> SHADER_INCLUDE_MAP = new HashMap<>();
-	private final static Map<String, String> PREDEFINES_MAP = new HashMap<>();
+	private final static Map<String, String> SHADER_INCLUDE_MAP = new ConcurrentHashMap<>();
+	private final static Map<String, String> PREDEFINES_MAP = new ConcurrentHashMap<>();
+	private final static Map<String, Chunk> PARSED_INCLUDES = new ConcurrentHashMap<>();
 
 	private static final Pattern INCLUDE = Pattern.compile("#include[ \t]+?([^ \t\n\r]+)");
 
@@ -23,12 +39,23 @@ public class ShaderPreprocessor {
 
 	private static final Pattern VERSION = Pattern.compile("#version[^\n\r]*(\r|)\n");
 
+	/**
+	 * Defines are expanded at most this deep, to stop self-referencing defines.
+	 */
+	private static final int MAX_EXPANSION_DEPTH = 16;
+
+	/**
+	 * Bumped after every change to the defines.
+	 */
+	private static final AtomicInteger defineGeneration = new AtomicInteger();
+	private static volatile DefineHeader defineHeader = null;
+
 	public static void define(String name, float value) {
-		PREDEFINES_MAP.put(name.trim(), "(" + value + ")");
+		define(name, "(" + value + ")");
 	}
 
 	public static void define(String name, int value) {
-		PREDEFINES_MAP.put(name.trim(), "(" + value + ")");
+		define(name, "(" + value + ")");
 	}
 
 	public static void define(String name, String value) {
@@ -36,103 +63,163 @@ public class ShaderPreprocessor {
 			PREDEFINES_MAP.remove(name.trim());
 		else
 			PREDEFINES_MAP.put(name.trim(), value.trim());
+		defineGeneration.incrementAndGet();
 	}
 
 	public static void deregisterInclude(String name) {
 		SHADER_INCLUDE_MAP.remove(name);
+		PARSED_INCLUDES.remove(name);
 	}
-	private static String doDefines(String src) {
-		Matcher mt = VERSION.matcher(src);
-		boolean np = mt.find();
-		StringBuilder res = new StringBuilder(src.length());
-		if (np)
-			res.append(src, 0, mt.end());
-		for (Entry<String, String> define : PREDEFINES_MAP.entrySet()) {
-			res.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
 
+	private static String defineHeader(Map<String, String> local) {
+		if (local.isEmpty()) {
+			DefineHeader header = defineHeader;
+			// Read before the defines, so a define racing the build leaves the result stale.
+			final int generation = defineGeneration.get();
+			if (header == null || header.generation != generation) {
+				StringBuilder res = new StringBuilder();
+				for (Entry<String, String> define : PREDEFINES_MAP.entrySet())
+					res.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
+				defineHeader = header = new DefineHeader(generation, res.toString());
+			}
+			return header.text;
 		}
-		if (np)
-			res.append(src, mt.end(), src.length());
-		else
-			res.append(src);
+		StringBuilder res = new StringBuilder();
+		for (Entry<String, String> define : PREDEFINES_MAP.entrySet())
+			if (!local.containsKey(define.getKey()))
+				res.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
+		for (Entry<String, String> define : local.entrySet())
+			res.append("#define ").append(define.getKey()).append(' ').append(define.getValue()).append('\n');
 		return res.toString();
 	}
-	private static String doForeach(String src) {
-		Matcher mt = FOREACH.matcher(src);
-		boolean np = mt.find();
-		if (np) {
-			StringBuilder res = new StringBuilder(src.length());
-			int prevHead = 0;
-			do {
-				res.append(src, prevHead, mt.start());
-				String func = mt.group(1);
-				String start = mt.group(2);
-				String end = mt.group(3);
-				for (int i = evalMath(start); i < evalMath(end); i++) {
-					res.append(func).append('(').append(i).append(");");
-				}
-				prevHead = mt.end();
-			} while (mt.find());
-			res.append(src, prevHead, src.length());
-			return res.toString();
-		} else
-			return src;
-	}
-
-	private static String doIncludes(String src, Set<String> hasIncluded) {
-		Matcher mt = INCLUDE.matcher(src);
-		boolean np = mt.find();
-		if (np) {
-			StringBuilder res = new StringBuilder(src.length());
-			int prevHead = 0;
-			do {
-				res.append(src, prevHead, mt.start());
-				if (hasIncluded.add(mt.group(1))) {
-					String included = SHADER_INCLUDE_MAP.get(mt.group(1));
-					if (included != null)
-						res.append(included).append('\n');
-					else
-						System.err.println("Unable to include: " + mt.group(1) + " (It isn't defined)");
-				}
-				prevHead = mt.end();
-			} while (mt.find());
-			res.append(src, prevHead, src.length());
-			return doIncludes(res.toString(), hasIncluded);
-		} else
-			return src;
-	}
-
-	private static String doLayoutDefines(String src) {
-		StringBuilder res = new StringBuilder(src.length());
-		String[] lines = src.split("\n");
-		for (int i = 0; i < lines.length; i++) {
-			boolean mod = true;
-			while (mod) {
-				mod = false;
-				if (lines[i].toLowerCase().contains("layout"))
-					for (Entry<String, String> def : PREDEFINES_MAP.entrySet()) {
-						mod |= lines[i].contains(def.getKey());
-						String parse = def.getValue().trim();
-						if (parse.startsWith("(") && parse.endsWith(")"))
-							parse = parse.substring(1, parse.length() - 1);
-						lines[i] = lines[i].replace(def.getKey(), parse);
+
+	private static void emit(Chunk chunk, StringBuilder out, Set<String> hasIncluded, Map<String, String> local) {
+		for (int i = 0; i < chunk.kinds.length; i++) {
+			final String[] args = chunk.args[i];
+			switch (chunk.kinds[i]) {
+			case Chunk.TEXT:
+				out.append(args[0]);
+				break;
+			case Chunk.LAYOUT_TEXT:
+				expand(args[0], out, 0, true, local);
+				break;
+			case Chunk.INCLUDE:
+				if (hasIncluded.add(args[0])) {
+					Chunk included = parsedInclude(args[0]);
+					if (included != null) {
+						emit(included, out, hasIncluded, local);
+						out.append('\n');
+					} else {
+						System.err.println("Unable to include: " + args[0] + " (It isn't defined)");
 					}
+				}
+				break;
+			case Chunk.FOREACH:
+				for (int k = evalMath(args[1], local), end = evalMath(args[2], local); k < end; k++)
+					out.append(args[0]).append('(').append(k).append(");");
+				break;
+			default:
+				throw new IllegalStateException("Unknown chunk part " + chunk.kinds[i]);
 			}
-			res.append(lines[i]).append('\n');
 		}
-		return res.toString();
 	}
 
-	private static int evalMath(String src) {
-		String code = src;
-		for (Entry<String, String> entry : PREDEFINES_MAP.entrySet())
-			code = code.replace(entry.getKey(), entry.getValue());
-		code = code.replaceAll("[()]", "").trim();
-		return Integer.parseInt(code);
+	private static int evalMath(String src, Map<String, String> local) {
+		StringBuilder code = new StringBuilder(src.length());
+		expand(src, code, 0, false, local);
+		for (int i = code.length() - 1; i >= 0; i--) {
+			char c = code.charAt(i);
+			if (c == '(' || c == ')')
+				code.deleteCharAt(i);
+		}
+		return Integer.parseInt(code.toString().trim());
+	}
+
+	/**
+	 * Copies text, replacing identifiers that name a define with the define's
+	 * value.
+	 *
+	 * @param stripParens
+	 *            removes the parentheses around values, for layout
+	 *            qualifiers that need plain integers
+	 */
+	private static void expand(String src, StringBuilder out, int depth, boolean stripParens,
+			Map<String, String> local) {
+		final int n = src.length();
+		int i = 0;
+		while (i < n) {
+			char c = src.charAt(i);
+			if (!Character.isJavaIdentifierStart(c)) {
+				out.append(c);
+				i++;
+				continue;
+			}
+			int end = i + 1;
+			while (end < n && Character.isJavaIdentifierPart(src.charAt(end)))
+				end++;
+			String value = depth < MAX_EXPANSION_DEPTH ? lookup(src.substring(i, end), local) : null;
+			if (value == null) {
+				out.append(src, i, end);
+			} else {
+				if (stripParens && value.startsWith("(") && value.endsWith(")"))
+					value = value.substring(1, value.length() - 1);
+				expand(value, out, depth + 1, stripParens, local);
+			}
+			i = end;
+		}
+	}
+
+	private static String lookup(String name, Map<String, String> local) {
+		String value = local.get(name);
+		return value != null ? value : PREDEFINES_MAP.get(name);
+	}
+
+	private static Chunk parsedInclude(String name) {
+		final String src = SHADER_INCLUDE_MAP.get(name);
+		if (src == null)
+			return null;
+		Chunk chunk = PARSED_INCLUDES.get(name);
+		// A chunk parsed from an older registration is rebuilt.
+		if (chunk == null || chunk.source != src) {
+			chunk = new Chunk(src);
+			PARSED_INCLUDES.put(name, chunk);
+		}
+		return chunk;
 	}
 
 	public static String preprocess(String src) {
-		return doLayoutDefines(doForeach(doIncludes(doDefines(src), new HashSet<String>())));
+		return preprocess(src, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Preprocesses with extra defines that apply only to this source. They
+	 * override global defines of the same name.
+	 */
+	public static String preprocess(String src, Map<String, String> defines) {
+		return preprocess(src, defines, null);
+	}
+
+	/**
+	 * Preprocesses with extra defines, recording the includes the source asked
+	 * for.
+	 *
+	 * @param included
+	 *            receives the name of every include requested, directly or
+	 *            through other includes, including ones that aren't registered.
+	 *            May be null.
+	 */
+	public static String preprocess(String src, Map<String, String> defines, Set<String> included) {
+		Matcher mt = VERSION.matcher(src);
+		final int split = mt.find() ? mt.end() : 0;
+		StringBuilder out = new StringBuilder(src.length() * 2);
+		Set<String> hasIncluded = new HashSet<>();
+		if (split > 0)
+			emit(new Chunk(src.substring(0, split)), out, hasIncluded, defines);
+		out.append(defineHeader(defines));
+		emit(new Chunk(src.substring(split)), out, hasIncluded, defines);
+		if (included != null)
+			included.addAll(hasIncluded);
+		return out.toString();
 	}
 
 	public static void registerInclude(String name, InputStream src) {
@@ -145,5 +232,101 @@ public class ShaderPreprocessor {
 
 	public static void registerInclude(String name, String src) {
 		SHADER_INCLUDE_MAP.put(name, src);
+		PARSED_INCLUDES.remove(name);
+	}
+
+	/**
+	 * Source text split into literal text and directives. Lines mentioning
+	 * <code>layout</code> are kept apart so their defines can be expanded.
+	 */
+	private static class Chunk {
+		private static final byte TEXT = 0;
+		private static final byte LAYOUT_TEXT = 1;
+		private static final byte INCLUDE = 2;
+		private static final byte FOREACH = 3;
+
+		/**
+		 * The text this was parsed from.
+		 */
+		private final String source;
+		private final byte[] kinds;
+		private final String[][] args;
+
+		private Chunk(String src) {
+			this.source = src;
+			List<Byte> kinds = new ArrayList<>();
+			List<String[]> args = new ArrayList<>();
+			StringBuilder text = new StringBuilder();
+			int lineStart = 0;
+			while (lineStart < src.length()) {
+				int lineEnd = src.indexOf('\n', lineStart);
+				lineEnd = lineEnd < 0 ? src.length() : lineEnd + 1;
+				final String line = src.substring(lineStart, lineEnd);
+				final boolean layout = line.toLowerCase().contains("layout");
+				if (line.indexOf('#') < 0 && !layout) {
+					text.append(line);
+				} else {
+					flush(text, kinds, args);
+					parseLine(line, layout ? LAYOUT_TEXT : TEXT, kinds, args);
+				}
+				lineStart = lineEnd;
+			}
+			flush(text, kinds, args);
+			this.kinds = new byte[kinds.size()];
+			for (int i = 0; i < this.kinds.length; i++)
+				this.kinds[i] = kinds.get(i);
+			this.args = args.toArray(new String[args.size()][]);
+		}
+
+		private static void flush(StringBuilder text, List<Byte> kinds, List<String[]> args) {
+			if (text.length() == 0)
+				return;
+			kinds.add(TEXT);
+			args.add(new String[] { text.toString() });
+			text.setLength(0);
+		}
+
+		private static void parseLine(String line, byte textKind, List<Byte> kinds, List<String[]> args) {
+			int head = 0;
+			while (head < line.length()) {
+				Matcher inc = ShaderPreprocessor.INCLUDE.matcher(line);
+				Matcher each = ShaderPreprocessor.FOREACH.matcher(line);
+				boolean hasInc = inc.find(head);
+				boolean hasEach = each.find(head);
+				if (!hasInc && !hasEach)
+					break;
+				Matcher first = !hasEach || (hasInc && inc.start() < each.start()) ? inc : each;
+				if (first.start() > head) {
+					kinds.add(textKind);
+					args.add(new String[] { line.substring(head, first.start()) });
+				}
+				if (first == inc) {
+					kinds.add(INCLUDE);
+					args.add(new String[] { inc.group(1) });
+				} else {
+					kinds.add(FOREACH);
+					args.add(new String[] { each.group(1), each.group(2), each.group(3) });
+				}
+				head = first.end();
+			}
+			if (head < line.length()) {
+				kinds.add(textKind);
+				args.add(new String[] { line.substring(head) });
+			}
+		}
+	}
+
+	/**
+	 * The global define lines, and the define generation they were built
+	 * from.
+	 */
+	private static class DefineHeader {
+		private final int generation;
+		private final String text;
+
+		private DefineHeader(int generation, String text) {
+			this.generation = generation;
+			this.text = text;
+		}
 	}
 }
@@ -5,12 +5,17 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
 import org.lwjgl.opengl.GL31;
 import org.lwjgl.opengl.GL32;
 import org.lwjgl.opengl.GL40;
@@ -19,21 +24,29 @@ import org.lwjgl.opengl.GL43;
 import com.pi.core.GLException;
 import com.pi.core.debug.FrameCounter;
 import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.texture.Sampler;
 import com.pi.core.texture.Texture;
+import com.pi.core.texture.TextureUnits;
 import com.pi.core.util.Bindable;
+import com.pi.core.util.GLFeature;
 import com.pi.core.util.GLIdentifiable;
 import com.pi.core.util.GPUObject;
 import com.pi.io.FileUtil;
 
 public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable, GLIdentifiable {
-	static final int MAX_TEXTURE_UNITS = 16;
+	/**
+	 * The unit of a sampler uniform that has no texture.
+	 */
+	static final int NO_TEXTURE_UNIT = -1;
 	private static ShaderProgram currentShader;
+	/**
+	 * GL_COMPLETION_STATUS_KHR from KHR_parallel_shader_compile.
+	 */
+	private static final int GL_COMPLETION_STATUS = 0x91B1;
+	private static Boolean parallelCompile = null;
 
 	private final static Map<String, Integer> SHADER_TYPE_MAP;
 	private final static Map<Integer, String> SHADER_TYPE_MAP_INVERSE;
-
-	// Limits rebinding
-	private static final Texture[] ACTIVE_TEXTURE_UNITS = new Texture[MAX_TEXTURE_UNITS];
 	static {
 		SHADER_TYPE_MAP = new HashMap<>();
 		SHADER_TYPE_MAP_INVERSE = new HashMap<>();
@@ -46,6 +59,23 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 	}
 	private int programID;
 	private final List<Integer> attachedObjects;
+	/**
+	 * Preprocessed sources and their stage types; compiled when linking.
+	 */
+	private final List<String> sources;
+	private final List<Integer> sourceTypes;
+	private Map<String, String> defines = Collections.emptyMap();
+	/**
+	 * The sources as given, before preprocessing, so the program can be
+	 * reloaded. Null types mark joined sources.
+	 */
+	private final List<String> inputs;
+	private final List<Integer> inputTypes;
+	private final Set<String> includes;
+	// State between beginLink and finishLink.
+	private String linkKey;
+	private boolean linkCached;
+	private long linkStart;
 
 	private final Map<String, ShaderUniform> uniformsByName;
 	private ShaderUniform[] uniformsByID;
@@ -53,12 +83,37 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 	private ShaderUniformBlock[] uniformBlocksByID;
 	// Needs to be accessed by ShaderUniform; therefore not private
 	public Texture[] textureUnit;
+	/**
+	 * The sampler bound with each texture unit, or null to use the texture's
+	 * own state.
+	 */
+	public Sampler[] textureSampler;
 
 	public int[] textureUnitRefCount;
 
+	private boolean deferUniforms = false;
+	private final List<ShaderUniform> pendingUniforms = new ArrayList<>();
+
+	/**
+	 * Checks the compile status of a shader made by
+	 * {@link #createShader(String, int)}.
+	 */
+	private static void checkShader(int shader, String processedSource) {
+		String[] lines = processedSource.split("\n");
+		String log = ShaderLogParser.shaderCompileLog(lines, shader);
+		if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+			throw new GLException("Shader compile failure", log);
+		} else if (log.trim().length() > 0) {
+			System.err.println("Shader compile log: \n" + log);
+		}
+	}
+
+	/**
+	 * Starts compiling a shader without waiting for the result, so the driver
+	 * can compile several at once.
+	 */
 	@SuppressWarnings("unused")
-	private static int compileShader(String src, int type) {
-		String processedSource = ShaderPreprocessor.preprocess(src);
+	private static int createShader(String processedSource, int type) {
 		if (false) {
 			try {
 				BufferedWriter out = new BufferedWriter(new FileWriter("/tmp/shader_src", true));
@@ -76,18 +131,9 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 			} catch (Exception e) {
 			}
 		}
-		String[] lines = processedSource.split("\n");
-
 		int shader = GL20.glCreateShader(type);
 		GL20.glShaderSource(shader, processedSource);
 		GL20.glCompileShader(shader);
-		String log = ShaderLogParser.shaderCompileLog(lines, shader);
-		if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
-			GL20.glDeleteShader(shader);
-			throw new GLException("Shader compile failure", log);
-		} else if (log.trim().length() > 0) {
-			System.err.println("Shader compile log: \n" + log);
-		}
 		return shader;
 	}
 
@@ -100,6 +146,23 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 		SHADER_TYPE_MAP_INVERSE.put(id, t);
 	}
 
+	/**
+	 * @return true if the driver compiles and links in the background and can
+	 *         report completion without blocking
+	 */
+	static boolean parallelCompile() {
+		if (parallelCompile == null) {
+			boolean found = false;
+			final int count = GL11.glGetInteger(GL30.GL_NUM_EXTENSIONS);
+			for (int i = 0; i < count && !found; i++) {
+				String ext = GL30.glGetStringi(GL11.GL_EXTENSIONS, i);
+				found = "GL_KHR_parallel_shader_compile".equals(ext) || "GL_ARB_parallel_shader_compile".equals(ext);
+			}
+			parallelCompile = found;
+		}
+		return parallelCompile;
+	}
+
 	public static void unbind() {
 		GL20.glUseProgram(0);
 		FrameCounter.increment(FrameParam.SHADER_CHANGE);
@@ -110,20 +173,65 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 		this.uniformsByName = new HashMap<>();
 		this.uniformBlocksByName = new HashMap<>();
 		this.attachedObjects = new ArrayList<>(2);
+		this.sources = new ArrayList<>(2);
+		this.sourceTypes = new ArrayList<>(2);
+		this.inputs = new ArrayList<>(2);
+		this.inputTypes = new ArrayList<>(2);
+		this.includes = new HashSet<>();
 		this.programID = -1;
-		this.textureUnit = new Texture[MAX_TEXTURE_UNITS];
-		this.textureUnitRefCount = new int[MAX_TEXTURE_UNITS];
+		this.textureUnit = new Texture[0];
+		this.textureSampler = new Sampler[0];
+		this.textureUnitRefCount = new int[0];
+	}
+
+	/**
+	 * Finds the unit already holding a texture and sampler, or takes the
+	 * lowest free unit for them, and counts a reference to it.
+	 *
+	 * @throws IllegalStateException
+	 *             if every texture unit is in use
+	 */
+	int acquireTextureUnit(Texture t, Sampler s) {
+		int free = NO_TEXTURE_UNIT;
+		for (int i = 0; i < textureUnit.length; i++) {
+			if (textureUnit[i] == null) {
+				if (free == NO_TEXTURE_UNIT)
+					free = i;
+			} else if (textureUnit[i] == t && textureSampler[i] == s) {
+				textureUnitRefCount[i]++;
+				return i;
+			}
+		}
+		if (free == NO_TEXTURE_UNIT) {
+			free = textureUnit.length;
+			ensureTextureUnits(free + 1);
+		}
+		textureUnit[free] = t;
+		textureSampler[free] = s;
+		textureUnitRefCount[free] = 1;
+		return free;
 	}
 
+	/**
+	 * Adds a shader stage. The source is preprocessed now, and compiled when
+	 * the program is linked.
+	 */
 	public ShaderProgram attach(int type, InputStream src) {
 		try {
-			attachedObjects.add(compileShader(FileUtil.readStreamFully(src), type));
+			attach(type, FileUtil.readStreamFully(src));
 		} catch (IOException e) {
 			throw new GLException("Shader stream load failure", e);
 		}
 		return this;
 	}
 
+	public ShaderProgram attach(int type, String src) {
+		inputs.add(src);
+		inputTypes.add(type);
+		preprocess(type, src);
+		return this;
+	}
+
 	@Override
 	public void bind() {
 		if (programID == -1)
@@ -136,14 +244,20 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 	}
 
 	public void commitData() {
+		if (!pendingUniforms.isEmpty()) {
+			if (!GLFeature.PROGRAM_UNIFORMS.available())
+				bind();
+			for (ShaderUniform uniform : pendingUniforms)
+				uniform.flush();
+			pendingUniforms.clear();
+		}
+		final boolean samplers = GLFeature.SAMPLER_OBJECTS.available();
 		for (int i = 0; i < textureUnit.length; i++) {
-			if (ACTIVE_TEXTURE_UNITS[i] != textureUnit[i]) {
-				if (textureUnit[i] != null)
-					textureUnit[i].bind(i);
-				// Unbound textures just have an undefined state.
-				// else
-				// Texture.unbind(i);
-				ACTIVE_TEXTURE_UNITS[i] = textureUnit[i];
+			// Unbound textures just have an undefined state.
+			if (textureUnit[i] != null) {
+				textureUnit[i].bind(i);
+				if (samplers)
+					TextureUnits.sampler(i, textureSampler[i]);
 			}
 		}
 		for (ShaderUniformBlock block : uniformBlocksByID) {
@@ -154,6 +268,105 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 		FrameCounter.increment(FrameParam.SHADER_DATA_COMMIT);
 	}
 
+	/**
+	 * Starts compiling and linking without checking the results. Finish with
+	 * {@link #finishLink()}. Allocates the program if needed, so
+	 * {@link #gpuFree()} later releases it.
+	 */
+	void beginLink() {
+		if (programID < 0)
+			gpuAlloc();
+		linkKey = ProgramBinaryCache.enabled() ? ProgramBinaryCache.key(sourceTypes, sources) : null;
+		linkCached = linkKey != null && ProgramBinaryCache.load(programID, linkKey);
+		if (linkCached)
+			return;
+		linkStart = System.nanoTime();
+		for (int i = attachedObjects.size(); i < sources.size(); i++) {
+			int shader = createShader(sources.get(i), sourceTypes.get(i));
+			attachedObjects.add(shader);
+			GL20.glAttachShader(programID, shader);
+		}
+		if (linkKey != null)
+			ProgramBinaryCache.prepare(programID);
+		GL20.glLinkProgram(programID);
+	}
+
+	public ShaderProgram compute(InputStream src) {
+		return attach(GL43.GL_COMPUTE_SHADER, src);
+	}
+
+	boolean deferUniforms() {
+		return deferUniforms;
+	}
+
+	/**
+	 * Holds changed uniform values until {@link #commitData()} instead of
+	 * uploading them when set, so the program doesn't need to be bound while
+	 * setting them and a value set several times before a draw is uploaded
+	 * once. Either way, values equal to the last one uploaded are skipped.
+	 */
+	public ShaderProgram deferUniforms(boolean defer) {
+		if (!defer && !pendingUniforms.isEmpty())
+			commitData();
+		this.deferUniforms = defer;
+		return this;
+	}
+
+	/**
+	 * Sets defines that apply only to this program, on top of the global
+	 * {@link ShaderPreprocessor} defines. Affects stages attached afterwards.
+	 */
+	public ShaderProgram defines(Map<String, String> defines) {
+		this.defines = defines;
+		return this;
+	}
+
+	/**
+	 * Grows the texture unit tables to hold at least the given number of
+	 * units.
+	 *
+	 * @throws IllegalStateException
+	 *             if that's more units than the context has
+	 */
+	private void ensureTextureUnits(int units) {
+		if (units <= textureUnit.length)
+			return;
+		final int max = TextureUnits.count();
+		if (units > max)
+			throw new IllegalStateException("Exceeded the " + max + " texture units of this context.");
+		final int n = Math.min(max, Math.max(units, Math.max(4, textureUnit.length * 2)));
+		textureUnit = Arrays.copyOf(textureUnit, n);
+		textureSampler = Arrays.copyOf(textureSampler, n);
+		textureUnitRefCount = Arrays.copyOf(textureUnitRefCount, n);
+	}
+
+	/**
+	 * Checks the results of {@link #beginLink()} and loads the uniforms.
+	 */
+	void finishLink() {
+		if (!linkCached) {
+			for (int i = 0; i < attachedObjects.size(); i++) {
+				try {
+					checkShader(attachedObjects.get(i), sources.get(i));
+				} catch (GLException e) {
+					GL20.glDetachShader(programID, attachedObjects.get(i));
+					GL20.glDeleteShader(attachedObjects.remove(i));
+					throw e;
+				}
+			}
+			String info = GL20.glGetProgramInfoLog(programID, 1024);
+			if (info.trim().length() > 0)
+				System.err.println("Program log: " + info);
+			if (GL20.glGetProgrami(programID, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+				System.err.println("Shader program wasn't linked correctly.");
+				throw new RuntimeException();
+			}
+			if (linkKey != null)
+				ProgramBinaryCache.store(programID, linkKey, System.nanoTime() - linkStart);
+		}
+		loadUniforms();
+	}
+
 	public ShaderProgram fragment(InputStream src) {
 		return attach(GL20.GL_FRAGMENT_SHADER, src);
 	}
@@ -177,13 +390,122 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 			GL20.glDetachShader(programID, obj);
 			GL20.glDeleteShader(obj);
 		}
+		attachedObjects.clear();
 		GL20.glDeleteProgram(programID);
 		programID = -1;
 	}
 
+	/**
+	 * @return the names of the includes this program's sources asked for
+	 */
+	public Set<String> includes() {
+		return Collections.unmodifiableSet(includes);
+	}
+
+	/**
+	 * Replaces the source given to the attach or joined call with the given
+	 * index. Takes effect on the next {@link #reload()}.
+	 */
+	void input(int index, String src) {
+		inputs.set(index, src);
+	}
+
+	/**
+	 * @return the number of attach and joined calls made on this program
+	 */
+	int inputCount() {
+		return inputs.size();
+	}
+
 	public ShaderProgram joined(InputStream src) {
 		try {
-			String[] lines = FileUtil.readStreamFully(src).split("(\r|)\n");
+			return joined(FileUtil.readStreamFully(src));
+		} catch (IOException e) {
+			throw new GLException("Shader stream load failure", e);
+		}
+	}
+
+	/**
+	 * Adds several stages from one source, each starting with a comment naming
+	 * its type, such as <code>// GL_VERTEX_SHADER</code>.
+	 */
+	public ShaderProgram joined(String src) {
+		inputs.add(src);
+		inputTypes.add(null);
+		preprocess(null, src);
+		return this;
+	}
+
+	/**
+	 * Compiles the attached stages and links them. If the
+	 * {@link ProgramBinaryCache} is enabled and holds a binary for the same
+	 * sources and driver, the binary is loaded instead.
+	 */
+	public ShaderProgram link() {
+		beginLink();
+		finishLink();
+		return this;
+	}
+
+	/**
+	 * @return true once {@link #finishLink()} won't block on the driver
+	 */
+	boolean linkReady() {
+		return linkCached || !parallelCompile()
+				|| GL20.glGetProgrami(programID, GL_COMPLETION_STATUS) != GL11.GL_FALSE;
+	}
+
+	private void loadUniforms() {
+		int uniformBlockCount = GL20.glGetProgrami(programID, GL31.GL_ACTIVE_UNIFORM_BLOCKS);
+		// Handles from an earlier link are reused, so callers' references stay valid.
+		Map<String, ShaderUniformBlock> oldBlocks = new HashMap<>(uniformBlocksByName);
+		uniformBlocksByID = new ShaderUniformBlock[uniformBlockCount];
+		uniformBlocksByName.clear();
+		for (int i = 0; i < uniformBlockCount; i++) {
+			String name = GL31.glGetActiveUniformBlockName(programID, i);
+			ShaderUniformBlock block = new ShaderUniformBlock(this, i, name);
+			ShaderUniformBlock old = oldBlocks.get(name);
+			if (old != null) {
+				old.adopt(block);
+				block = old;
+			}
+			uniformBlocksByName.put(name, uniformBlocksByID[i] = block);
+		}
+
+		int uniformCount = GL20.glGetProgrami(programID, GL20.GL_ACTIVE_UNIFORMS);
+		int uniformMaxNameLength = GL20.glGetProgrami(programID, GL20.GL_ACTIVE_UNIFORM_MAX_LENGTH);
+		Map<String, ShaderUniform> oldUniforms = new HashMap<>(uniformsByName);
+		uniformsByID = new ShaderUniform[uniformCount];
+		uniformsByName.clear();
+
+		for (int i = 0; i < uniformCount; i++) {
+			ShaderUniform uniform = new ShaderUniform(this, i, uniformMaxNameLength);
+			ShaderUniform old = oldUniforms.remove(uniform.name());
+			if (old != null) {
+				old.adopt(uniform);
+				uniform = old;
+			}
+			uniformsByID[i] = uniform;
+			uniformsByName.put(uniform.name(), uniform);
+		}
+		for (ShaderUniform removed : oldUniforms.values())
+			removed.detach();
+	}
+
+	/**
+	 * Preprocesses a source into stages.
+	 *
+	 * @param stage
+	 *            the stage type, or null to split a joined source
+	 */
+	private void preprocess(Integer stage, String src) {
+		if (stage != null) {
+			sources.add(ShaderPreprocessor.preprocess(src, defines, includes));
+			sourceTypes.add(stage);
+			return;
+		}
+		try {
+			String[] lines = src.split("(\r|)\n");
 			StringBuilder tmp = new StringBuilder();
 			String type = null;
 			int typeV = 0;
@@ -192,7 +514,7 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 					String ttype = line.trim().substring(2).trim().toUpperCase();
 					Integer rt = SHADER_TYPE_MAP.get(ttype);
 					if (rt != null && tmp.length() > 0 && type != null) {
-						attachedObjects.add(compileShader(tmp.toString(), typeV));
+						preprocess(typeV, tmp.toString());
 						tmp.setLength(0);
 					}
 					if (rt != null) {
@@ -203,49 +525,113 @@ public class ShaderProgram extends GPUObject<ShaderProgram> implements Bindable,
 					tmp.append(line).append('\n');
 			}
 			if (tmp.length() > 0 && type != null) {
-				attachedObjects.add(compileShader(tmp.toString(), typeV));
+				preprocess(typeV, tmp.toString());
 			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
-		return this;
 	}
 
-	public ShaderProgram link() {
-		if (programID < 0)
-			gpuAllocInternal();
-		for (int obj : attachedObjects)
-			GL20.glAttachShader(programID, obj);
-		GL20.glLinkProgram(programID);
-		String info = GL20.glGetProgramInfoLog(programID, 1024);
-		if (info.trim().length() > 0)
-			System.err.println("Program log: " + info);
-		if (GL20.glGetProgrami(programID, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
-			System.err.println("Shader program wasn't linked correctly.");
-			throw new RuntimeException();
+	void queueUniform(ShaderUniform uniform) {
+		pendingUniforms.add(uniform);
+	}
+
+	/**
+	 * Drops a reference to a unit taken with
+	 * {@link #acquireTextureUnit(Texture, Sampler)}, freeing the unit when
+	 * none are left.
+	 */
+	void releaseTextureUnit(int unit) {
+		if (unit < 0 || unit >= textureUnit.length)
+			return;
+		if (--textureUnitRefCount[unit] <= 0) {
+			textureUnit[unit] = null;
+			textureSampler[unit] = null;
+			textureUnitRefCount[unit] = 0;
 		}
-		loadUniforms();
-		return this;
 	}
 
-	private void loadUniforms() {
-		int uniformBlockCount = GL20.glGetProgrami(programID, GL31.GL_ACTIVE_UNIFORM_BLOCKS);
-		uniformBlocksByID = new ShaderUniformBlock[uniformBlockCount];
-		uniformBlocksByName.clear();
-		for (int i = 0; i < uniformBlockCount; i++) {
-			String name = GL31.glGetActiveUniformBlockName(programID, i);
-			uniformBlocksByName.put(name, uniformBlocksByID[i] = new ShaderUniformBlock(this, i, name));
+	/**
+	 * Preprocesses the sources again and links them into a new program object,
+	 * picking up changed includes and defines. If that fails the old program
+	 * stays in use. Existing {@link ShaderUniform} and
+	 * {@link ShaderUniformBlock} handles are kept and pointed at the new
+	 * program; uniforms set with glUniform, other than samplers, must be set
+	 * again.
+	 *
+	 * @return true if the program was relinked
+	 */
+	public boolean reload() {
+		if (programID < 0)
+			throw new IllegalStateException("Can't reload an unallocated shader.");
+		final int oldID = programID;
+		final List<Integer> oldObjects = new ArrayList<>(attachedObjects);
+		final List<String> oldSources = new ArrayList<>(sources);
+		final List<Integer> oldTypes = new ArrayList<>(sourceTypes);
+		final Set<String> oldIncludes = new HashSet<>(includes);
+		attachedObjects.clear();
+		sources.clear();
+		sourceTypes.clear();
+		includes.clear();
+		programID = GL20.glCreateProgram();
+		try {
+			for (int i = 0; i < inputs.size(); i++)
+				preprocess(inputTypes.get(i), inputs.get(i));
+			beginLink();
+			finishLink();
+		} catch (RuntimeException e) {
+			System.err.println("Shader reload failed: " + e.getMessage());
+			for (int obj : attachedObjects) {
+				GL20.glDetachShader(programID, obj);
+				GL20.glDeleteShader(obj);
+			}
+			GL20.glDeleteProgram(programID);
+			programID = oldID;
+			attachedObjects.clear();
+			attachedObjects.addAll(oldObjects);
+			sources.clear();
+			sources.addAll(oldSources);
+			sourceTypes.clear();
+			sourceTypes.addAll(oldTypes);
+			includes.clear();
+			includes.addAll(oldIncludes);
+			return false;
 		}
+		for (int obj : oldObjects) {
+			GL20.glDetachShader(oldID, obj);
+			GL20.glDeleteShader(obj);
+		}
+		GL20.glDeleteProgram(oldID);
 
-		int uniformCount = GL20.glGetProgrami(programID, GL20.GL_ACTIVE_UNIFORMS);
-		int uniformMaxNameLength = GL20.glGetProgrami(programID, GL20.GL_ACTIVE_UNIFORM_MAX_LENGTH);
-		uniformsByID = new ShaderUniform[uniformCount];
-		uniformsByName.clear();
+		GL20.glUseProgram(programID);
+		for (ShaderUniform uniform : uniformsByID)
+			uniform.restoreSamplers();
+		if (currentShader != this)
+			GL20.glUseProgram(currentShader == null ? 0 : currentShader.programID);
+		return true;
+	}
 
-		for (int i = 0; i < uniformCount; i++) {
-			uniformsByID[i] = new ShaderUniform(this, i, uniformMaxNameLength);
-			uniformsByName.put(uniformsByID[i].name(), uniformsByID[i]);
-		}
+	/**
+	 * Assigns a texture to a unit directly, for callers that manage units
+	 * themselves. The sampler uniforms must already refer to the unit. The
+	 * texture is bound by the next {@link #commitData()}.
+	 */
+	public void texture(int unit, Texture t) {
+		texture(unit, t, null);
+	}
+
+	/**
+	 * Assigns a texture and the sampler to read it with to a unit directly.
+	 *
+	 * @param s
+	 *            the sampler, or null to use the texture's own state
+	 * @see #texture(int, Texture)
+	 */
+	public void texture(int unit, Texture t, Sampler s) {
+		ensureTextureUnits(unit + 1);
+		textureUnit[unit] = t;
+		textureSampler[unit] = t == null ? null : s;
+		textureUnitRefCount[unit] = t == null ? 0 : Math.max(textureUnitRefCount[unit], 1);
 	}
 
 	public ShaderUniform uniform(int id) {
@@ -9,9 +9,14 @@ import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL21;
 import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL41;
 
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
 import com.pi.core.debug.WarningManager;
+import com.pi.core.texture.Sampler;
 import com.pi.core.texture.Texture;
+import com.pi.core.util.GLFeature;
 import com.pi.math.matrix.Matrix3;
 import com.pi.math.matrix.Matrix34;
 import com.pi.math.matrix.Matrix4;
@@ -20,15 +25,45 @@ import com.pi.math.vector.Vector;
 import com.pi.math.vector.VectorBuff;
 
 public final class ShaderUniform {
+	// The glUniform call that wrote a shadowed value.
+	private static final byte CALL_NONE = 0;
+	private static final byte CALL_FLOAT1 = 1;
+	private static final byte CALL_FLOAT2 = 2;
+	private static final byte CALL_FLOAT3 = 3;
+	private static final byte CALL_FLOAT4 = 4;
+	private static final byte CALL_INT1 = 5;
+	private static final byte CALL_INT2 = 6;
+	private static final byte CALL_INT3 = 7;
+	private static final byte CALL_INT4 = 8;
+	private static final byte CALL_MATRIX3 = 9;
+	private static final byte CALL_MATRIX34 = 10;
+	private static final byte CALL_MATRIX4 = 11;
+	private static final byte CALL_MATRIX4_TRANSPOSED = 12;
+	private static final int[] CALL_WORDS = { 0, 1, 2, 3, 4, 1, 2, 3, 4, 9, 12, 16, 16 };
+	private static final int SHADOW_WORDS = 16;
+
+	// Scratch space for deferred uploads. Only used on the GL thread.
+	private static final FloatBuffer UPLOAD_FLOATS = BufferUtils.createFloatBuffer(SHADOW_WORDS);
+	private static final IntBuffer UPLOAD_INTS = BufferUtils.createIntBuffer(SHADOW_WORDS);
+
 	private final ShaderProgram prog;
 	private final String name;
-	private final int size;
-	private final int type;
-	private final int[] location;
-	private final int[] samplerID;
-	private final int uniformBlockIndex;
+	private int size;
+	private int type;
+	private int[] location;
+	private int[] samplerID;
+	private int uniformBlockIndex;
 	private int activeIndex;
 
+	/**
+	 * The last value written to each element, as raw float or int bits, so
+	 * unchanged values aren't sent again.
+	 */
+	private int[] shadow;
+	private byte[] shadowCall;
+	private boolean[] pending;
+	private boolean queued;
+
 	private static final int boolToInt(boolean b) {
 		return b ? 1 : 0;
 	}
@@ -74,46 +109,77 @@ public final class ShaderUniform {
 
 		this.activeIndex = 0;
 		this.samplerID = new int[this.location.length];
-		Arrays.fill(this.samplerID, ShaderProgram.MAX_TEXTURE_UNITS);
+		Arrays.fill(this.samplerID, ShaderProgram.NO_TEXTURE_UNIT);
+	}
+
+	/**
+	 * Takes the locations of a uniform of the same name from a relinked
+	 * program, so handles held by callers stay valid across a reload.
+	 */
+	void adopt(ShaderUniform fresh) {
+		this.type = fresh.type;
+		this.uniformBlockIndex = fresh.uniformBlockIndex;
+		this.location = fresh.location;
+		if (fresh.size != size) {
+			// The old units stay claimed on the program until released.
+			for (int unit : samplerID)
+				prog.releaseTextureUnit(unit);
+			this.samplerID = fresh.samplerID;
+		}
+		this.size = fresh.size;
+		this.activeIndex = 0;
+		// The new program starts with default values.
+		this.shadow = null;
+		this.shadowCall = null;
+		this.pending = null;
+		this.queued = false;
 	}
 
 	public void bool(boolean b) {
+		if (!defined())
+			return;
 		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(b ? 1 : 0);
-			else
+			else if (stage(CALL_INT1, boolToInt(b)))
 				GL20.glUniform1i(location[activeIndex], boolToInt(b));
 		} else
 			typeMismatch("boolean");
 	}
 
 	public void bvector(boolean x, boolean y) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL_VEC2)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL_VEC2) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x ? 1 : 0, y ? 1 : 0);
-			else
+			else if (stage(CALL_INT2, boolToInt(x), boolToInt(y)))
 				GL20.glUniform2i(location[activeIndex], boolToInt(x), boolToInt(y));
-		else
+		} else
 			typeMismatch("bool vec2");
 	}
 
 	public void bvector(boolean x, boolean y, boolean z) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL_VEC3)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL_VEC3) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x ? 1 : 0, y ? 1 : 0, z ? 1 : 0);
-			else
+			else if (stage(CALL_INT3, boolToInt(x), boolToInt(y), boolToInt(z)))
 				GL20.glUniform3i(location[activeIndex], boolToInt(x), boolToInt(y), boolToInt(z));
-		else
-			typeMismatch("bool vec2");
+		} else
+			typeMismatch("bool vec3");
 	}
 
 	public void bvector(boolean x, boolean y, boolean z, boolean w) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL_VEC4)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_BOOL_VEC4) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x ? 1 : 0, y ? 1 : 0, z ? 1 : 0, w ? 1 : 0);
-			else
+			else if (stage(CALL_INT4, boolToInt(x), boolToInt(y), boolToInt(z), boolToInt(w)))
 				GL20.glUniform4i(location[activeIndex], boolToInt(x), boolToInt(y), boolToInt(z), boolToInt(w));
-		else
+		} else
 			typeMismatch("bool vec4");
 	}
 
@@ -125,7 +191,7 @@ public final class ShaderUniform {
 		if (!ShaderUniformBlock.ALLOW_UTILITY_ACCESS)
 			throw new UnsupportedOperationException("Can't use utility access to UBO.");
 		ShaderUniformBlock block = prog.uniformBlock(uniformBlockIndex);
-		FloatBuffer place = block.bound().floatImageAt(location[activeIndex]);
+		FloatBuffer place = block.bound().floatImageAt(block.boundOffset() + location[activeIndex]);
 		if (ShaderUniformBlock.PERSISTENT_BUFFER_STATE) {
 			final int n = f.remaining();
 			for (int i = 0; i < n; i++) {
@@ -144,7 +210,7 @@ public final class ShaderUniform {
 		if (!ShaderUniformBlock.ALLOW_UTILITY_ACCESS)
 			throw new UnsupportedOperationException("Can't use utility access to UBO.");
 		ShaderUniformBlock block = prog.uniformBlock(uniformBlockIndex);
-		FloatBuffer place = block.bound().floatImageAt(location[activeIndex]);
+		FloatBuffer place = block.bound().floatImageAt(block.boundOffset() + location[activeIndex]);
 		if (ShaderUniformBlock.PERSISTENT_BUFFER_STATE) {
 			for (int i = 0; i < vals.length; i++) {
 				if (vals[i] != place.get(i)) {
@@ -160,7 +226,7 @@ public final class ShaderUniform {
 		if (!ShaderUniformBlock.ALLOW_UTILITY_ACCESS)
 			throw new UnsupportedOperationException("Can't use utility access to UBO.");
 		ShaderUniformBlock block = prog.uniformBlock(uniformBlockIndex);
-		IntBuffer place = block.bound().integerImageAt(location[activeIndex]);
+		IntBuffer place = block.bound().integerImageAt(block.boundOffset() + location[activeIndex]);
 		for (int i = 0; i < vals.length; i++) {
 			if (!ShaderUniformBlock.PERSISTENT_BUFFER_STATE || vals[i] != place.get(i)) {
 				place.put(i, vals[i]);
@@ -173,16 +239,48 @@ public final class ShaderUniform {
 		return type != -1;
 	}
 
+	/**
+	 * Marks this uniform as removed from its program, releasing its texture
+	 * units. Writes to it are ignored.
+	 */
+	void detach() {
+		for (int unit : samplerID)
+			prog.releaseTextureUnit(unit);
+		Arrays.fill(samplerID, ShaderProgram.NO_TEXTURE_UNIT);
+		this.type = -1;
+		this.uniformBlockIndex = -1;
+		Arrays.fill(location, -1);
+		this.activeIndex = 0;
+	}
+
 	public void floating(float x) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL11.GL_FLOAT)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL11.GL_FLOAT) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x);
-			else
+			else if (stage(CALL_FLOAT1, x))
 				GL20.glUniform1f(location[activeIndex], x);
-		else
+		} else
 			typeMismatch("float");
 	}
 
+	/**
+	 * Uploads the values deferred since the last commit. The program must be
+	 * bound.
+	 */
+	void flush() {
+		queued = false;
+		if (pending == null)
+			return;
+		for (int k = 0; k < pending.length; k++) {
+			if (pending[k]) {
+				pending[k] = false;
+				upload(k);
+			}
+		}
+	}
+
 	public ShaderUniform index(int i) {
 		if (i < 0 || i >= size)
 			throw new IllegalStateException(
@@ -193,12 +291,14 @@ public final class ShaderUniform {
 	}
 
 	public void integer(int x) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL11.GL_INT)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL11.GL_INT) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x);
-			else
+			else if (stage(CALL_INT1, x))
 				GL20.glUniform1i(location[activeIndex], x);
-		else
+		} else
 			typeMismatch("int");
 	}
 
@@ -207,20 +307,24 @@ public final class ShaderUniform {
 	}
 
 	public void matrix(Matrix3 m) {
+		if (!defined())
+			return;
 		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_MAT3) {
 			if (uniformBlockIndex >= 0) {
 				commitFloatsToUBO(m.accessor());
-			} else
+			} else if (stage(CALL_MATRIX3, m.accessor()))
 				GL20.glUniformMatrix3fv(location[activeIndex], false, m.accessor());
 		} else
-			typeMismatch("float matrix34");
+			typeMismatch("float matrix3");
 	}
 
 	public void matrix(Matrix34 m) {
+		if (!defined())
+			return;
 		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL21.GL_FLOAT_MAT4x3) {
 			if (uniformBlockIndex >= 0) {
 				commitFloatsToUBO(m.accessor());
-			} else
+			} else if (stage(CALL_MATRIX34, m.accessor()))
 				GL21.glUniformMatrix3x4fv(location[activeIndex], false, m.accessor());
 		} else
 			typeMismatch("float matrix34");
@@ -231,12 +335,14 @@ public final class ShaderUniform {
 	}
 
 	public void matrix(Matrix4 m, boolean transpose) {
+		if (!defined())
+			return;
 		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_MAT4) {
 			if (uniformBlockIndex >= 0) {
 				if (transpose)
 					throw new IllegalStateException("Can't upload transposed matrix to UBO");
 				commitFloatsToUBO(m.accessor());
-			} else
+			} else if (stage(transpose ? CALL_MATRIX4_TRANSPOSED : CALL_MATRIX4, m.accessor()))
 				GL20.glUniformMatrix4fv(location[activeIndex], transpose, m.accessor());
 		} else
 			typeMismatch("float matrix4");
@@ -246,51 +352,189 @@ public final class ShaderUniform {
 		return name;
 	}
 
+	/**
+	 * Assigns this uniform's texture units again, after a relink reset them.
+	 * Without glProgramUniform the program must be bound.
+	 */
+	void restoreSamplers() {
+		for (int k = 0; k < location.length; k++)
+			if (samplerID[k] != ShaderProgram.NO_TEXTURE_UNIT && location[k] >= 0)
+				if (GLFeature.PROGRAM_UNIFORMS.available())
+					GL41.glProgramUniform1i(prog.getID(), location[k], samplerID[k]);
+				else
+					GL20.glUniform1i(location[k], samplerID[k]);
+	}
+
+	private int[] shadows() {
+		if (shadow == null) {
+			shadow = new int[location.length * SHADOW_WORDS];
+			shadowCall = new byte[location.length];
+		}
+		return shadow;
+	}
+
+	private boolean stage(byte call, float x) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == Float.floatToRawIntBits(x);
+		v[off] = Float.floatToRawIntBits(x);
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, float x, float y) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == Float.floatToRawIntBits(x)
+				&& v[off + 1] == Float.floatToRawIntBits(y);
+		v[off] = Float.floatToRawIntBits(x);
+		v[off + 1] = Float.floatToRawIntBits(y);
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, float x, float y, float z) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == Float.floatToRawIntBits(x)
+				&& v[off + 1] == Float.floatToRawIntBits(y) && v[off + 2] == Float.floatToRawIntBits(z);
+		v[off] = Float.floatToRawIntBits(x);
+		v[off + 1] = Float.floatToRawIntBits(y);
+		v[off + 2] = Float.floatToRawIntBits(z);
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, float x, float y, float z, float w) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == Float.floatToRawIntBits(x)
+				&& v[off + 1] == Float.floatToRawIntBits(y) && v[off + 2] == Float.floatToRawIntBits(z)
+				&& v[off + 3] == Float.floatToRawIntBits(w);
+		v[off] = Float.floatToRawIntBits(x);
+		v[off + 1] = Float.floatToRawIntBits(y);
+		v[off + 2] = Float.floatToRawIntBits(z);
+		v[off + 3] = Float.floatToRawIntBits(w);
+		return staged(call, same);
+	}
+
+	/**
+	 * Shadows the remaining contents of a buffer, without moving its position.
+	 */
+	private boolean stage(byte call, FloatBuffer f) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call;
+		for (int i = 0; i < CALL_WORDS[call]; i++) {
+			int bits = Float.floatToRawIntBits(f.get(f.position() + i));
+			same &= v[off + i] == bits;
+			v[off + i] = bits;
+		}
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, int x) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == x;
+		v[off] = x;
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, int x, int y) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == x && v[off + 1] == y;
+		v[off] = x;
+		v[off + 1] = y;
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, int x, int y, int z) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == x && v[off + 1] == y && v[off + 2] == z;
+		v[off] = x;
+		v[off + 1] = y;
+		v[off + 2] = z;
+		return staged(call, same);
+	}
+
+	private boolean stage(byte call, int x, int y, int z, int w) {
+		int[] v = shadows();
+		int off = activeIndex * SHADOW_WORDS;
+		boolean same = shadowCall[activeIndex] == call && v[off] == x && v[off + 1] == y && v[off + 2] == z
+				&& v[off + 3] == w;
+		v[off] = x;
+		v[off + 1] = y;
+		v[off + 2] = z;
+		v[off + 3] = w;
+		return staged(call, same);
+	}
+
+	/**
+	 * Finishes shadowing a value of the active element.
+	 *
+	 * @return true if the caller should make the glUniform call now
+	 */
+	private boolean staged(byte call, boolean same) {
+		if (same) {
+			FrameCounter.increment(FrameParam.UNIFORM_UPLOADS_SKIPPED);
+			return false;
+		}
+		if (prog.deferUniforms()) {
+			shadowCall[activeIndex] = call;
+			if (pending == null)
+				pending = new boolean[location.length];
+			pending[activeIndex] = true;
+			if (!queued) {
+				queued = true;
+				prog.queueUniform(this);
+			}
+			return false;
+		}
+		if (GLFeature.PROGRAM_UNIFORMS.available()) {
+			shadowCall[activeIndex] = call;
+			upload(activeIndex);
+			return false;
+		}
+		// glUniform writes to the bound program, so a value written while
+		// another program is bound can't be trusted later.
+		shadowCall[activeIndex] = prog.using() ? call : CALL_NONE;
+		FrameCounter.increment(FrameParam.UNIFORM_UPLOADS);
+		return true;
+	}
+
 	public void texture(Texture t) {
+		texture(t, null);
+	}
+
+	/**
+	 * Samples a texture through a sampler object instead of the texture's own
+	 * wrap and filter state. Textures are given the lowest free unit, shared
+	 * with other sampler uniforms using the same texture and sampler.
+	 *
+	 * @param s
+	 *            the sampler, or null to use the texture's own state
+	 */
+	public void texture(Texture t, Sampler s) {
+		if (!defined())
+			return;
 		if (WarningManager.GLSL_UNIFORM_TYPE_WATCHING && type != GL20.GL_SAMPLER_1D && type != GL20.GL_SAMPLER_1D_SHADOW
 				&& type != GL20.GL_SAMPLER_2D && type != GL20.GL_SAMPLER_2D_SHADOW && type != GL20.GL_SAMPLER_3D
 				&& type != GL20.GL_SAMPLER_CUBE)
 			typeMismatch("sampler");
+		if (t == null)
+			s = null;
 
 		final int prevSampler = this.samplerID[activeIndex];
-
-		if (prevSampler < prog.textureUnit.length && prevSampler >= 0 && prog.textureUnit[prevSampler] == t)
+		if (prevSampler != ShaderProgram.NO_TEXTURE_UNIT && prog.textureUnit[prevSampler] == t
+				&& prog.textureSampler[prevSampler] == s)
 			return;
 
-		if (prevSampler < prog.textureUnit.length) {
-			if (--prog.textureUnitRefCount[prevSampler] <= 0) {
-				prog.textureUnit[prevSampler] = null;
-				prog.textureUnitRefCount[prevSampler] = 0;
-			}
-		}
-		if (t == null) {
-			this.samplerID[activeIndex] = ShaderProgram.MAX_TEXTURE_UNITS;
-		} else {
-			// Search for an equiv texture object:
-			boolean found = false;
-			int fNull = ShaderProgram.MAX_TEXTURE_UNITS;
-			for (int i = 0; i < prog.textureUnit.length; i++) {
-				if (prog.textureUnit[i] == null && fNull == ShaderProgram.MAX_TEXTURE_UNITS) {
-					fNull = i;
-				} else if (prog.textureUnit[i] == t) {
-					this.samplerID[activeIndex] = i;
-					prog.textureUnitRefCount[i]++;
-					found = true;
-					break;
-				}
-			}
-			if (!found) {
-				this.samplerID[activeIndex] = fNull;
-				if (fNull == ShaderProgram.MAX_TEXTURE_UNITS) {
-					System.err.println("Exceeded MAX TEXTURE UNITS");
-				} else {
-					prog.textureUnit[fNull] = t;
-					prog.textureUnitRefCount[fNull] = 1;
-				}
-			}
-		}
+		prog.releaseTextureUnit(prevSampler);
+		this.samplerID[activeIndex] = t == null ? ShaderProgram.NO_TEXTURE_UNIT : prog.acquireTextureUnit(t, s);
 		// Can't have samplers in UBO anyways...
-		GL20.glUniform1i(location[activeIndex], this.samplerID[activeIndex]);
+		if (this.samplerID[activeIndex] != ShaderProgram.NO_TEXTURE_UNIT
+				&& stage(CALL_INT1, this.samplerID[activeIndex]))
+			GL20.glUniform1i(location[activeIndex], this.samplerID[activeIndex]);
 	}
 
 	private final void typeMismatch(String provided) {
@@ -301,36 +545,141 @@ public final class ShaderUniform {
 		if (!ShaderUniformBlock.ALLOW_UTILITY_ACCESS)
 			throw new UnsupportedOperationException("Can't use utility access to UBO.");
 		ShaderUniformBlock block = prog.uniformBlock(uniformBlockIndex);
-		return block.bound().floatImageAt(location[activeIndex]);
+		return block.bound().floatImageAt(block.boundOffset() + location[activeIndex]);
+	}
+
+	/**
+	 * Uploads an element from its shadow copy, to the bound program or with
+	 * glProgramUniform.
+	 */
+	private void upload(int k) {
+		final byte call = shadowCall[k];
+		final int off = k * SHADOW_WORDS;
+		final int loc = location[k];
+		UPLOAD_FLOATS.clear();
+		UPLOAD_INTS.clear();
+		for (int i = 0; i < CALL_WORDS[call]; i++) {
+			UPLOAD_FLOATS.put(i, Float.intBitsToFloat(shadow[off + i]));
+			UPLOAD_INTS.put(i, shadow[off + i]);
+		}
+		UPLOAD_FLOATS.limit(CALL_WORDS[call]);
+		UPLOAD_INTS.limit(CALL_WORDS[call]);
+		if (GLFeature.PROGRAM_UNIFORMS.available()) {
+			final int id = prog.getID();
+			switch (call) {
+			case CALL_FLOAT1:
+				GL41.glProgramUniform1fv(id, loc, UPLOAD_FLOATS);
+				break;
+			case CALL_FLOAT2:
+				GL41.glProgramUniform2fv(id, loc, UPLOAD_FLOATS);
+				break;
+			case CALL_FLOAT3:
+				GL41.glProgramUniform3fv(id, loc, UPLOAD_FLOATS);
+				break;
+			case CALL_FLOAT4:
+				GL41.glProgramUniform4fv(id, loc, UPLOAD_FLOATS);
+				break;
+			case CALL_INT1:
+				GL41.glProgramUniform1iv(id, loc, UPLOAD_INTS);
+				break;
+			case CALL_INT2:
+				GL41.glProgramUniform2iv(id, loc, UPLOAD_INTS);
+				break;
+			case CALL_INT3:
+				GL41.glProgramUniform3iv(id, loc, UPLOAD_INTS);
+				break;
+			case CALL_INT4:
+				GL41.glProgramUniform4iv(id, loc, UPLOAD_INTS);
+				break;
+			case CALL_MATRIX3:
+				GL41.glProgramUniformMatrix3fv(id, loc, false, UPLOAD_FLOATS);
+				break;
+			case CALL_MATRIX34:
+				GL41.glProgramUniformMatrix3x4fv(id, loc, false, UPLOAD_FLOATS);
+				break;
+			case CALL_MATRIX4:
+			case CALL_MATRIX4_TRANSPOSED:
+				GL41.glProgramUniformMatrix4fv(id, loc, call == CALL_MATRIX4_TRANSPOSED, UPLOAD_FLOATS);
+				break;
+			default:
+				return;
+			}
+		} else {
+			switch (call) {
+			case CALL_FLOAT1:
+				GL20.glUniform1fv(loc, UPLOAD_FLOATS);
+				break;
+			case CALL_FLOAT2:
+				GL20.glUniform2fv(loc, UPLOAD_FLOATS);
+				break;
+			case CALL_FLOAT3:
+				GL20.glUniform3fv(loc, UPLOAD_FLOATS);
+				break;
+			case CALL_FLOAT4:
+				GL20.glUniform4fv(loc, UPLOAD_FLOATS);
+				break;
+			case CALL_INT1:
+				GL20.glUniform1iv(loc, UPLOAD_INTS);
+				break;
+			case CALL_INT2:
+				GL20.glUniform2iv(loc, UPLOAD_INTS);
+				break;
+			case CALL_INT3:
+				GL20.glUniform3iv(loc, UPLOAD_INTS);
+				break;
+			case CALL_INT4:
+				GL20.glUniform4iv(loc, UPLOAD_INTS);
+				break;
+			case CALL_MATRIX3:
+				GL20.glUniformMatrix3fv(loc, false, UPLOAD_FLOATS);
+				break;
+			case CALL_MATRIX34:
+				GL21.glUniformMatrix3x4fv(loc, false, UPLOAD_FLOATS);
+				break;
+			case CALL_MATRIX4:
+			case CALL_MATRIX4_TRANSPOSED:
+				GL20.glUniformMatrix4fv(loc, call == CALL_MATRIX4_TRANSPOSED, UPLOAD_FLOATS);
+				break;
+			default:
+				return;
+			}
+		}
+		FrameCounter.increment(FrameParam.UNIFORM_UPLOADS);
 	}
 
 	public void vector(float x, float y) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC2)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC2) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x, y);
-			else
+			else if (stage(CALL_FLOAT2, x, y))
 				GL20.glUniform2f(location[activeIndex], x, y);
-		else
+		} else
 			typeMismatch("float vec2");
 	}
 
 	public void vector(float x, float y, float z) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC3)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC3) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x, y, z);
-			else
+			else if (stage(CALL_FLOAT3, x, y, z))
 				GL20.glUniform3f(location[activeIndex], x, y, z);
-		else
+		} else
 			typeMismatch("float vec3");
 	}
 
 	public void vector(float x, float y, float z, float w) {
-		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC4)
+		if (!defined())
+			return;
+		if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC4) {
 			if (uniformBlockIndex >= 0)
 				commitToUBO(x, y, z, w);
-			else
+			else if (stage(CALL_FLOAT4, x, y, z, w))
 				GL20.glUniform4f(location[activeIndex], x, y, z, w);
-		else
+		} else
 			typeMismatch("float vec4");
 	}
 
@@ -359,32 +708,34 @@ public final class ShaderUniform {
 	}
 
 	public void vector(VectorBuff v) {
+		if (!defined())
+			return;
 		switch (v.dimension()) {
 		case 4:
-			if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC4)
+			if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC4) {
 				if (uniformBlockIndex >= 0)
 					commitFloatsToUBO(v.getAccessor());
-				else
+				else if (stage(CALL_FLOAT4, v.getAccessor()))
 					GL20.glUniform4fv(location[activeIndex], v.getAccessor());
-			else
+			} else
 				typeMismatch("float vec4");
 			break;
 		case 3:
-			if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC3)
+			if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC3) {
 				if (uniformBlockIndex >= 0)
 					commitFloatsToUBO(v.getAccessor());
-				else
+				else if (stage(CALL_FLOAT3, v.getAccessor()))
 					GL20.glUniform3fv(location[activeIndex], v.getAccessor());
-			else
+			} else
 				typeMismatch("float vec3");
 			break;
 		case 2:
-			if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC2)
+			if (!WarningManager.GLSL_UNIFORM_TYPE_WATCHING || type == GL20.GL_FLOAT_VEC2) {
 				if (uniformBlockIndex >= 0)
 					commitFloatsToUBO(v.getAccessor());
-				else
+				else if (stage(CALL_FLOAT2, v.getAccessor()))
 					GL20.glUniform2fv(location[activeIndex], v.getAccessor());
-			else
+			} else
 				typeMismatch("float vec2");
 			break;
 		case 1:
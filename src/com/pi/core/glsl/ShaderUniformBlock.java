@@ -1,15 +1,10 @@
 package com.pi.core.glsl;
 
-import org.lwjgl.opengl.GL30;
 import org.lwjgl.opengl.GL31;
 
-import com.pi.core.buffers.BufferAccessHint;
-import com.pi.core.buffers.BufferModifyHint;
 import com.pi.core.buffers.BufferType;
 import com.pi.core.buffers.GLGenericBuffer;
-import com.pi.core.debug.FrameCounter;
-import com.pi.core.debug.FrameCounter.FrameParam;
-import com.pi.util.ReferenceTable;
+import com.pi.core.util.MemoryBarriers;
 
 public class ShaderUniformBlock {
 	/**
@@ -19,38 +14,62 @@ public class ShaderUniformBlock {
 	public static final boolean PERSISTENT_BUFFER_STATE = true;
 	/**
 	 * If true allow the usage of the ShaderUniform family of functions to
-	 * assign to uniform blocks.
+	 * assign to uniform blocks. {@link UniformBlockBuffer} writes blocks
+	 * without it, and can be shared between programs.
 	 */
 	public static final boolean ALLOW_UTILITY_ACCESS = false;
 
-	private static final ReferenceTable<GLGenericBuffer> bound_ubos = new ReferenceTable<>(128);
-
-	private final int blockIndex;
 	private final String blockName;
-	private final int length;
+	private final int binding;
+	private int blockIndex;
+	private int length;
 	private GLGenericBuffer bound;
-
-	public int dirtyMin;
-
-	public int dirtyMax;
+	private int boundOffset = 0;
+	private boolean ranged = false;
 
 	public ShaderUniformBlock(ShaderProgram parent, int blockIndex, String blockName) {
 		this.blockName = blockName;
 		this.blockIndex = blockIndex;
+		this.binding = UniformBindings.binding(blockName);
 
 		this.length = GL31.glGetActiveUniformBlocki(parent.getID(), blockIndex, GL31.GL_UNIFORM_BLOCK_DATA_SIZE);
-		GL31.glUniformBlockBinding(parent.getID(), blockIndex, blockIndex);
+		GL31.glUniformBlockBinding(parent.getID(), blockIndex, binding);
 
 		// System.out.println(
 		// "Shader uniform block by the name of " + blockName + " [index=" +
 		// blockIndex + ", len=" + length + "]");
 	}
 
-	public GLGenericBuffer bound() {
-		if (bound == null) {
-			bound(new GLGenericBuffer(length).type(BufferType.UNIFORM).modify(BufferModifyHint.STREAM)
-					.access(BufferAccessHint.DRAW).gpuAlloc());
+	/**
+	 * Takes the index and size of a block of the same name from a relinked
+	 * program. The bound buffer is kept if it's still large enough.
+	 */
+	void adopt(ShaderUniformBlock fresh) {
+		this.blockIndex = fresh.blockIndex;
+		this.length = fresh.length;
+		if (bound != null && bound.size() < boundOffset + length) {
+			bound = null;
+			boundOffset = 0;
+			ranged = false;
 		}
+	}
+
+	/**
+	 * @return the uniform buffer binding point, shared by every block with
+	 *         this name
+	 * @see UniformBindings
+	 */
+	public int binding() {
+		return binding;
+	}
+
+	/**
+	 * @return the buffer backing this block. If none was given this is the
+	 *         buffer shared by blocks of the same name.
+	 */
+	public GLGenericBuffer bound() {
+		if (bound == null)
+			bound(UniformBindings.buffer(blockName, length));
 		return bound;
 	}
 
@@ -60,15 +79,52 @@ public class ShaderUniformBlock {
 		if (b.size() < length)
 			throw new IllegalArgumentException("Invalid buffer length.");
 		this.bound = b;
+		this.boundOffset = 0;
+		this.ranged = false;
+	}
+
+	/**
+	 * Backs this block with a range of a larger buffer, bound with
+	 * glBindBufferRange, so many blocks can share one buffer.
+	 *
+	 * @param offset
+	 *            the byte offset of the range; a multiple of
+	 *            {@link UniformBindings#offsetAlignment()}
+	 */
+	public void bound(GLGenericBuffer b, int offset) {
+		if (b.type() != BufferType.UNIFORM)
+			throw new IllegalArgumentException("Invalid buffer type.");
+		if (offset < 0 || offset % UniformBindings.offsetAlignment() != 0)
+			throw new IllegalArgumentException(
+					"Range offset " + offset + " isn't aligned to " + UniformBindings.offsetAlignment() + " bytes.");
+		if (b.size() < offset + length)
+			throw new IllegalArgumentException("Invalid buffer length.");
+		this.bound = b;
+		this.boundOffset = offset;
+		this.ranged = true;
+	}
+
+	/**
+	 * @return the byte offset of this block in its buffer
+	 */
+	public int boundOffset() {
+		return boundOffset;
 	}
 
 	public int length() {
 		return length;
 	}
 
+	/**
+	 * Marks bytes of this block as changed.
+	 *
+	 * @param min
+	 *            the first byte, relative to the start of the block
+	 * @param max
+	 *            the byte after the last, relative to the start of the block
+	 */
 	public void markDirty(int min, int max) {
-		this.dirtyMin = Math.min(dirtyMin, min);
-		this.dirtyMax = Math.max(dirtyMax, max);
+		bound().markDirty(boundOffset + min, boundOffset + max);
 	}
 
 	public String name() {
@@ -76,28 +132,18 @@ public class ShaderUniformBlock {
 	}
 
 	public void recheckBinding() {
-		if (blockIndex < bound_ubos.size()) {
-			if (bound_ubos.isAttached(blockIndex, bound))
-				return;
-			bound_ubos.attach(blockIndex, bound);
-		}
-		GL30.glBindBufferBase(GL31.GL_UNIFORM_BUFFER, blockIndex, bound.getID());
-		FrameCounter.increment(FrameParam.UNIFORM_BUFFER_INDEXED);
+		GLGenericBuffer b = bound();
+		MemoryBarriers.require(b, BufferType.UNIFORM.barrierBit());
+		UniformBindings.bind(binding, b, boundOffset, ranged ? length : -1);
 	}
 
 	public void upload() {
 		bound().gpuUpload();
-		dirtyMin = Integer.MAX_VALUE;
-		dirtyMax = Integer.MIN_VALUE;
 	}
 
 	public void uploadIfNeeded() {
 		if (ShaderUniformBlock.PERSISTENT_BUFFER_STATE) {
-			if (dirtyMin >= dirtyMax)
-				return;
-			bound().gpuUploadPartial(dirtyMin, dirtyMax);
-			dirtyMin = Integer.MAX_VALUE;
-			dirtyMax = Integer.MIN_VALUE;
+			bound().gpuUploadDirty();
 		} else {
 			upload();
 		}
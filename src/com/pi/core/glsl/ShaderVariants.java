@@ -0,0 +1,321 @@
+package com.pi.core.glsl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.lwjgl.opengl.GL20;
+
+import com.pi.core.GLException;
+import com.pi.io.FileUtil;
+
+/**
+ * Programs built from the same sources with different defines, such as
+ * shadows on or off, or the number of lights. Each {@link Key} names one
+ * variant. A variant is compiled the first time it's requested and kept in a
+ * bounded cache; when the cache is full the least recently used variant is
+ * freed with {@link ShaderProgram#gpuFree()}.
+ *
+ * <pre>
+ * ShaderVariants lit = new ShaderVariants(32).joined(src);
+ * lit.prewarm(compiler, Key.BASE, Key.BASE.with("SHADOWS"));
+ * lit.bind(Key.BASE.with("SHADOWS").with("LIGHTS", 4));
+ * </pre>
+ */
+public class ShaderVariants {
+	private final int capacity;
+	// Null types mark joined sources.
+	private final List<Integer> types = new ArrayList<>();
+	private final List<String> sources = new ArrayList<>();
+	private final LinkedHashMap<Key, ShaderProgram> cache;
+	private final Map<Key, Future<ShaderProgram>> prewarming = new HashMap<>();
+	private ShaderCompiler compiler;
+	private int compiles, evictions;
+
+	private static String read(InputStream src) {
+		try {
+			return FileUtil.readStreamFully(src);
+		} catch (IOException e) {
+			throw new GLException("Shader stream load failure", e);
+		}
+	}
+
+	private static ShaderProgram result(Key key, Future<ShaderProgram> pending) {
+		try {
+			return pending.get();
+		} catch (ExecutionException e) {
+			throw new GLException("Shader variant " + key + " failed to compile", e.getCause());
+		} catch (InterruptedException e) {
+			throw new GLException(e);
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            the most variants kept allocated at once
+	 */
+	public ShaderVariants(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("A variant cache needs room for at least one program.");
+		this.capacity = capacity;
+		this.cache = new LinkedHashMap<Key, ShaderProgram>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<Key, ShaderProgram> eldest) {
+				if (size() <= ShaderVariants.this.capacity)
+					return false;
+				eldest.getValue().gpuFree();
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	public ShaderVariants attach(int type, InputStream src) {
+		return attach(type, read(src));
+	}
+
+	/**
+	 * Adds a stage to every variant. Variants that are already compiled keep
+	 * their old stages.
+	 */
+	public ShaderVariants attach(int type, String src) {
+		types.add(type);
+		sources.add(src);
+		return this;
+	}
+
+	/**
+	 * Gets a variant and binds it.
+	 *
+	 * @see #get(Key)
+	 */
+	public ShaderProgram bind(Key key) {
+		ShaderProgram program = get(key);
+		program.bind();
+		return program;
+	}
+
+	private ShaderProgram build(Key key) {
+		ShaderProgram program = new ShaderProgram().defines(key.defines());
+		for (int i = 0; i < types.size(); i++) {
+			if (types.get(i) == null)
+				program.joined(sources.get(i));
+			else
+				program.attach(types.get(i), sources.get(i));
+		}
+		return program;
+	}
+
+	/**
+	 * @return the number of variants currently allocated
+	 */
+	public int cached() {
+		return cache.size();
+	}
+
+	/**
+	 * Frees every variant. Must be called on the GL thread.
+	 */
+	public void clear() {
+		poll();
+		if (!prewarming.isEmpty()) {
+			compiler.finish();
+			poll();
+		}
+		for (ShaderProgram program : cache.values())
+			program.gpuFree();
+		cache.clear();
+	}
+
+	/**
+	 * @return the number of variants compiled, including recompiles after
+	 *         eviction
+	 */
+	public int compiles() {
+		return compiles;
+	}
+
+	/**
+	 * @return the number of variants freed to make room for others
+	 */
+	public int evictions() {
+		return evictions;
+	}
+
+	public ShaderVariants fragment(InputStream src) {
+		return attach(GL20.GL_FRAGMENT_SHADER, src);
+	}
+
+	/**
+	 * Gets a variant, compiling and linking it if it isn't cached. If the
+	 * variant is being prewarmed this polls the compiler until that variant is
+	 * done. Must be called on the GL thread.
+	 */
+	public ShaderProgram get(Key key) {
+		ShaderProgram program = cache.get(key);
+		if (program != null)
+			return program;
+		Future<ShaderProgram> pending = prewarming.remove(key);
+		if (pending != null) {
+			// Wait for this variant only, not everything the compiler holds.
+			while (!pending.isDone())
+				if (!compiler.poll())
+					Thread.yield();
+			program = result(key, pending);
+		} else {
+			program = build(key).link();
+		}
+		compiles++;
+		cache.put(key, program);
+		return program;
+	}
+
+	public ShaderVariants joined(InputStream src) {
+		return joined(read(src));
+	}
+
+	/**
+	 * Adds several stages from one source to every variant.
+	 *
+	 * @see ShaderProgram#joined(String)
+	 */
+	public ShaderVariants joined(String src) {
+		types.add(null);
+		sources.add(src);
+		return this;
+	}
+
+	/**
+	 * Moves prewarmed variants that have finished linking into the cache. Call
+	 * on the GL thread after {@link ShaderCompiler#poll()}.
+	 */
+	public void poll() {
+		Iterator<Entry<Key, Future<ShaderProgram>>> it = prewarming.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<Key, Future<ShaderProgram>> e = it.next();
+			if (!e.getValue().isDone())
+				continue;
+			it.remove();
+			try {
+				cache.put(e.getKey(), result(e.getKey(), e.getValue()));
+				compiles++;
+			} catch (GLException ex) {
+				// Reported again when the variant is requested.
+				System.err.println(ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Queues variants to be compiled in the background, so they don't stall
+	 * the first frame that uses them. Prewarmed variants count against the
+	 * capacity once they're cached.
+	 *
+	 * @param compiler
+	 *            the compiler to submit to; the caller keeps polling it
+	 */
+	public void prewarm(ShaderCompiler compiler, Key... keys) {
+		if (this.compiler != null && this.compiler != compiler && !prewarming.isEmpty())
+			throw new IllegalStateException("Variants are already being prewarmed by another compiler.");
+		this.compiler = compiler;
+		for (Key key : keys) {
+			if (cache.containsKey(key) || prewarming.containsKey(key))
+				continue;
+			ShaderCompiler.Job job = compiler.program(new ShaderProgram().defines(key.defines()));
+			for (int i = 0; i < types.size(); i++) {
+				if (types.get(i) == null)
+					job.joined(sources.get(i));
+				else
+					job.stage(types.get(i), sources.get(i));
+			}
+			prewarming.put(key, job.submit());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ShaderVariants[cached=" + cache.size() + "/" + capacity + ", prewarming=" + prewarming.size()
+				+ ", compiles=" + compiles + ", evictions=" + evictions + "]";
+	}
+
+	public ShaderVariants vertex(InputStream src) {
+		return attach(GL20.GL_VERTEX_SHADER, src);
+	}
+
+	/**
+	 * An immutable set of defines naming one variant. Keys with the same
+	 * defines are equal regardless of the order they were added in.
+	 */
+	public static final class Key {
+		public static final Key BASE = new Key(new TreeMap<String, String>());
+
+		private final SortedMap<String, String> defines;
+		private final int hash;
+
+		private Key(SortedMap<String, String> defines) {
+			this.defines = Collections.unmodifiableSortedMap(defines);
+			this.hash = defines.hashCode();
+		}
+
+		/**
+		 * @return the defines of this variant, sorted by name
+		 */
+		public Map<String, String> defines() {
+			return defines;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).hash == hash && ((Key) o).defines.equals(defines);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return "Key" + defines;
+		}
+
+		/**
+		 * Defines a feature flag as <code>1</code>, for use with both
+		 * <code>#ifdef</code> and <code>#if</code>.
+		 */
+		public Key with(String name) {
+			return with(name, "1");
+		}
+
+		public Key with(String name, int value) {
+			return with(name, "(" + value + ")");
+		}
+
+		public Key with(String name, String value) {
+			SortedMap<String, String> copy = new TreeMap<>(defines);
+			copy.put(name.trim(), value.trim());
+			return new Key(copy);
+		}
+
+		public Key without(String name) {
+			if (!defines.containsKey(name.trim()))
+				return this;
+			SortedMap<String, String> copy = new TreeMap<>(defines);
+			copy.remove(name.trim());
+			return new Key(copy);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package com.pi.core.glsl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.pi.core.GLException;
+
+/**
+ * Reloads shaders when their source files change, for tuning without
+ * restarting. Stage files are attached through this watcher instead of as
+ * streams, and include files are registered through it with the
+ * {@link ShaderPreprocessor}. When a file changes, only the programs that use
+ * it, directly or through includes, are relinked; see
+ * {@link ShaderProgram#reload()}.
+ *
+ * <pre>
+ * ShaderWatcher watcher = new ShaderWatcher();
+ * watcher.include("lighting", new File("shaders/lighting.glsl"));
+ * ShaderProgram p = watcher.joined(new ShaderProgram(), new File("shaders/lit.glsl"));
+ * p.gpuAlloc().link();
+ * // once per frame, on the GL thread:
+ * watcher.poll();
+ * </pre>
+ */
+public class ShaderWatcher implements Closeable {
+	private final WatchService service;
+	private final Set<Path> directories = new HashSet<>();
+	private final Map<Path, List<Input>> inputs = new HashMap<>();
+	private final Map<Path, String> includes = new HashMap<>();
+	private final Set<ShaderProgram> programs = new LinkedHashSet<>();
+	private int reloads, failures;
+
+	private static Path path(File file) {
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	private static String read(Path path) {
+		try {
+			return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.err.println("Unable to read shader source " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	public ShaderWatcher() {
+		try {
+			this.service = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			throw new GLException("Unable to watch shader sources", e);
+		}
+	}
+
+	/**
+	 * Reads a stage from a file and attaches it to a program.
+	 */
+	public ShaderProgram attach(ShaderProgram program, int type, File file) {
+		Path path = path(file);
+		String src = read(path);
+		if (src == null)
+			throw new IllegalArgumentException("Unable to read " + file);
+		program.attach(type, src);
+		watch(path, program);
+		return program;
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+
+	/**
+	 * @return the number of reloads that failed, leaving the old program in
+	 *         use
+	 */
+	public int failures() {
+		return failures;
+	}
+
+	/**
+	 * Reads an include from a file and registers it with the
+	 * {@link ShaderPreprocessor}.
+	 */
+	public void include(String name, File file) {
+		Path path = path(file);
+		String src = read(path);
+		if (src == null)
+			throw new IllegalArgumentException("Unable to read " + file);
+		ShaderPreprocessor.registerInclude(name, src);
+		includes.put(path, name);
+		register(path.getParent());
+	}
+
+	/**
+	 * Reads several stages from a file and attaches them to a program.
+	 *
+	 * @see ShaderProgram#joined(String)
+	 */
+	public ShaderProgram joined(ShaderProgram program, File file) {
+		Path path = path(file);
+		String src = read(path);
+		if (src == null)
+			throw new IllegalArgumentException("Unable to read " + file);
+		program.joined(src);
+		watch(path, program);
+		return program;
+	}
+
+	/**
+	 * Applies file changes and relinks the affected programs. Programs that
+	 * aren't allocated are skipped. Must be called on the GL thread.
+	 *
+	 * @return the number of programs relinked
+	 */
+	public int poll() {
+		Set<Path> changed = new HashSet<>();
+		WatchKey key;
+		while ((key = service.poll()) != null) {
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					changed.addAll(inputs.keySet());
+					changed.addAll(includes.keySet());
+				} else {
+					changed.add(dir.resolve((Path) event.context()));
+				}
+			}
+			key.reset();
+		}
+		if (changed.isEmpty())
+			return 0;
+
+		Set<String> changedIncludes = new HashSet<>();
+		Set<ShaderProgram> dirty = new LinkedHashSet<>();
+		for (Path path : changed) {
+			String include = includes.get(path);
+			List<Input> stages = inputs.get(path);
+			if (include == null && stages == null)
+				continue;
+			String src = read(path);
+			if (src == null)
+				continue;
+			if (include != null) {
+				ShaderPreprocessor.registerInclude(include, src);
+				changedIncludes.add(include);
+			}
+			if (stages != null) {
+				for (Input in : stages) {
+					in.program.input(in.index, src);
+					dirty.add(in.program);
+				}
+			}
+		}
+		for (ShaderProgram program : programs)
+			for (String include : changedIncludes)
+				if (program.includes().contains(include))
+					dirty.add(program);
+
+		int relinked = 0;
+		for (ShaderProgram program : dirty) {
+			if (!program.allocated())
+				continue;
+			if (program.reload())
+				relinked++;
+			else
+				failures++;
+		}
+		reloads += relinked;
+		return relinked;
+	}
+
+	private void register(Path dir) {
+		if (!directories.add(dir))
+			return;
+		try {
+			dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			directories.remove(dir);
+			throw new GLException("Unable to watch " + dir, e);
+		}
+	}
+
+	/**
+	 * @return the number of programs relinked since this watcher was made
+	 */
+	public int reloads() {
+		return reloads;
+	}
+
+	@Override
+	public String toString() {
+		return "ShaderWatcher[files=" + (inputs.size() + includes.size()) + ", programs=" + programs.size()
+				+ ", reloads=" + reloads + ", failures=" + failures + "]";
+	}
+
+	/**
+	 * Reloads a program when a watched include it uses changes, even if none
+	 * of its stages came from a watched file.
+	 */
+	public void track(ShaderProgram program) {
+		programs.add(program);
+	}
+
+	/**
+	 * Stops reloading a program, such as before freeing it.
+	 */
+	public void untrack(ShaderProgram program) {
+		programs.remove(program);
+		for (List<Input> stages : inputs.values())
+			for (int i = stages.size() - 1; i >= 0; i--)
+				if (stages.get(i).program == program)
+					stages.remove(i);
+	}
+
+	private void watch(Path path, ShaderProgram program) {
+		List<Input> stages = inputs.get(path);
+		if (stages == null)
+			inputs.put(path, stages = new ArrayList<>(1));
+		stages.add(new Input(program, program.inputCount() - 1));
+		programs.add(program);
+		register(path.getParent());
+	}
+
+	/**
+	 * One attach or joined call made from a watched file.
+	 */
+	private static class Input {
+		private final ShaderProgram program;
+		private final int index;
+
+		private Input(ShaderProgram program, int index) {
+			this.program = program;
+			this.index = index;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.pi.core.glsl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+
+import com.pi.core.buffers.BufferAccessHint;
+import com.pi.core.buffers.BufferFreeListener;
+import com.pi.core.buffers.BufferModifyHint;
+import com.pi.core.buffers.BufferType;
+import com.pi.core.buffers.GLGenericBuffer;
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.util.GLIdentifiable;
+
+/**
+ * Uniform buffer binding points, shared by block name across programs. Every
+ * block named "Camera" uses the same binding point, and unless it's given its
+ * own buffer, the same buffer, so switching programs doesn't rebind it.
+ * <p>
+ * Also tracks what is bound to each point, so a buffer or range that is
+ * already bound isn't bound again.
+ */
+public class UniformBindings {
+	private static final Map<String, Integer> points = new HashMap<>();
+	private static final Map<String, GLGenericBuffer> buffers = new HashMap<>();
+	private static int maxBindings = -1, offsetAlignment = -1;
+	// What is bound to each point; a size of -1 is the whole buffer.
+	private static int[] boundIDs, boundOffsets, boundSizes;
+
+	static {
+		GLGenericBuffer.addFreeListener(new BufferFreeListener() {
+			@Override
+			public void freed(GLIdentifiable buffer) {
+				forget(buffer);
+			}
+		});
+	}
+
+	/**
+	 * Binds a buffer, or a range of one, to a binding point unless it is
+	 * already bound there.
+	 *
+	 * @param size
+	 *            the bytes to bind starting at offset, or -1 to bind the whole
+	 *            buffer
+	 */
+	public static void bind(int point, GLGenericBuffer buffer, int offset, int size) {
+		final int id = buffer.getID();
+		if (boundIDs == null) {
+			boundIDs = new int[maxBindings()];
+			boundOffsets = new int[boundIDs.length];
+			boundSizes = new int[boundIDs.length];
+		}
+		if (boundIDs[point] == id && boundOffsets[point] == offset && boundSizes[point] == size)
+			return;
+		if (size < 0)
+			GL30.glBindBufferBase(GL31.GL_UNIFORM_BUFFER, point, id);
+		else
+			GL30.glBindBufferRange(GL31.GL_UNIFORM_BUFFER, point, id, offset, size);
+		// Indexed binds also replace the generic binding.
+		GLGenericBuffer.forgetBinding(BufferType.UNIFORM);
+		boundIDs[point] = id;
+		boundOffsets[point] = offset;
+		boundSizes[point] = size;
+		FrameCounter.increment(FrameParam.UNIFORM_BUFFER_INDEXED);
+	}
+
+	/**
+	 * @return the binding point for blocks with the given name, assigning the
+	 *         next free one the first time a name is seen
+	 * @throws IllegalStateException
+	 *             if every binding point is taken
+	 */
+	public static int binding(String blockName) {
+		Integer point = points.get(blockName);
+		if (point == null) {
+			if (points.size() >= maxBindings())
+				throw new IllegalStateException("Out of uniform buffer binding points; " + maxBindings()
+						+ " are in use and " + blockName + " needs another.");
+			points.put(blockName, point = points.size());
+		}
+		return point;
+	}
+
+	/**
+	 * @return the buffer shared by blocks with the given name that aren't
+	 *         given their own, grown to at least the given length
+	 */
+	public static GLGenericBuffer buffer(String blockName, int length) {
+		GLGenericBuffer buffer = buffers.get(blockName);
+		if (buffer == null) {
+			buffer = new GLGenericBuffer(length).type(BufferType.UNIFORM).modify(BufferModifyHint.STREAM)
+					.access(BufferAccessHint.DRAW).gpuAlloc();
+			buffers.put(blockName, buffer);
+		} else if (buffer.size() < length) {
+			// Blocks using the buffer keep their data, now at the front of a
+			// larger buffer.
+			final int keep = buffer.size();
+			byte[] tmp = new byte[keep];
+			buffer.get(0, tmp, 0, keep);
+			buffer.resize(length, 0);
+			buffer.put(0, tmp, 0, keep);
+			buffer.markDirty(0, keep);
+			forget(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Forgets the binding points a buffer is bound to, such as after it's
+	 * freed or its storage is respecified, so it's bound again when next
+	 * used. Called for every freed buffer, since GL reuses their names.
+	 */
+	public static void forget(GLIdentifiable buffer) {
+		if (boundIDs == null)
+			return;
+		final int id = buffer.getID();
+		for (int i = 0; i < boundIDs.length; i++)
+			if (boundIDs[i] == id)
+				boundIDs[i] = 0;
+	}
+
+	/**
+	 * @return the number of uniform buffer binding points
+	 */
+	public static int maxBindings() {
+		if (maxBindings < 0)
+			maxBindings = GL11.glGetInteger(GL31.GL_MAX_UNIFORM_BUFFER_BINDINGS);
+		return maxBindings;
+	}
+
+	/**
+	 * @return the alignment required of range offsets passed to
+	 *         {@link #bind(int, GLGenericBuffer, int, int)}
+	 */
+	public static int offsetAlignment() {
+		if (offsetAlignment < 0)
+			offsetAlignment = GL11.glGetInteger(GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+		return offsetAlignment;
+	}
+
+	/**
+	 * Forgets everything bound, for when the context is recreated.
+	 */
+	public static void reset() {
+		for (GLGenericBuffer buffer : buffers.values())
+			buffer.gpuFree();
+		buffers.clear();
+		maxBindings = -1;
+		offsetAlignment = -1;
+		boundIDs = boundOffsets = boundSizes = null;
+	}
+}
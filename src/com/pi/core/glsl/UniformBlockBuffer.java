@@ -0,0 +1,415 @@
+package com.pi.core.glsl;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL21;
+
+import com.pi.core.buffers.BufferAccessHint;
+import com.pi.core.buffers.BufferModifyHint;
+import com.pi.core.buffers.BufferType;
+import com.pi.core.buffers.GLGenericBuffer;
+import com.pi.core.debug.WarningManager;
+import com.pi.core.texture.Texture;
+import com.pi.core.util.GPUObject;
+import com.pi.math.matrix.Matrix3;
+import com.pi.math.matrix.Matrix34;
+import com.pi.math.matrix.Matrix4;
+import com.pi.math.vector.Vector;
+
+/**
+ * A uniform buffer written through a {@link UniformBlockLayout}, which can
+ * back the block of the same layout in any number of programs. Members are
+ * written by slot, found once with {@link #slot(String)}; writes don't
+ * allocate, and only the bytes that changed are sent with the next upload.
+ * <p>
+ * A buffer can also hold many records of the layout, each aligned for
+ * glBindBufferRange, as a per-frame arena for per-object data: each object
+ * allocates a record and writes it, the arena is uploaded once, and each draw
+ * selects its record with {@link #use(ShaderProgram, String, int)} instead of
+ * setting uniforms. Each upload of an arena takes fresh storage and sends
+ * every allocated record, so records that weren't allocated since the last
+ * reset must not be used.
+ *
+ * <pre>
+ * UniformBlockBuffer camera = new UniformBlockBuffer(UniformBlockLayout.std140()
+ * 		.add("view", GL20.GL_FLOAT_MAT4).add("eye", GL20.GL_FLOAT_VEC3).build()).gpuAlloc();
+ * final int view = camera.slot("view"), eye = camera.slot("eye");
+ * camera.attach(terrain, "Camera").attach(water, "Camera");
+ * // each frame:
+ * camera.matrix(view, viewMatrix).vector(eye, x, y, z).gpuUpload();
+ *
+ * UniformBlockBuffer objects = new UniformBlockBuffer(objectLayout, 1024).gpuAlloc();
+ * // each frame:
+ * objects.reset();
+ * for (Thing t : things)
+ * 	t.record = objects.allocate().matrix(model, t.transform).record();
+ * objects.gpuUpload();
+ * for (Thing t : things) {
+ * 	objects.use(program, "Object", t.record);
+ * 	program.commitData();
+ * 	t.draw();
+ * }
+ * </pre>
+ */
+public class UniformBlockBuffer extends GPUObject<UniformBlockBuffer> {
+	private final UniformBlockLayout layout;
+	private final GLGenericBuffer buffer;
+	private int stride;
+	private ByteBuffer data;
+	private boolean uploaded = false;
+	private int records, used = 0;
+	// The selected record and its byte offset.
+	private int record = 0, base = 0;
+
+	// The byte span changed by the write in progress.
+	private int changedMin, changedMax;
+
+	/**
+	 * @return the layout size rounded up to the range offset alignment
+	 */
+	private static int alignedStride(UniformBlockLayout layout) {
+		final int align = UniformBindings.offsetAlignment();
+		return (layout.size() + align - 1) / align * align;
+	}
+
+	public UniformBlockBuffer(UniformBlockLayout layout) {
+		this(layout, 1);
+	}
+
+	/**
+	 * @param records
+	 *            the number of records to make room for; the buffer grows if
+	 *            more are allocated
+	 */
+	public UniformBlockBuffer(UniformBlockLayout layout, int records) {
+		if (records < 1)
+			throw new IllegalArgumentException("A uniform block buffer needs room for at least one record.");
+		this.layout = layout;
+		this.records = records;
+		// A single record is packed, and only aligned once the buffer grows.
+		this.stride = records > 1 ? alignedStride(layout) : layout.size();
+		this.buffer = new GLGenericBuffer(stride * records).type(BufferType.UNIFORM)
+				.modify(records > 1 ? BufferModifyHint.STREAM : BufferModifyHint.DYNAMIC)
+				.access(BufferAccessHint.DRAW);
+		// Merge changes in nearby records instead of sending each separately.
+		if (records > 1)
+			buffer.dirtyGap(stride);
+		this.data = buffer.getBacking();
+	}
+
+	/**
+	 * Takes the next free record and selects it for writing, growing the
+	 * buffer if every record is in use.
+	 */
+	public UniformBlockBuffer allocate() {
+		if (used == records)
+			grow(records * 2);
+		return record(used++);
+	}
+
+	/**
+	 * Makes this buffer back a block of a linked program. The block must
+	 * have the same layout as this buffer for the members it declares. If
+	 * this buffer holds several records, the block is backed by the selected
+	 * one.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the program has no such block, or its layout differs
+	 */
+	public UniformBlockBuffer attach(ShaderProgram program, String blockName) {
+		ShaderUniformBlock block = program.uniformBlock(blockName);
+		if (block == null)
+			throw new IllegalArgumentException("No uniform block named " + blockName);
+		if (!layout.compatible(UniformBlockLayout.query(program, blockName)))
+			throw new IllegalArgumentException("Uniform block " + blockName + " doesn't match " + layout);
+		if (records == 1)
+			block.bound(buffer);
+		else
+			block.bound(buffer, base);
+		return this;
+	}
+
+	private void begin(int slot, int type) {
+		if (WarningManager.GLSL_UNIFORM_TYPE_WATCHING) {
+			final int field = layout.slotField(slot);
+			if (layout.type(field) != type)
+				throw new IllegalStateException(
+						"Uniform block member " + layout.name(field) + " isn't of type " + type + ".");
+		}
+		changedMin = Integer.MAX_VALUE;
+		changedMax = -1;
+	}
+
+	public UniformBlockBuffer bool(int slot, boolean b) {
+		begin(slot, GL20.GL_BOOL);
+		put(layout.slotOffset(slot), b ? 1 : 0);
+		return end();
+	}
+
+	public GLGenericBuffer buffer() {
+		return buffer;
+	}
+
+	private UniformBlockBuffer end() {
+		if (changedMax >= 0)
+			buffer.markDirty(changedMin, changedMax);
+		return this;
+	}
+
+	public UniformBlockBuffer floating(int slot, float x) {
+		begin(slot, GL11.GL_FLOAT);
+		put(layout.slotOffset(slot), Float.floatToRawIntBits(x));
+		return end();
+	}
+
+	@Override
+	protected void gpuAllocInternal() {
+		uploaded = false;
+		buffer.gpuAlloc();
+	}
+
+	@Override
+	protected void gpuFreeInternal() {
+		uploaded = false;
+		buffer.gpuFree();
+	}
+
+	/**
+	 * Uploads the whole buffer the first time. After that a single record
+	 * sends only the bytes that changed, while an arena of records orphans
+	 * the storage draws of the last frame may still read, and sends the
+	 * records allocated since the last reset in one call.
+	 */
+	@Override
+	protected void gpuUploadInternal() {
+		if (!uploaded) {
+			buffer.gpuUpload();
+		} else if (records > 1) {
+			buffer.orphan();
+			buffer.markDirty(0, Math.max(used, 1) * stride);
+			buffer.gpuUploadDirty();
+		} else {
+			buffer.gpuUploadDirty();
+		}
+		uploaded = true;
+	}
+
+	private void grow(int capacity) {
+		final int keep = records * stride;
+		byte[] tmp = new byte[keep];
+		buffer.get(0, tmp, 0, keep);
+		// Only record 0 exists when the buffer is packed, so it stays in place.
+		if (records == 1) {
+			stride = alignedStride(layout);
+			buffer.dirtyGap(stride);
+		}
+		buffer.resize(capacity * stride, 0);
+		buffer.put(0, tmp, 0, keep);
+		// Resizing respecifies the GPU storage, so all of it is sent again.
+		uploaded = false;
+		UniformBindings.forget(buffer);
+		data = buffer.getBacking();
+		records = capacity;
+	}
+
+	public UniformBlockBuffer integer(int slot, int x) {
+		begin(slot, GL11.GL_INT);
+		put(layout.slotOffset(slot), x);
+		return end();
+	}
+
+	public UniformBlockLayout layout() {
+		return layout;
+	}
+
+	public UniformBlockBuffer matrix(int slot, Matrix3 m) {
+		begin(slot, GL20.GL_FLOAT_MAT3);
+		putColumns(slot, m.accessor(), 3, 3);
+		return end();
+	}
+
+	public UniformBlockBuffer matrix(int slot, Matrix34 m) {
+		begin(slot, GL21.GL_FLOAT_MAT4x3);
+		putColumns(slot, m.accessor(), 4, 3);
+		return end();
+	}
+
+	public UniformBlockBuffer matrix(int slot, Matrix4 m) {
+		begin(slot, GL20.GL_FLOAT_MAT4);
+		putColumns(slot, m.accessor(), 4, 4);
+		return end();
+	}
+
+	private void put(int at, int bits) {
+		at += base;
+		if (data.getInt(at) == bits)
+			return;
+		data.putInt(at, bits);
+		changedMin = Math.min(changedMin, at);
+		changedMax = Math.max(changedMax, at + 4);
+	}
+
+	/**
+	 * Writes a column major matrix, placing each column at the member's
+	 * matrix stride.
+	 */
+	private void putColumns(int slot, FloatBuffer f, int columns, int rows) {
+		final int at = layout.slotOffset(slot);
+		final int columnStride = layout.matrixStride(layout.slotField(slot));
+		final int pos = f.position();
+		for (int c = 0; c < columns; c++)
+			for (int r = 0; r < rows; r++)
+				put(at + c * columnStride + r * 4, Float.floatToRawIntBits(f.get(pos + c * rows + r)));
+	}
+
+	/**
+	 * @return the selected record
+	 */
+	public int record() {
+		return record;
+	}
+
+	/**
+	 * Selects the record that writes go to.
+	 */
+	public UniformBlockBuffer record(int i) {
+		if (i < 0 || i >= records)
+			throw new IllegalArgumentException("Record " + i + " is outside of the " + records + " allocated.");
+		this.record = i;
+		this.base = i * stride;
+		return this;
+	}
+
+	/**
+	 * @return the number of records there is room for
+	 */
+	public int records() {
+		return records;
+	}
+
+	/**
+	 * Frees every allocated record, such as at the start of a frame. Their
+	 * contents are kept, so unchanged values don't need writing again.
+	 */
+	public UniformBlockBuffer reset() {
+		used = 0;
+		return record(0);
+	}
+
+	/**
+	 * @see UniformBlockLayout#slot(String)
+	 */
+	public int slot(String name) {
+		return layout.slot(name);
+	}
+
+	/**
+	 * @see UniformBlockLayout#slot(String, int)
+	 */
+	public int slot(String name, int element) {
+		return layout.slot(name, element);
+	}
+
+	/**
+	 * @return the bytes between the starts of records. Aligned for
+	 *         glBindBufferRange once the buffer has room for more than one.
+	 */
+	public int stride() {
+		return stride;
+	}
+
+	/**
+	 * Writes the resident bindless handle of a texture to a sampler member.
+	 *
+	 * @see Texture#residentHandle()
+	 */
+	public UniformBlockBuffer texture(int slot, Texture t) {
+		final int type = layout.type(layout.slotField(slot));
+		if (!UniformBlockLayout.isSampler(type))
+			throw new IllegalStateException(
+					"Uniform block member " + layout.name(layout.slotField(slot)) + " isn't a sampler.");
+		begin(slot, type);
+		final long handle = t.residentHandle();
+		final int at = layout.slotOffset(slot);
+		put(at, (int) handle);
+		put(at + 4, (int) (handle >>> 32));
+		return end();
+	}
+
+	@Override
+	public String toString() {
+		return "UniformBlockBuffer[records=" + used + "/" + records + ", " + layout + "]";
+	}
+
+	/**
+	 * Backs a block of a program with a record, bound with glBindBufferRange
+	 * at the program's next {@link ShaderProgram#commitData()}. Unlike
+	 * {@link #attach(ShaderProgram, String)} the layout isn't checked, so
+	 * this is cheap enough to call per draw.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the program has no such block
+	 */
+	public UniformBlockBuffer use(ShaderProgram program, String blockName, int record) {
+		ShaderUniformBlock block = program.uniformBlock(blockName);
+		if (block == null)
+			throw new IllegalArgumentException("No uniform block named " + blockName);
+		if (record < 0 || record >= records)
+			throw new IllegalArgumentException("Record " + record + " is outside of the " + records + " allocated.");
+		block.bound(buffer, record * stride);
+		return this;
+	}
+
+	/**
+	 * @return the number of records allocated since the last reset
+	 */
+	public int used() {
+		return used;
+	}
+
+	public UniformBlockBuffer vector(int slot, float x, float y) {
+		begin(slot, GL20.GL_FLOAT_VEC2);
+		final int at = layout.slotOffset(slot);
+		put(at, Float.floatToRawIntBits(x));
+		put(at + 4, Float.floatToRawIntBits(y));
+		return end();
+	}
+
+	public UniformBlockBuffer vector(int slot, float x, float y, float z) {
+		begin(slot, GL20.GL_FLOAT_VEC3);
+		final int at = layout.slotOffset(slot);
+		put(at, Float.floatToRawIntBits(x));
+		put(at + 4, Float.floatToRawIntBits(y));
+		put(at + 8, Float.floatToRawIntBits(z));
+		return end();
+	}
+
+	public UniformBlockBuffer vector(int slot, float x, float y, float z, float w) {
+		begin(slot, GL20.GL_FLOAT_VEC4);
+		final int at = layout.slotOffset(slot);
+		put(at, Float.floatToRawIntBits(x));
+		put(at + 4, Float.floatToRawIntBits(y));
+		put(at + 8, Float.floatToRawIntBits(z));
+		put(at + 12, Float.floatToRawIntBits(w));
+		return end();
+	}
+
+	public UniformBlockBuffer vector(int slot, Vector v) {
+		switch (v.dimension()) {
+		case 4:
+			return vector(slot, v.get(0), v.get(1), v.get(2), v.get(3));
+		case 3:
+			return vector(slot, v.get(0), v.get(1), v.get(2));
+		case 2:
+			return vector(slot, v.get(0), v.get(1));
+		case 1:
+			return floating(slot, v.get(0));
+		default:
+			throw new IllegalArgumentException(
+					"Vectors of dimension " + v.dimension() + " can't be assigned to uniform block members.");
+		}
+	}
+}
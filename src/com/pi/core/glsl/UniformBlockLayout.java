@@ -0,0 +1,348 @@
+package com.pi.core.glsl;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL31;
+
+/**
+ * Where each member of a uniform block lives in its buffer. Made either by
+ * querying a linked program, or from a list of members with the std140
+ * rules, so a block can be filled before any program using it is linked.
+ * <p>
+ * Members are addressed by slot: one slot per array element, so writes don't
+ * need to look names up or compute offsets.
+ */
+public class UniformBlockLayout {
+	private final int size;
+	private final String[] names;
+	private final int[] types, arraySizes, arrayStrides, matrixStrides;
+	private final Map<String, Integer> fieldsByName = new HashMap<>();
+	/**
+	 * The first slot of each field, and the byte offset and field of each
+	 * slot.
+	 */
+	private final int[] firstSlot, slotOffset, slotField;
+
+	/**
+	 * @return the number of float or int columns and rows of a GL type, as
+	 *         {columns, rows}
+	 */
+	static int[] shape(int type) {
+		switch (type) {
+		case GL11.GL_FLOAT:
+		case GL11.GL_INT:
+		case GL20.GL_BOOL:
+			return new int[] { 1, 1 };
+		case GL20.GL_FLOAT_VEC2:
+		case GL20.GL_INT_VEC2:
+		case GL20.GL_BOOL_VEC2:
+			return new int[] { 1, 2 };
+		case GL20.GL_SAMPLER_1D:
+		case GL20.GL_SAMPLER_1D_SHADOW:
+		case GL20.GL_SAMPLER_2D:
+		case GL20.GL_SAMPLER_2D_SHADOW:
+		case GL20.GL_SAMPLER_3D:
+		case GL20.GL_SAMPLER_CUBE:
+			// A 64 bit bindless handle, laid out like a uvec2.
+			return new int[] { 1, 2 };
+		case GL20.GL_FLOAT_VEC3:
+		case GL20.GL_INT_VEC3:
+		case GL20.GL_BOOL_VEC3:
+			return new int[] { 1, 3 };
+		case GL20.GL_FLOAT_VEC4:
+		case GL20.GL_INT_VEC4:
+		case GL20.GL_BOOL_VEC4:
+			return new int[] { 1, 4 };
+		case GL20.GL_FLOAT_MAT2:
+			return new int[] { 2, 2 };
+		case GL20.GL_FLOAT_MAT3:
+			return new int[] { 3, 3 };
+		case GL20.GL_FLOAT_MAT4:
+			return new int[] { 4, 4 };
+		case GL21.GL_FLOAT_MAT3x4:
+			return new int[] { 3, 4 };
+		case GL21.GL_FLOAT_MAT4x3:
+			return new int[] { 4, 3 };
+		default:
+			throw new IllegalArgumentException("Unsupported uniform block member type: " + type);
+		}
+	}
+
+	static boolean isSampler(int type) {
+		return type == GL20.GL_SAMPLER_1D || type == GL20.GL_SAMPLER_1D_SHADOW || type == GL20.GL_SAMPLER_2D
+				|| type == GL20.GL_SAMPLER_2D_SHADOW || type == GL20.GL_SAMPLER_3D || type == GL20.GL_SAMPLER_CUBE;
+	}
+
+	/**
+	 * Reads the layout of a block from a linked program.
+	 */
+	public static UniformBlockLayout query(ShaderProgram program, String blockName) {
+		final int id = program.getID();
+		final int block = GL31.glGetUniformBlockIndex(id, blockName);
+		if (block == GL31.GL_INVALID_INDEX)
+			throw new IllegalArgumentException("No uniform block named " + blockName);
+		final int count = GL31.glGetActiveUniformBlocki(id, block, GL31.GL_UNIFORM_BLOCK_ACTIVE_UNIFORMS);
+		IntBuffer indices = BufferUtils.createIntBuffer(count);
+		GL31.glGetActiveUniformBlockiv(id, block, GL31.GL_UNIFORM_BLOCK_ACTIVE_UNIFORM_INDICES, indices);
+		final int maxName = GL20.glGetProgrami(id, GL20.GL_ACTIVE_UNIFORM_MAX_LENGTH);
+
+		String[] names = new String[count];
+		int[] types = new int[count], arraySizes = new int[count], offsets = new int[count],
+				arrayStrides = new int[count], matrixStrides = new int[count];
+		for (int i = 0; i < count; i++) {
+			final int u = indices.get(i);
+			String name = GL31.glGetActiveUniformName(id, u, maxName);
+			if (name.endsWith("[0]"))
+				name = name.substring(0, name.length() - 3);
+			names[i] = name;
+			types[i] = GL31.glGetActiveUniformsi(id, u, GL31.GL_UNIFORM_TYPE);
+			offsets[i] = GL31.glGetActiveUniformsi(id, u, GL31.GL_UNIFORM_OFFSET);
+			arrayStrides[i] = GL31.glGetActiveUniformsi(id, u, GL31.GL_UNIFORM_ARRAY_STRIDE);
+			// Only arrays have a stride, which tells them apart from arrays of one.
+			arraySizes[i] = arrayStrides[i] == 0 ? 0 : GL31.glGetActiveUniformsi(id, u, GL31.GL_UNIFORM_SIZE);
+			matrixStrides[i] = GL31.glGetActiveUniformsi(id, u, GL31.GL_UNIFORM_MATRIX_STRIDE);
+		}
+		return new UniformBlockLayout(GL31.glGetActiveUniformBlocki(id, block, GL31.GL_UNIFORM_BLOCK_DATA_SIZE),
+				names, types, arraySizes, offsets, arrayStrides, matrixStrides);
+	}
+
+	/**
+	 * Starts a layout that follows the std140 rules. Add the members in the
+	 * order the block declares them.
+	 */
+	public static Std140 std140() {
+		return new Std140();
+	}
+
+	private UniformBlockLayout(int size, String[] names, int[] types, int[] arraySizes, int[] offsets,
+			int[] arrayStrides, int[] matrixStrides) {
+		this.size = size;
+		this.names = names;
+		this.types = types;
+		this.arraySizes = arraySizes;
+		this.arrayStrides = arrayStrides;
+		this.matrixStrides = matrixStrides;
+		this.firstSlot = new int[names.length + 1];
+		for (int f = 0; f < names.length; f++) {
+			fieldsByName.put(names[f], f);
+			firstSlot[f + 1] = firstSlot[f] + Math.max(arraySizes[f], 1);
+		}
+		this.slotOffset = new int[firstSlot[names.length]];
+		this.slotField = new int[slotOffset.length];
+		for (int f = 0; f < names.length; f++) {
+			for (int e = 0; e < Math.max(arraySizes[f], 1); e++) {
+				slotOffset[firstSlot[f] + e] = offsets[f] + e * arrayStrides[f];
+				slotField[firstSlot[f] + e] = f;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of elements of an array member, or 0 if the member
+	 *         isn't an array
+	 */
+	public int arraySize(int field) {
+		return arraySizes[field];
+	}
+
+	/**
+	 * @return true if every member of the other layout has the same type and
+	 *         place in this one, so a buffer filled for this layout can back
+	 *         a block with the other
+	 */
+	public boolean compatible(UniformBlockLayout other) {
+		if (other.size > size)
+			return false;
+		for (int f = 0; f < other.names.length; f++) {
+			Integer mine = fieldsByName.get(other.names[f]);
+			if (mine == null || types[mine] != other.types[f] || arraySizes[mine] < other.arraySizes[f])
+				return false;
+			if (slotOffset[firstSlot[mine]] != other.slotOffset[other.firstSlot[f]])
+				return false;
+			if (arraySizes[mine] > 0 && arrayStrides[mine] != other.arrayStrides[f])
+				return false;
+			if (matrixStrides[mine] != other.matrixStrides[f])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index of a field, or -1 if the block has no such member
+	 */
+	public int field(String name) {
+		Integer f = fieldsByName.get(name);
+		return f == null ? -1 : f;
+	}
+
+	public int fieldCount() {
+		return names.length;
+	}
+
+	public int matrixStride(int field) {
+		return matrixStrides[field];
+	}
+
+	public String name(int field) {
+		return names[field];
+	}
+
+	/**
+	 * @return the byte size of the block
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot of the first element of a member
+	 * @throws IllegalArgumentException
+	 *             if the block has no such member
+	 */
+	public int slot(String name) {
+		return slot(name, 0);
+	}
+
+	/**
+	 * @return the slot of one element of an array member
+	 * @throws IllegalArgumentException
+	 *             if the block has no such member or element
+	 */
+	public int slot(String name, int element) {
+		Integer f = fieldsByName.get(name);
+		if (f == null)
+			throw new IllegalArgumentException("Uniform block has no member named " + name);
+		if (element < 0 || element >= Math.max(arraySizes[f], 1))
+			throw new IllegalArgumentException("Can't use index " + element + " on \"" + name + "\": "
+					+ (arraySizes[f] == 0 ? "It isn't an array" : "It is an array of size " + arraySizes[f]));
+		return firstSlot[f] + element;
+	}
+
+	public int slotCount() {
+		return slotOffset.length;
+	}
+
+	int slotField(int slot) {
+		return slotField[slot];
+	}
+
+	public int slotOffset(int slot) {
+		return slotOffset[slot];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("UniformBlockLayout[size=").append(size);
+		for (int f = 0; f < names.length; f++) {
+			sb.append(", ").append(names[f]).append('@').append(slotOffset[firstSlot[f]]);
+			if (arraySizes[f] > 0)
+				sb.append('[').append(arraySizes[f]).append(']');
+		}
+		return sb.append(']').toString();
+	}
+
+	public int type(int field) {
+		return types[field];
+	}
+
+	/**
+	 * Lays out members with the std140 rules: scalars align to 4 bytes, two
+	 * component vectors to 8, larger vectors to 16, and array elements and
+	 * matrix columns to 16.
+	 */
+	public static class Std140 {
+		private final List<String> names = new ArrayList<>();
+		private final List<int[]> members = new ArrayList<>();
+		private int offset = 0;
+
+		private static int align(int v, int alignment) {
+			return (v + alignment - 1) / alignment * alignment;
+		}
+
+		private Std140() {
+		}
+
+		/**
+		 * Adds a member that isn't an array.
+		 *
+		 * @param type
+		 *            the GL type, such as GL_FLOAT_VEC4 or GL_FLOAT_MAT4
+		 */
+		public Std140 add(String name, int type) {
+			return member(name, type, 0);
+		}
+
+		/**
+		 * Adds an array member. Arrays of one element are still arrays, and
+		 * are aligned and padded like any other.
+		 *
+		 * @param type
+		 *            the GL type of an element
+		 * @param arraySize
+		 *            the number of elements
+		 */
+		public Std140 add(String name, int type, int arraySize) {
+			if (arraySize < 1)
+				throw new IllegalArgumentException("Array sizes must be positive.");
+			return member(name, type, arraySize);
+		}
+
+		public UniformBlockLayout build() {
+			final int n = names.size();
+			int[][] columns = new int[5][n];
+			for (int i = 0; i < n; i++)
+				for (int c = 0; c < 5; c++)
+					columns[c][i] = members.get(i)[c];
+			return new UniformBlockLayout(align(offset, 16), names.toArray(new String[n]), columns[0], columns[1],
+					columns[2], columns[3], columns[4]);
+		}
+
+		/**
+		 * @param arraySize
+		 *            the number of elements, or 0 for members that aren't
+		 *            arrays
+		 */
+		private Std140 member(String name, int type, int arraySize) {
+			final int[] shape = shape(type);
+			final int columns = shape[0], rows = shape[1];
+			final boolean matrix = columns > 1;
+			int alignment, elementSize, matrixStride = 0;
+			if (matrix) {
+				// A matrix is an array of column vectors.
+				matrixStride = 16;
+				alignment = 16;
+				elementSize = columns * 16;
+			} else {
+				alignment = rows == 1 ? 4 : rows == 2 ? 8 : 16;
+				elementSize = rows * 4;
+			}
+			int arrayStride = 0;
+			if (arraySize > 0) {
+				alignment = 16;
+				arrayStride = align(elementSize, 16);
+			}
+			offset = align(offset, alignment);
+			names.add(name);
+			members.add(new int[] { type, arraySize, offset, arrayStride, matrixStride });
+			offset += arraySize > 0 ? arrayStride * arraySize : elementSize;
+			// Members after an array or a matrix start on a new 16 byte row.
+			if (arraySize > 0 || matrix)
+				offset = align(offset, 16);
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "Std140" + Arrays.toString(names.toArray());
+		}
+	}
+}
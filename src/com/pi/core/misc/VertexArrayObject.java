@@ -2,6 +2,8 @@ package com.pi.core.misc;
 
 import org.lwjgl.opengl.GL30;
 
+import com.pi.core.buffers.BufferType;
+import com.pi.core.buffers.GLGenericBuffer;
 import com.pi.core.debug.FrameCounter;
 import com.pi.core.debug.FrameCounter.FrameParam;
 import com.pi.core.util.Bindable;
@@ -21,6 +23,8 @@ public class VertexArrayObject extends GPUObject<VertexArrayObject> implements G
 		GL30.glBindVertexArray(0);
 		FrameCounter.increment(FrameParam.VAO_CHANGE);
 		bound.empty(0);
+		// The element array binding belongs to the VAO.
+		GLGenericBuffer.forgetBinding(BufferType.ELEMENT_ARRAY);
 	}
 
 	@Override
@@ -32,6 +36,7 @@ public class VertexArrayObject extends GPUObject<VertexArrayObject> implements G
 		GL30.glBindVertexArray(glref);
 		bound.attach(0, this);
 		FrameCounter.increment(FrameParam.VAO_CHANGE);
+		GLGenericBuffer.forgetBinding(BufferType.ELEMENT_ARRAY);
 	}
 
 	@Override
@@ -9,13 +9,27 @@ import org.lwjgl.opengl.GL32;
 
 import com.pi.core.buffers.BufferType;
 import com.pi.core.buffers.GLGenericBuffer;
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
 import com.pi.core.util.GPUObject;
+import com.pi.util.ParallelRange;
+import com.pi.util.PrimitiveList;
 
 public class IndexBuffer extends GPUObject<IndexBuffer> {
+	// Primitive restart is global state, so avoid resetting it per draw.
+	private static boolean activeRestart = false;
+	private static int activeRestartIndex = 0;
+
 	private final GLGenericBuffer indexBuffer;
 	private int indexType, indexSize;
 	private int indexCount;
 	private final PrimitiveType mode;
+	private boolean restart;
+	/**
+	 * Split meshes are drawn in batches of (first index, count, base vertex).
+	 * Null when drawn as one range.
+	 */
+	private int[] batches;
 
 	private IntBuffer intBuff;
 	private ShortBuffer shortBuff;
@@ -31,20 +45,7 @@ public class IndexBuffer extends GPUObject<IndexBuffer> {
 	}
 
 	public static int chooseIndexSize(int[] index, int offset, int rightOffset) {
-		int maxVertexID = 0;
-		for (int i = offset; i < rightOffset; i++)
-			maxVertexID = Math.max(index[i], maxVertexID);
-
-		// It's typical for an unsigned byte not to be optimal for the hardware,
-		// so don't choose it automatically.
-		boolean unsigned_bytes = false;
-		if (unsigned_bytes && maxVertexID < (1 << 8)) {
-			return 1;
-		} else if (maxVertexID < (1 << 16)) {
-			return 2;
-		} else {
-			return 4;
-		}
+		return IndexPacking.DEFAULT.indexSize(maxVertexID(index, offset, rightOffset));
 	}
 
 	private static int indexTypeFromSize(int size) {
@@ -60,6 +61,27 @@ public class IndexBuffer extends GPUObject<IndexBuffer> {
 		}
 	}
 
+	private static int maxVertexID(int[] index, int offset, int rightOffset) {
+		int maxVertexID = 0;
+		for (int i = offset; i < rightOffset; i++)
+			maxVertexID = Math.max(index[i], maxVertexID);
+		return maxVertexID;
+	}
+
+	static void restartState(boolean enable, int index) {
+		if (enable == activeRestart && (!enable || index == activeRestartIndex))
+			return;
+		if (enable) {
+			if (!activeRestart)
+				GL11.glEnable(GL31.GL_PRIMITIVE_RESTART);
+			GL31.glPrimitiveRestartIndex(index);
+		} else {
+			GL11.glDisable(GL31.GL_PRIMITIVE_RESTART);
+		}
+		activeRestart = enable;
+		activeRestartIndex = index;
+	}
+
 	public IndexBuffer(PrimitiveType mode, GLGenericBuffer indices, int indexSize) {
 		this(mode, indexSize, indices);
 	}
@@ -83,20 +105,109 @@ public class IndexBuffer extends GPUObject<IndexBuffer> {
 		write(indices, offset, count);
 	}
 
+	public IndexBuffer(PrimitiveType mode, int[] indices, int offset, int count, IndexPacking packing) {
+		this(mode, packing.indexSize(mode, maxVertexID(indices, offset, offset + count)), count);
+		write(indices, offset, count, packing);
+	}
+
+	public IndexBuffer(PrimitiveType mode, int[] indices, IndexPacking packing) {
+		this(mode, indices, 0, indices.length, packing);
+	}
+
+	/**
+	 * @return the number of draw calls needed to render this buffer
+	 */
+	public int batchCount() {
+		return batches == null ? 1 : batches[0] / 3;
+	}
+
 	public GLGenericBuffer buffer() {
 		return indexBuffer;
 	}
 
+	/**
+	 * Generates <em>count</em> indices in parallel. The range is split into
+	 * disjoint slices, so the output doesn't depend on scheduling as long as
+	 * the generator only depends on the index position. The index size isn't
+	 * changed; the generated values must fit it. Primitive restart and batches
+	 * are turned off.
+	 * 
+	 * @param count
+	 *            the number of indices
+	 * @param gen
+	 *            the generator
+	 */
+	public void fill(int count, final IndexGenerator gen) {
+		if (indexSize * count > indexBuffer.size())
+			resize(count, indexSize);
+		this.indexCount = count;
+		this.batches = null;
+		this.restart = false;
+		indexBuffer.getBacking().limit(indexBuffer.getBacking().capacity());
+		ParallelRange.forEach(0, count, new ParallelRange.RangeTask() {
+			@Override
+			public void run(int from, int to) {
+				int[] tmp = new int[to - from];
+				gen.generate(tmp, from, to);
+				pack(from, tmp, 0, tmp.length);
+			}
+		});
+	}
+
+	private void draw(int instances, int base) {
+		indexBuffer.bind(BufferType.ELEMENT_ARRAY);
+		restartState(restart, restart ? restartValue() : 0);
+		if (batches == null) {
+			drawRange(0, indexCount, instances, base);
+		} else {
+			for (int b = 1; b < batches[0]; b += 3)
+				drawRange(batches[b], batches[b + 1], instances, base + batches[b + 2]);
+		}
+	}
+
+	private void drawRange(int first, int count, int instances, int base) {
+		final long offset = (long) first * indexSize;
+		FrameCounter.increment(FrameParam.DRAW_CALLS);
+		if (instances < 0) {
+			if (base == 0)
+				GL11.glDrawElements(mode.mode(), count, indexType, offset);
+			else
+				GL32.glDrawElementsBaseVertex(mode.mode(), count, indexType, offset, base);
+		} else {
+			if (base == 0)
+				GL31.glDrawElementsInstanced(mode.mode(), count, indexType, offset, instances);
+			else
+				GL32.glDrawElementsInstancedBaseVertex(mode.mode(), count, indexType, offset, instances, base);
+		}
+	}
+
+	/**
+	 * @return the vertex ID at position <em>k</em>, including any batch base
+	 *         vertex, or {@link IndexPacking#RESTART}
+	 */
 	public int getIndex(int k) {
+		int v;
 		switch (indexType) {
 		case GL11.GL_UNSIGNED_SHORT:
-			return shortBuff.get(k) & 0xFFFF;
+			v = shortBuff.get(k) & 0xFFFF;
+			break;
 		case GL11.GL_UNSIGNED_INT:
-			return intBuff.get(k);
+			v = intBuff.get(k);
+			break;
 		case GL11.GL_UNSIGNED_BYTE:
 		default:
-			return indexBuffer.get(k) & 0xFF;
+			v = indexBuffer.get(k) & 0xFF;
+			break;
+		}
+		if (restart && v == restartValue())
+			return IndexPacking.RESTART;
+		if (batches != null) {
+			int b = 1;
+			while (b + 3 < batches[0] && batches[b + 3] <= k)
+				b += 3;
+			v += batches[b + 2];
 		}
+		return v;
 	}
 
 	@Override
@@ -126,24 +237,24 @@ public class IndexBuffer extends GPUObject<IndexBuffer> {
 		return mode;
 	}
 
+	public boolean primitiveRestart() {
+		return restart;
+	}
+
 	public void render() {
-		indexBuffer.bind(BufferType.ELEMENT_ARRAY);
-		GL11.glDrawElements(mode.mode(), indexCount, indexType, 0);
+		draw(-1, 0);
 	}
 
 	public void renderInstances(int n) {
-		indexBuffer.bind(BufferType.ELEMENT_ARRAY);
-		GL31.glDrawElementsInstanced(mode.mode(), indexCount, indexType, 0, n);
+		draw(n, 0);
 	}
 
 	public void renderInstancesOffset(int n, int base) {
-		indexBuffer.bind(BufferType.ELEMENT_ARRAY);
-		GL32.glDrawElementsInstancedBaseVertex(mode.mode(), indexCount, indexType, 0, n, base);
+		draw(n, base);
 	}
 
 	public void renderOffset(int base) {
-		indexBuffer.bind(BufferType.ELEMENT_ARRAY);
-		GL32.glDrawElementsBaseVertex(mode.mode(), indexCount, indexType, 0, base);
+		draw(-1, base);
 	}
 
 	public void resize(int nCount, int nSize) {
@@ -157,30 +268,114 @@ public class IndexBuffer extends GPUObject<IndexBuffer> {
 		this.indexType = indexTypeFromSize(this.indexSize);
 	}
 
+	/**
+	 * @return the stored value that means primitive restart
+	 */
+	private int restartValue() {
+		return indexSize >= 4 ? -1 : (1 << (8 * indexSize)) - 1;
+	}
+
 	@Override
 	public String toString() {
 		return mode.name() + " x" + (indexCount / mode.stride());
 	}
 
+	/**
+	 * Writes indices as they are, without primitive restart or batches.
+	 */
 	public void write(int[] indices, int offset, int count) {
 		this.indexCount = count;
+		this.batches = null;
+		this.restart = false;
+		indexBuffer.getBacking().limit(indexBuffer.getBacking().capacity());
+		pack(0, indices, offset, count);
+	}
+
+	/**
+	 * Writes indices using the given packing. If the vertex IDs don't fit the
+	 * index size and the packing allows splitting, primitives are grouped into
+	 * batches whose vertex IDs fit relative to a base vertex. Only primitive
+	 * lists can be split.
+	 */
+	public void write(int[] indices, int offset, int count, IndexPacking packing) {
+		final int limit = packing.limit(indexSize);
+		final int maxVertexID = maxVertexID(indices, offset, offset + count);
+		if (maxVertexID < limit) {
+			write(indices, offset, count);
+			this.restart = packing.primitiveRestart();
+			return;
+		}
+		if (!packing.split())
+			throw new IllegalArgumentException(
+					"Vertex " + maxVertexID + " doesn't fit in " + indexSize + " byte indices.");
+		if (!mode.isList())
+			throw new IllegalArgumentException("Only primitive lists can be split, not " + mode);
+
+		final int stride = mode.stride();
+		int[] rebased = new int[count];
+		int[] batch = null;
+		int batchStart = 0;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int p = 0; p < count + stride; p += stride) {
+			int pmin = Integer.MAX_VALUE, pmax = Integer.MIN_VALUE;
+			for (int i = p; i < p + stride && i < count; i++) {
+				if (indices[offset + i] == IndexPacking.RESTART)
+					continue;
+				pmin = Math.min(pmin, indices[offset + i]);
+				pmax = Math.max(pmax, indices[offset + i]);
+			}
+			if (pmax != Integer.MIN_VALUE && pmax - pmin >= limit)
+				throw new IllegalArgumentException("Primitive at " + p + " spans more than " + limit + " vertices.");
+			boolean end = p >= count;
+			if (end || (p > batchStart && Math.max(max, pmax) - Math.min(min, pmin) >= limit)) {
+				final int base = min == Integer.MAX_VALUE ? 0 : min;
+				for (int i = batchStart; i < p && i < count; i++)
+					rebased[i] = indices[offset + i] == IndexPacking.RESTART ? IndexPacking.RESTART
+							: indices[offset + i] - base;
+				batch = PrimitiveList.insert(batch, batchStart, Math.min(p, count) - batchStart, base);
+				batchStart = p;
+				min = Integer.MAX_VALUE;
+				max = Integer.MIN_VALUE;
+			}
+			min = Math.min(min, pmin);
+			max = Math.max(max, pmax);
+		}
+		write(rebased, 0, count);
+		this.batches = batch;
+		this.restart = packing.primitiveRestart();
+	}
+
+	/**
+	 * Packs indices into the buffer at the given index position. Only uses
+	 * absolute puts, so disjoint ranges can be packed concurrently.
+	 */
+	private void pack(int dest, int[] indices, int offset, int count) {
 		final int rightOffset = offset + count;
+		final int shift = dest - offset;
 		switch (indexSize) {
 		case 1:
 			for (int i = offset; i < rightOffset; i++)
-				indexBuffer.put(i - offset, (byte) indices[i]);
+				indexBuffer.getBacking().put(i + shift, (byte) indices[i]);
 			break;
 		case 2:
 			for (int i = offset; i < rightOffset; i++)
-				shortBuff.put(i - offset, (short) indices[i]);
+				shortBuff.put(i + shift, (short) indices[i]);
 			break;
 		case 4:
 			for (int i = offset; i < rightOffset; i++)
-				intBuff.put(i - offset, indices[i]);
+				intBuff.put(i + shift, indices[i]);
 			break;
 		default:
 			// Should never, ever, ever happen
 			throw new RuntimeException("Invalid index size.");
 		}
 	}
+
+	public static interface IndexGenerator {
+		/**
+		 * Writes the indices [from, to) into <em>dest</em>, starting at
+		 * dest[0].
+		 */
+		public void generate(int[] dest, int from, int to);
+	}
 }
@@ -0,0 +1,112 @@
+package com.pi.core.model;
+
+/**
+ * Decides how indices are stored in an {@link IndexBuffer}. Packings are
+ * immutable; each option returns a new packing.
+ * 
+ * <pre>
+ * IndexPacking.DEFAULT.primitiveRestart(true).split(true)
+ * </pre>
+ */
+public final class IndexPacking {
+	/**
+	 * The index value that restarts a primitive when primitive restart is
+	 * enabled. It is stored as the largest value of the index type.
+	 */
+	public static final int RESTART = -1;
+
+	/**
+	 * Chooses short or int indices, without primitive restart or splitting.
+	 */
+	public static final IndexPacking DEFAULT = new IndexPacking(0, false, false, false);
+
+	private final int forcedSize;
+	private final boolean allowBytes;
+	private final boolean primitiveRestart;
+	private final boolean split;
+
+	private IndexPacking(int forcedSize, boolean allowBytes, boolean primitiveRestart, boolean split) {
+		this.forcedSize = forcedSize;
+		this.allowBytes = allowBytes;
+		this.primitiveRestart = primitiveRestart;
+		this.split = split;
+	}
+
+	/**
+	 * It's typical for an unsigned byte not to be optimal for the hardware, so
+	 * they aren't chosen automatically unless allowed.
+	 */
+	public IndexPacking allowBytes(boolean allow) {
+		return new IndexPacking(forcedSize, allow, primitiveRestart, split);
+	}
+
+	/**
+	 * Forces an index size instead of choosing one from the data.
+	 * 
+	 * @param bytes
+	 *            1, 2 or 4; 0 to choose automatically
+	 */
+	public IndexPacking forceSize(int bytes) {
+		if (bytes != 0 && bytes != 1 && bytes != 2 && bytes != 4)
+			throw new IllegalArgumentException("Invalid index size: " + bytes);
+		return new IndexPacking(bytes, allowBytes, primitiveRestart, split);
+	}
+
+	/**
+	 * @return the index size to use for a primitive list with the given
+	 *         largest vertex ID
+	 */
+	public int indexSize(int maxVertexID) {
+		return indexSize(PrimitiveType.TRIANGLES, maxVertexID);
+	}
+
+	/**
+	 * @return the index size to use for the given primitive type and largest
+	 *         vertex ID. Only lists can be split, so other types fall back to
+	 *         int indices when short ones don't fit.
+	 */
+	public int indexSize(PrimitiveType mode, int maxVertexID) {
+		if (forcedSize != 0)
+			return forcedSize;
+		if (allowBytes && maxVertexID < limit(1))
+			return 1;
+		if (maxVertexID < limit(2) || (split && mode.isList()))
+			return 2;
+		return 4;
+	}
+
+	/**
+	 * @return one past the largest vertex ID that can be stored with the given
+	 *         index size
+	 */
+	public int limit(int indexSize) {
+		if (indexSize >= 4)
+			return Integer.MAX_VALUE;
+		return (1 << (8 * indexSize)) - (primitiveRestart ? 1 : 0);
+	}
+
+	public boolean primitiveRestart() {
+		return primitiveRestart;
+	}
+
+	/**
+	 * Enables primitive restart. {@link #RESTART} entries in the index data
+	 * start a new strip, loop or fan.
+	 */
+	public IndexPacking primitiveRestart(boolean restart) {
+		return new IndexPacking(forcedSize, allowBytes, restart, split);
+	}
+
+	public boolean split() {
+		return split;
+	}
+
+	/**
+	 * Allows splitting primitive lists whose vertex IDs don't fit the index
+	 * size into batches drawn with a base vertex, so large meshes can stay on
+	 * 16 bit indices. Strips, loops and fans still use int indices.
+	 */
+	public IndexPacking split(boolean split) {
+		return new IndexPacking(forcedSize, allowBytes, primitiveRestart, split);
+	}
+}
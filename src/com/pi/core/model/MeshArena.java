@@ -0,0 +1,272 @@
+package com.pi.core.model;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL32;
+
+import com.pi.core.buffers.ArenaSlice;
+import com.pi.core.buffers.BufferArena;
+import com.pi.core.buffers.BufferType;
+import com.pi.core.buffers.RangeAllocator;
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.misc.VertexArrayObject;
+import com.pi.core.util.GPUObject;
+import com.pi.core.util.MemoryBarriers;
+import com.pi.core.vertex.VertexData;
+
+/**
+ * Stores many small meshes of one vertex type in shared buffers. The vertices
+ * live in one {@link VertexData}, so every mesh uses the same VAO, and the
+ * indices live in one {@link BufferArena}. Meshes differ only in base vertex
+ * and first index, so drawing them one after another doesn't change any GL
+ * binding.
+ * <p>
+ * The VAO belongs to the arena, so an arena holds exactly one vertex format.
+ * Meshes of other vertex types need an arena of their own.
+ */
+public class MeshArena<E> extends GPUObject<MeshArena<E>> {
+	private final VertexData<E> vertexData;
+	private final RangeAllocator vertexRanges;
+	private final BufferArena indexArena;
+	private final PrimitiveType mode;
+	private final int indexSize, indexType;
+
+	/**
+	 * @param vertexClass
+	 *            the vertex type
+	 * @param mode
+	 *            the primitive type of every mesh
+	 * @param indexSize
+	 *            the index size in bytes; 1, 2 or 4
+	 * @param vertexCapacity
+	 *            the initial vertex capacity
+	 * @param indexCapacity
+	 *            the initial index capacity
+	 */
+	public MeshArena(Class<E> vertexClass, PrimitiveType mode, int indexSize, int vertexCapacity, int indexCapacity) {
+		switch (indexSize) {
+		case 1:
+			this.indexType = GL11.GL_UNSIGNED_BYTE;
+			break;
+		case 2:
+			this.indexType = GL11.GL_UNSIGNED_SHORT;
+			break;
+		case 4:
+			this.indexType = GL11.GL_UNSIGNED_INT;
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid index size: " + indexSize);
+		}
+		this.mode = mode;
+		this.indexSize = indexSize;
+		this.vertexData = new VertexData<>(vertexClass, Math.max(vertexCapacity, 1), false);
+		this.vertexRanges = new RangeAllocator(vertexData.count());
+		this.indexArena = new BufferArena(Math.max(indexCapacity, 1) * indexSize);
+	}
+
+	/**
+	 * Copies a model into this arena. The model must have CPU side data, and
+	 * can be freed afterwards.
+	 */
+	public Mesh add(Model<E> model) {
+		return add(model.vertexData, model.indexes);
+	}
+
+	/**
+	 * Copies vertices and their index buffers into this arena.
+	 */
+	public Mesh add(VertexData<E> vertices, IndexBuffer... indexes) {
+		ArenaSlice vertexSlice = vertexRanges.allocate(vertices.count(), 1);
+		if (vertexSlice == null) {
+			final int capacity = Math.max(vertexRanges.capacity() * 2, vertexRanges.capacity() + vertices.count());
+			vertexData.grow(capacity);
+			vertexRanges.grow(capacity);
+			vertexSlice = vertexRanges.allocate(vertices.count(), 1);
+		}
+		vertexData.copy(vertices, 0, vertexSlice.offset(), vertices.count());
+
+		final int limit = IndexPacking.DEFAULT.primitiveRestart(true).limit(indexSize);
+		ArenaSlice[] indexSlices = new ArenaSlice[indexes.length];
+		boolean restart = false;
+		for (int b = 0; b < indexes.length; b++) {
+			IndexBuffer index = indexes[b];
+			if (index.mode() != mode)
+				throw new IllegalArgumentException("Can't add " + index.mode() + " to an arena of " + mode);
+			indexSlices[b] = indexArena.allocate(index.indexCount() * indexSize, indexSize);
+			ByteBuffer data = indexArena.backing();
+			data.limit(data.capacity());
+			int pos = indexSlices[b].offset();
+			for (int i = 0; i < index.indexCount(); i++, pos += indexSize) {
+				int v = index.getIndex(i);
+				if (v == IndexPacking.RESTART)
+					restart = true;
+				else if (v >= limit)
+					throw new IllegalArgumentException("Vertex " + v + " doesn't fit in " + indexSize
+							+ " byte indices.");
+				switch (indexSize) {
+				case 1:
+					data.put(pos, (byte) v);
+					break;
+				case 2:
+					data.putShort(pos, (short) v);
+					break;
+				default:
+					data.putInt(pos, v);
+					break;
+				}
+			}
+			indexArena.markDirty(indexSlices[b]);
+		}
+		return new Mesh(vertexSlice, indexSlices, restart);
+	}
+
+	/**
+	 * Packs the vertex and index ranges of the live meshes together.
+	 * Outstanding {@link Mesh} handles stay valid.
+	 */
+	public void defragment() {
+		vertexRanges.defragment(new RangeAllocator.Mover() {
+			@Override
+			public void move(int from, int to, int size) {
+				vertexData.copy(vertexData, from, to, size);
+			}
+		});
+		indexArena.defragment();
+	}
+
+	@Override
+	protected void gpuAllocInternal() {
+		vertexData.gpuAlloc();
+		indexArena.gpuAlloc();
+		// The element array binding is VAO state, so attach it once here.
+		vertexData.activate();
+		indexArena.buffer().bind(BufferType.ELEMENT_ARRAY);
+		VertexArrayObject.unbind();
+	}
+
+	@Override
+	protected void gpuFreeInternal() {
+		indexArena.gpuFree();
+		vertexData.gpuFree();
+	}
+
+	@Override
+	protected void gpuUploadInternal() {
+		vertexData.gpuUpload();
+		indexArena.gpuUpload();
+	}
+
+	public BufferArena indexArena() {
+		return indexArena;
+	}
+
+	@Override
+	public String toString() {
+		return "MeshArena[" + vertexData + ", " + vertexRanges + ", " + indexArena + "]";
+	}
+
+	public VertexData<E> vertexData() {
+		return vertexData;
+	}
+
+	public RangeAllocator vertexRanges() {
+		return vertexRanges;
+	}
+
+	/**
+	 * A mesh stored in a {@link MeshArena}: one vertex range and a set of
+	 * index ranges.
+	 */
+	public class Mesh {
+		private final ArenaSlice vertices;
+		private final ArenaSlice[] indexes;
+		private final boolean restart;
+
+		private Mesh(ArenaSlice vertices, ArenaSlice[] indexes, boolean restart) {
+			this.vertices = vertices;
+			this.indexes = indexes;
+			this.restart = restart;
+		}
+
+		/**
+		 * @return the vertex that index zero refers to
+		 */
+		public int baseVertex() {
+			return vertices.offset();
+		}
+
+		private void draw(int b, int instances) {
+			final int count = indexes[b].size() / indexSize;
+			final long offset = indexes[b].offset();
+			if (instances < 0)
+				GL32.glDrawElementsBaseVertex(mode.mode(), count, indexType, offset, vertices.offset());
+			else
+				GL32.glDrawElementsInstancedBaseVertex(mode.mode(), count, indexType, offset, instances,
+						vertices.offset());
+			FrameCounter.increment(FrameParam.DRAW_CALLS);
+		}
+
+		/**
+		 * @return the first index of an index buffer, in indices
+		 */
+		public int firstIndex(int indexBuffer) {
+			return indexes[indexBuffer].offset() / indexSize;
+		}
+
+		/**
+		 * Returns the ranges of this mesh to the arena.
+		 */
+		public void free() {
+			vertices.free();
+			for (ArenaSlice s : indexes)
+				s.free();
+		}
+
+		public int indexCount(int indexBuffer) {
+			return indexes[indexBuffer].size() / indexSize;
+		}
+
+		public int indexBuffers() {
+			return indexes.length;
+		}
+
+		public boolean isFreed() {
+			return vertices.isFreed();
+		}
+
+		private void prepare() {
+			MemoryBarriers.require(indexArena.buffer(), BufferType.ELEMENT_ARRAY.barrierBit());
+			vertexData.activate();
+			IndexBuffer.restartState(restart, (int) ((1L << (8 * indexSize)) - 1));
+		}
+
+		public void render() {
+			prepare();
+			for (int b = 0; b < indexes.length; b++)
+				draw(b, -1);
+		}
+
+		public void render(int... indexBuffers) {
+			prepare();
+			for (int b : indexBuffers)
+				draw(b, -1);
+		}
+
+		public void renderInstances(int n) {
+			prepare();
+			for (int b = 0; b < indexes.length; b++)
+				draw(b, n);
+		}
+
+		@Override
+		public String toString() {
+			return "Mesh[" + vertices + ", " + indexes.length + " index ranges]";
+		}
+
+		public int vertexCount() {
+			return vertices.size();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.pi.core.model;
+
+import java.util.Arrays;
+
+import com.pi.core.vertex.VertexData;
+
+/**
+ * Reorders triangle lists for the GPU's vertex caches. The post-transform pass
+ * is Forsyth's linear-speed vertex cache optimization; the pre-transform pass
+ * renumbers vertices in the order they are first used, so vertex fetches walk
+ * memory sequentially.
+ */
+public class MeshOptimizer {
+	/**
+	 * The size of the simulated FIFO cache used for reports. Conservative for
+	 * current hardware.
+	 */
+	public static final int SIMULATED_CACHE_SIZE = 16;
+
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRI_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	/**
+	 * Simulates a FIFO vertex cache.
+	 * 
+	 * @param indices
+	 *            the triangle list
+	 * @param vertexCount
+	 *            the number of vertices
+	 * @param cacheSize
+	 *            the cache size
+	 * @return the number of cache misses, i.e. vertex shader invocations
+	 */
+	public static int cacheMisses(int[] indices, int vertexCount, int cacheSize) {
+		// Vertex v is cached if it was one of the last cacheSize misses.
+		int[] missStamp = new int[vertexCount];
+		int misses = 0;
+		for (int i : indices) {
+			if (missStamp[i] == 0 || misses - (missStamp[i] - 1) >= cacheSize) {
+				missStamp[i] = misses + 1;
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * Optimizes every index list for the post-transform cache, then renumbers
+	 * the vertices for fetch locality and permutes the vertex data to match.
+	 * The lists are replaced in the given array.
+	 * 
+	 * @param data
+	 *            the vertex data the lists index
+	 * @param indices
+	 *            the triangle lists
+	 * @return the before and after cache statistics
+	 */
+	public static CacheReport optimize(VertexData<?> data, int[][] indices) {
+		final int vertexCount = data.count();
+		int[] before = stats(indices, vertexCount);
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = optimizeVertexCache(indices[i], vertexCount);
+		data.remap(optimizeVertexFetch(indices, vertexCount));
+		int[] after = stats(indices, vertexCount);
+		return new CacheReport(before, after);
+	}
+
+	/**
+	 * Reorders the triangles of a list to reduce post-transform cache misses.
+	 * 
+	 * @param indices
+	 *            the triangle list
+	 * @param vertexCount
+	 *            the number of vertices
+	 * @return the reordered triangle list
+	 */
+	public static int[] optimizeVertexCache(int[] indices, int vertexCount) {
+		if (indices.length % 3 != 0)
+			throw new IllegalArgumentException("A triangle list must have a multiple of three indices.");
+		final int triCount = indices.length / 3;
+
+		// Triangles adjacent to each vertex; live[v] are still unemitted.
+		int[] live = new int[vertexCount];
+		for (int i : indices)
+			live[i]++;
+		int[] adjOffset = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++)
+			adjOffset[v + 1] = adjOffset[v] + live[v];
+		int[] adj = new int[indices.length];
+		int[] head = Arrays.copyOf(adjOffset, vertexCount);
+		for (int i = 0; i < indices.length; i++)
+			adj[head[indices[i]]++] = i / 3;
+
+		int[] cachePos = new int[vertexCount];
+		Arrays.fill(cachePos, -1);
+		float[] score = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++)
+			score[v] = vertexScore(-1, live[v]);
+
+		boolean[] emitted = new boolean[triCount];
+		int[] out = new int[indices.length];
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] nextCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int bestTri = -1;
+		int scan = 0;
+
+		for (int o = 0; o < triCount; o++) {
+			if (bestTri < 0) {
+				// Dead end; restart from the next unemitted triangle.
+				while (emitted[scan])
+					scan++;
+				bestTri = scan;
+			}
+			final int t = bestTri;
+			emitted[t] = true;
+
+			int n = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = indices[t * 3 + k];
+				out[o * 3 + k] = v;
+				int start = adjOffset[v], end = start + live[v];
+				for (int a = start; a < end; a++) {
+					if (adj[a] == t) {
+						adj[a] = adj[end - 1];
+						break;
+					}
+				}
+				live[v]--;
+				if (!contains(nextCache, n, v))
+					nextCache[n++] = v;
+			}
+			final int triVerts = n;
+			for (int c = 0; c < cacheCount; c++) {
+				int v = cache[c];
+				if (!contains(nextCache, triVerts, v))
+					nextCache[n++] = v;
+			}
+
+			for (int i = 0; i < n; i++) {
+				int v = nextCache[i];
+				cachePos[v] = i < CACHE_SIZE ? i : -1;
+				score[v] = vertexScore(cachePos[v], live[v]);
+			}
+
+			bestTri = -1;
+			float bestScore = -Float.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				int v = nextCache[i];
+				for (int a = adjOffset[v], end = adjOffset[v] + live[v]; a < end; a++) {
+					int tt = adj[a];
+					float s = score[indices[tt * 3]] + score[indices[tt * 3 + 1]] + score[indices[tt * 3 + 2]];
+					if (s > bestScore) {
+						bestScore = s;
+						bestTri = tt;
+					}
+				}
+			}
+
+			int[] tmp = cache;
+			cache = nextCache;
+			nextCache = tmp;
+			cacheCount = Math.min(n, CACHE_SIZE);
+		}
+		return out;
+	}
+
+	/**
+	 * Renumbers vertices in the order they are first referenced by the given
+	 * lists, rewriting the lists in place. Unreferenced vertices go last.
+	 * 
+	 * @param indices
+	 *            the index lists
+	 * @param vertexCount
+	 *            the number of vertices
+	 * @return the remap table; <code>remap[old] = new</code>
+	 */
+	public static int[] optimizeVertexFetch(int[][] indices, int vertexCount) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for (int[] list : indices) {
+			for (int i = 0; i < list.length; i++) {
+				int v = list[i];
+				if (remap[v] < 0)
+					remap[v] = next++;
+				list[i] = remap[v];
+			}
+		}
+		for (int v = 0; v < vertexCount; v++)
+			if (remap[v] < 0)
+				remap[v] = next++;
+		return remap;
+	}
+
+	private static boolean contains(int[] a, int n, int v) {
+		for (int i = 0; i < n; i++)
+			if (a[i] == v)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return {misses, triangles, unique vertices}, summed over the lists
+	 */
+	private static int[] stats(int[][] indices, int vertexCount) {
+		int[] res = new int[3];
+		boolean[] used = new boolean[vertexCount];
+		for (int[] list : indices) {
+			res[0] += cacheMisses(list, vertexCount, SIMULATED_CACHE_SIZE);
+			res[1] += list.length / 3;
+			for (int v : list) {
+				if (!used[v]) {
+					used[v] = true;
+					res[2]++;
+				}
+			}
+		}
+		return res;
+	}
+
+	private static float vertexScore(int cachePos, int valence) {
+		if (valence <= 0)
+			return -1;
+		float score = 0;
+		if (cachePos >= 0) {
+			if (cachePos < 3) {
+				// The last triangle's vertices; deliberately not the best, so
+				// strips don't go back on themselves.
+				score = LAST_TRI_SCORE;
+			} else {
+				float scaler = 1.0f / (CACHE_SIZE - 3);
+				score = (float) Math.pow(1.0f - (cachePos - 3) * scaler, CACHE_DECAY_POWER);
+			}
+		}
+		return score + VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+	}
+
+	public static class CacheReport {
+		/**
+		 * Average cache miss ratio: vertex shader runs per triangle.
+		 */
+		public final float acmrBefore, acmrAfter;
+		/**
+		 * Average transformed vertex ratio: vertex shader runs per vertex. 1 is
+		 * optimal.
+		 */
+		public final float atvrBefore, atvrAfter;
+
+		private CacheReport(int[] before, int[] after) {
+			this.acmrBefore = before[0] / (float) Math.max(before[1], 1);
+			this.acmrAfter = after[0] / (float) Math.max(after[1], 1);
+			this.atvrBefore = before[0] / (float) Math.max(before[2], 1);
+			this.atvrAfter = after[0] / (float) Math.max(after[2], 1);
+		}
+
+		@Override
+		public String toString() {
+			return "ACMR " + acmrBefore + " -> " + acmrAfter + ", ATVR " + atvrBefore + " -> " + atvrAfter;
+		}
+	}
+}
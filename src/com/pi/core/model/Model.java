@@ -9,14 +9,39 @@ public class Model<E> extends GPUObject<Model<E>> {
 	public final VertexData<E> vertexData;
 	public final IndexBuffer[] indexes;
 	private boolean indexUploaded = false;
+	private final MeshOptimizer.CacheReport cacheReport;
 
-	public Model(PrimitiveType mode, VertexData<E> vertexData, int[]... index) {
+	/**
+	 * Creates a model, optionally reordering the triangles and vertices for
+	 * the vertex caches first. Optimizing permutes the vertex data, and only
+	 * works for triangle lists.
+	 * 
+	 * @see MeshOptimizer#optimize(VertexData, int[][])
+	 */
+	public Model(PrimitiveType mode, VertexData<E> vertexData, boolean optimize, IndexPacking packing,
+			int[]... index) {
 		if (index.length < 1)
 			throw new IllegalArgumentException("Must include at least one index buffer.");
 		this.vertexData = vertexData;
+		if (optimize) {
+			if (mode != PrimitiveType.TRIANGLES)
+				throw new IllegalArgumentException("Only triangle lists can be optimized, not " + mode);
+			index = index.clone();
+			this.cacheReport = MeshOptimizer.optimize(vertexData, index);
+		} else {
+			this.cacheReport = null;
+		}
 		this.indexes = new IndexBuffer[index.length];
 		for (int i = 0; i < index.length; i++)
-			this.indexes[i] = new IndexBuffer(mode, index[i]);
+			this.indexes[i] = new IndexBuffer(mode, index[i], packing);
+	}
+
+	public Model(PrimitiveType mode, VertexData<E> vertexData, boolean optimize, int[]... index) {
+		this(mode, vertexData, optimize, IndexPacking.DEFAULT, index);
+	}
+
+	public Model(PrimitiveType mode, VertexData<E> vertexData, int[]... index) {
+		this(mode, vertexData, false, index);
 	}
 
 	public Model(VertexData<E> vertexData, IndexBuffer... index) {
@@ -24,6 +49,15 @@ public class Model<E> extends GPUObject<Model<E>> {
 			throw new IllegalArgumentException("Must include at least one index buffer.");
 		this.vertexData = vertexData;
 		this.indexes = index;
+		this.cacheReport = null;
+	}
+
+	/**
+	 * @return the vertex cache statistics of the optimization done on
+	 *         construction, or null if the model wasn't optimized
+	 */
+	public MeshOptimizer.CacheReport cacheReport() {
+		return cacheReport;
 	}
 
 	public void cpuFree() {
@@ -73,12 +107,27 @@ public class Model<E> extends GPUObject<Model<E>> {
 		// VertexData.deactivate(); Don't need this in theory.
 	}
 
+	/**
+	 * Draws every index buffer. Scenes with many models should prefer a
+	 * {@link ModelBatch}.
+	 */
 	public void renderAll() {
 		vertexData.activate();
 		for (int i = 0; i < indexes.length; i++)
 			indexes[i].render();
 	}
 
+	/**
+	 * Draws every index buffer <em>n</em> times. Per-instance attributes come
+	 * from the {@link com.pi.core.vertex.InstanceData} attached to the vertex
+	 * data.
+	 */
+	public void renderInstances(int n) {
+		vertexData.activate();
+		for (int i = 0; i < indexes.length; i++)
+			indexes[i].renderInstances(n);
+	}
+
 	@Override
 	public String toString() {
 		return "Model[" + vertexData + ", " + Arrays.toString(indexes) + "]";
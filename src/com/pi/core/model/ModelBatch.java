@@ -0,0 +1,226 @@
+package com.pi.core.model;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL43;
+
+import com.pi.core.buffers.BufferType;
+import com.pi.core.buffers.GLGenericBuffer;
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.util.GPUObject;
+import com.pi.core.vertex.VertexData;
+
+/**
+ * Packs the vertices and index buffers of many models with the same vertex
+ * type into one vertex buffer and one index buffer, and draws them all with a
+ * single glMultiDrawElementsIndirect. Without indirect draws the commands are
+ * issued one by one, but still with one VAO and index buffer bind.
+ * <p>
+ * Each index buffer of each model becomes one draw command. The models must
+ * have CPU side data when the batch is created; after that they aren't used.
+ */
+public class ModelBatch<E> extends GPUObject<ModelBatch<E>> {
+	/**
+	 * Integers in one DrawElementsIndirectCommand: count, instanceCount,
+	 * firstIndex, baseVertex, baseInstance.
+	 */
+	private static final int COMMAND_INTS = 5;
+	private static final int COMMAND_SIZE = COMMAND_INTS * 4;
+
+	private final VertexData<E> vertexData;
+	private final IndexBuffer indices;
+	private final GLGenericBuffer commands;
+	private final PrimitiveType mode;
+	/**
+	 * Draw command range of each model, indexed by model.
+	 */
+	private final int[] modelCommand;
+	private final int commandCount;
+	private boolean indexUploaded = false;
+	private boolean indirect = true;
+
+	private static int indexLimit(int size) {
+		return size >= 4 ? -1 : (1 << (8 * size)) - 1;
+	}
+
+	private static int indexType(int indexSize) {
+		switch (indexSize) {
+		case 1:
+			return GL11.GL_UNSIGNED_BYTE;
+		case 2:
+			return GL11.GL_UNSIGNED_SHORT;
+		default:
+			return GL11.GL_UNSIGNED_INT;
+		}
+	}
+
+	@SafeVarargs
+	public ModelBatch(Model<E>... models) {
+		if (models.length < 1)
+			throw new IllegalArgumentException("Must include at least one model.");
+		final Class<E> vertexClass = models[0].vertexData.vertexClass;
+		this.mode = models[0].indexes[0].mode();
+
+		int vertexCount = 0, indexCount = 0, commandCount = 0, maxVertexID = 0;
+		boolean restart = false;
+		this.modelCommand = new int[models.length + 1];
+		for (int m = 0; m < models.length; m++) {
+			Model<E> model = models[m];
+			if (model.vertexData.vertexClass != vertexClass)
+				throw new IllegalArgumentException("Can't batch " + model.vertexData.vertexClass.getSimpleName()
+						+ " with " + vertexClass.getSimpleName());
+			modelCommand[m] = commandCount;
+			for (IndexBuffer index : model.indexes) {
+				if (index.mode() != mode)
+					throw new IllegalArgumentException("Can't batch " + index.mode() + " with " + mode);
+				if (index.buffer().getBacking() == null)
+					throw new IllegalStateException("Can't batch a model without CPU side index data.");
+				restart |= index.primitiveRestart();
+				for (int i = 0; i < index.indexCount(); i++)
+					maxVertexID = Math.max(maxVertexID, index.getIndex(i));
+				indexCount += index.indexCount();
+				commandCount++;
+			}
+			vertexCount += model.vertexData.count();
+		}
+		modelCommand[models.length] = commandCount;
+		this.commandCount = commandCount;
+
+		// Vertex IDs are relative to each model, so the index size only
+		// depends on the largest model.
+		int indexSize = IndexPacking.DEFAULT.primitiveRestart(restart).indexSize(maxVertexID);
+		this.vertexData = new VertexData<>(vertexClass, vertexCount, false);
+		this.indices = new IndexBuffer(mode, indexSize, indexCount);
+		this.commands = new GLGenericBuffer(commandCount * COMMAND_SIZE).type(BufferType.DRAW_INDIRECT);
+
+		int[] packed = new int[indexCount];
+		int baseVertex = 0, firstIndex = 0, command = 0;
+		for (Model<E> model : models) {
+			final VertexData<E> src = model.vertexData;
+			if (src.bufferObject.getBacking() == null)
+				throw new IllegalStateException("Can't batch a model without CPU side vertex data.");
+			vertexData.copy(src, 0, baseVertex, src.count());
+			for (IndexBuffer index : model.indexes) {
+				for (int i = 0; i < index.indexCount(); i++)
+					packed[firstIndex + i] = index.getIndex(i);
+				writeCommand(command++, index.indexCount(), 1, firstIndex, baseVertex);
+				firstIndex += index.indexCount();
+			}
+			baseVertex += src.count();
+		}
+		indices.write(packed, 0, indexCount, IndexPacking.DEFAULT.primitiveRestart(restart).forceSize(indexSize));
+	}
+
+	/**
+	 * @return the number of draw commands; one per index buffer of each model
+	 */
+	public int commandCount() {
+		return commandCount;
+	}
+
+	@Override
+	protected void gpuAllocInternal() {
+		indexUploaded = false;
+		vertexData.gpuAlloc();
+		indices.gpuAlloc();
+		commands.gpuAlloc();
+	}
+
+	@Override
+	protected void gpuFreeInternal() {
+		indexUploaded = false;
+		commands.gpuFree();
+		indices.gpuFree();
+		vertexData.gpuFree();
+	}
+
+	@Override
+	protected void gpuUploadInternal() {
+		if (!indexUploaded) {
+			indices.gpuUpload();
+			commands.gpuUpload();
+		} else if (commands.isDirty()) {
+			commands.gpuUploadDirty();
+		}
+		indexUploaded = true;
+		vertexData.gpuUpload();
+	}
+
+	/**
+	 * Enables or disables glMultiDrawElementsIndirect. It's only used when the
+	 * context supports it.
+	 */
+	public ModelBatch<E> indirect(boolean indirect) {
+		this.indirect = indirect;
+		return this;
+	}
+
+	/**
+	 * Sets the instance count of every draw command of a model. Zero hides the
+	 * model without rebuilding the batch. Changes are sent with the next
+	 * {@link #gpuUpload()}.
+	 */
+	public void instances(int model, int instances) {
+		ByteBuffer data = commands.getBacking();
+		for (int c = modelCommand[model]; c < modelCommand[model + 1]; c++)
+			data.putInt(c * COMMAND_SIZE + 4, instances);
+		commands.markDirty(modelCommand[model] * COMMAND_SIZE, modelCommand[model + 1] * COMMAND_SIZE);
+	}
+
+	public int modelCount() {
+		return modelCommand.length - 1;
+	}
+
+	public void render() {
+		vertexData.activate();
+		indices.buffer().bind(BufferType.ELEMENT_ARRAY);
+		IndexBuffer.restartState(indices.primitiveRestart(), indexLimit(indices.indexSize()));
+		final int type = indexType(indices.indexSize());
+		if (indirect && GL.getCapabilities().OpenGL43) {
+			commands.bind(BufferType.DRAW_INDIRECT);
+			GL43.glMultiDrawElementsIndirect(mode.mode(), type, 0, commandCount, 0);
+			FrameCounter.increment(FrameParam.DRAW_CALLS);
+		} else {
+			ByteBuffer data = commands.getBacking();
+			for (int c = 0; c < commandCount; c++) {
+				final int base = c * COMMAND_SIZE;
+				final int count = data.getInt(base);
+				final int instances = data.getInt(base + 4);
+				final long offset = (long) data.getInt(base + 8) * indices.indexSize();
+				final int baseVertex = data.getInt(base + 12);
+				if (instances == 0)
+					continue;
+				if (instances == 1)
+					GL32.glDrawElementsBaseVertex(mode.mode(), count, type, offset, baseVertex);
+				else
+					GL32.glDrawElementsInstancedBaseVertex(mode.mode(), count, type, offset, instances, baseVertex);
+				FrameCounter.increment(FrameParam.DRAW_CALLS);
+			}
+		}
+		FrameCounter.increment(FrameParam.DRAW_COMMANDS, commandCount);
+	}
+
+	@Override
+	public String toString() {
+		return "ModelBatch[" + vertexData + ", " + modelCount() + " models, " + commandCount + " commands]";
+	}
+
+	public VertexData<E> vertexData() {
+		return vertexData;
+	}
+
+	private void writeCommand(int command, int count, int instances, int firstIndex, int baseVertex) {
+		ByteBuffer data = commands.getBacking();
+		final int base = command * COMMAND_SIZE;
+		data.putInt(base, count);
+		data.putInt(base + 4, instances);
+		data.putInt(base + 8, firstIndex);
+		data.putInt(base + 12, baseVertex);
+		data.putInt(base + 16, 0);
+		commands.markDirty(base, base + COMMAND_SIZE);
+	}
+}
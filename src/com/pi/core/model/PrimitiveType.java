@@ -16,6 +16,14 @@ public enum PrimitiveType {
 		this.stride = stride;
 	}
 
+	/**
+	 * @return true for independent primitives, whose indices can be split
+	 *         into batches at any primitive boundary
+	 */
+	public boolean isList() {
+		return stride > 1 || this == POINTS;
+	}
+
 	public int mode() {
 		return glMode;
 	}
@@ -0,0 +1,405 @@
+package com.pi.core.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.core.glsl.ShaderProgram;
+import com.pi.core.texture.Texture;
+import com.pi.core.vertex.VertexData;
+
+/**
+ * Collects draws and issues them sorted by a 64 bit state key, so draws that
+ * share a shader, texture set and VAO are issued together.
+ * <p>
+ * The key holds, from the most significant bits down: the shader (16 bits),
+ * the texture set (16 bits), the vertex data (16 bits) and a user value (16
+ * bits) such as a depth bucket. Shaders, texture sets and vertex data are
+ * numbered in order of first submission. The sort is stable, so items with
+ * equal keys keep their submission order.
+ */
+public class RenderQueue {
+	private static final int FIELD_BITS = 16;
+	private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+
+	/**
+	 * Issues the queue with real GL calls.
+	 */
+	public static final Backend GL_BACKEND = new Backend() {
+		@Override
+		public void bindTextures(ShaderProgram shader, Texture[] textures) {
+			for (int i = 0; i < textures.length; i++)
+				shader.texture(i, textures[i]);
+		}
+
+		@Override
+		public void bindVertexArray(VertexData<?> vertices) {
+			vertices.activate();
+		}
+
+		@Override
+		public void commit(ShaderProgram shader, UniformSnapshot uniforms) {
+			if (uniforms != null)
+				uniforms.apply(shader);
+			shader.commitData();
+		}
+
+		@Override
+		public void draw(Model<?> model, int[] indexBuffers) {
+			if (indexBuffers == null)
+				model.renderAll();
+			else
+				model.render(indexBuffers);
+		}
+
+		@Override
+		public void useProgram(ShaderProgram shader) {
+			shader.bind();
+		}
+	};
+
+	private static final Comparator<Item> KEY_ORDER = new Comparator<Item>() {
+		@Override
+		public int compare(Item a, Item b) {
+			return Long.compareUnsigned(a.key, b.key);
+		}
+	};
+
+	private final List<Item> items = new ArrayList<>();
+	private Item[] order = new Item[0];
+	private int count = 0;
+
+	private final Map<ShaderProgram, Integer> shaderIDs = new IdentityHashMap<>();
+	private final Map<List<Texture>, Integer> textureIDs = new HashMap<>();
+	private final List<Texture[]> textureSets = new ArrayList<>();
+	private final Map<VertexData<?>, Integer> vertexIDs = new IdentityHashMap<>();
+
+	private final Stats submitted = new Stats();
+	private final Stats sorted = new Stats();
+
+	private static long field(long v, int slot) {
+		return (v & FIELD_MASK) << (FIELD_BITS * slot);
+	}
+
+	private static <K> int intern(Map<K, Integer> ids, K key) {
+		Integer id = ids.get(key);
+		if (id == null) {
+			if (ids.size() > FIELD_MASK)
+				throw new IllegalStateException("A queue can't hold more than " + (FIELD_MASK + 1) + " distinct "
+						+ key.getClass().getSimpleName() + " states; flush it sooner.");
+			ids.put(key, id = ids.size());
+		}
+		return id;
+	}
+
+	/**
+	 * Drops every queued item without drawing.
+	 */
+	public void clear() {
+		count = 0;
+		shaderIDs.clear();
+		textureIDs.clear();
+		textureSets.clear();
+		vertexIDs.clear();
+	}
+
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Sorts and draws every queued item with {@link #GL_BACKEND}, then clears
+	 * the queue.
+	 */
+	public void flush() {
+		flush(GL_BACKEND);
+	}
+
+	/**
+	 * Sorts and draws every queued item, then clears the queue.
+	 *
+	 * @param backend
+	 *            the backend that issues the calls
+	 */
+	public void flush(Backend backend) {
+		if (order.length < count)
+			order = new Item[Math.max(count, order.length * 2)];
+		for (int i = 0; i < count; i++)
+			order[i] = items.get(i);
+		submitted.simulate(order, count);
+		Arrays.sort(order, 0, count, KEY_ORDER);
+		sorted.simulate(order, count);
+
+		ShaderProgram shader = null;
+		Texture[] textures = null;
+		VertexData<?> vertices = null;
+		for (int i = 0; i < count; i++) {
+			Item item = order[i];
+			if (item.shader != shader) {
+				backend.useProgram(item.shader);
+				shader = item.shader;
+				textures = null;
+			}
+			if (item.textures != textures) {
+				backend.bindTextures(shader, item.textures);
+				textures = item.textures;
+			}
+			if (item.model.vertexData != vertices) {
+				backend.bindVertexArray(item.model.vertexData);
+				vertices = item.model.vertexData;
+			}
+			backend.commit(shader, item.uniforms);
+			backend.draw(item.model, item.indexBuffers);
+			order[i] = null;
+			item.clear();
+		}
+		FrameCounter.increment(FrameParam.QUEUE_ITEMS, count);
+		FrameCounter.increment(FrameParam.QUEUE_CHANGES_SAVED, submitted.total() - sorted.total());
+		clear();
+	}
+
+	/**
+	 * @return the state changes the last flush made after sorting
+	 */
+	public Stats sortedStats() {
+		return sorted;
+	}
+
+	/**
+	 * Queues a draw of every index buffer of a model.
+	 *
+	 * @see #submit(ShaderProgram, Texture[], Model, int[], UniformSnapshot,
+	 *      int)
+	 */
+	public void submit(ShaderProgram shader, Texture[] textures, Model<?> model, UniformSnapshot uniforms) {
+		submit(shader, textures, model, null, uniforms, 0);
+	}
+
+	/**
+	 * Queues a draw.
+	 *
+	 * @param shader
+	 *            the shader
+	 * @param textures
+	 *            the textures by unit, or an empty array. Items sort together
+	 *            when their arrays hold the same textures.
+	 * @param model
+	 *            the model
+	 * @param indexBuffers
+	 *            the index buffers of the model to draw, or null for all
+	 * @param uniforms
+	 *            applied right before the draw, or null
+	 * @param user
+	 *            the lowest 16 bits of the sort key, from 0 to 65535
+	 * @throws IllegalStateException
+	 *             if the queue already holds 65536 distinct shaders, texture
+	 *             sets or vertex data
+	 */
+	public void submit(ShaderProgram shader, Texture[] textures, Model<?> model, int[] indexBuffers,
+			UniformSnapshot uniforms, int user) {
+		if (shader == null || textures == null || model == null)
+			throw new IllegalArgumentException("A queued draw needs a shader, a texture array and a model.");
+		if (user < 0 || user > FIELD_MASK)
+			throw new IllegalArgumentException("The user key " + user + " doesn't fit in " + FIELD_BITS + " bits.");
+		final int shaderID = intern(shaderIDs, shader);
+		final int vertexID = intern(vertexIDs, model.vertexData);
+
+		// Equal texture sets share one array, so flush can compare references.
+		Integer textureID = textureIDs.get(Arrays.asList(textures));
+		if (textureID == null) {
+			if (textureSets.size() > FIELD_MASK)
+				throw new IllegalStateException("A queue can't hold more than " + (FIELD_MASK + 1)
+						+ " distinct texture sets; flush it sooner.");
+			Texture[] copy = textures.clone();
+			textureID = textureSets.size();
+			textureSets.add(copy);
+			textureIDs.put(Arrays.asList(copy), textureID);
+		}
+
+		if (count == items.size())
+			items.add(new Item());
+		Item item = items.get(count++);
+		item.shader = shader;
+		item.model = model;
+		item.indexBuffers = indexBuffers;
+		item.uniforms = uniforms;
+		item.textures = textureSets.get(textureID);
+		item.key = field(shaderID, 3) | field(textureID, 2) | field(vertexID, 1) | field(user, 0);
+	}
+
+	/**
+	 * @return the state changes the last flush would have made in submission
+	 *         order
+	 */
+	public Stats submittedStats() {
+		return submitted;
+	}
+
+	/**
+	 * Issues the calls of a flushed queue.
+	 */
+	public static interface Backend {
+		public void bindTextures(ShaderProgram shader, Texture[] textures);
+
+		public void bindVertexArray(VertexData<?> vertices);
+
+		public void commit(ShaderProgram shader, UniformSnapshot uniforms);
+
+		public void draw(Model<?> model, int[] indexBuffers);
+
+		public void useProgram(ShaderProgram shader);
+	}
+
+	private static class Item {
+		private long key;
+		private ShaderProgram shader;
+		private Texture[] textures;
+		private Model<?> model;
+		private int[] indexBuffers;
+		private UniformSnapshot uniforms;
+
+		private void clear() {
+			shader = null;
+			textures = null;
+			model = null;
+			indexBuffers = null;
+			uniforms = null;
+		}
+	}
+
+	/**
+	 * A backend that records the calls instead of making them, so the command
+	 * stream of a queue can be checked without a GL context.
+	 */
+	public static class RecordingBackend implements Backend {
+		private final List<String> commands = new ArrayList<>();
+		private final Map<Object, Integer> names = new IdentityHashMap<>();
+
+		@Override
+		public void bindTextures(ShaderProgram shader, Texture[] textures) {
+			StringBuilder sb = new StringBuilder("textures");
+			for (Texture t : textures)
+				sb.append(' ').append(t == null ? "-" : name(t));
+			commands.add(sb.toString());
+		}
+
+		@Override
+		public void bindVertexArray(VertexData<?> vertices) {
+			commands.add("vao " + name(vertices));
+		}
+
+		public void clear() {
+			commands.clear();
+		}
+
+		/**
+		 * @return the recorded commands, such as "program 0" or "draw 2"
+		 */
+		public List<String> commands() {
+			return commands;
+		}
+
+		@Override
+		public void commit(ShaderProgram shader, UniformSnapshot uniforms) {
+			commands.add("commit " + (uniforms == null ? "-" : name(uniforms)));
+		}
+
+		/**
+		 * @return how many recorded commands start with the given word
+		 */
+		public int count(String command) {
+			int n = 0;
+			for (String c : commands)
+				if (c.startsWith(command + " ") || c.equals(command))
+					n++;
+			return n;
+		}
+
+		@Override
+		public void draw(Model<?> model, int[] indexBuffers) {
+			commands.add("draw " + name(model) + (indexBuffers == null ? "" : " " + Arrays.toString(indexBuffers)));
+		}
+
+		/**
+		 * Objects are named by the order in which they're first recorded.
+		 */
+		private int name(Object o) {
+			Integer id = names.get(o);
+			if (id == null)
+				names.put(o, id = names.size());
+			return id;
+		}
+
+		@Override
+		public void useProgram(ShaderProgram shader) {
+			commands.add("program " + name(shader));
+		}
+	}
+
+	/**
+	 * State changes counted for one order of a queue.
+	 */
+	public static class Stats {
+		private int shaderChanges, textureChanges, vaoChanges;
+
+		public int shaderChanges() {
+			return shaderChanges;
+		}
+
+		private void simulate(Item[] items, int count) {
+			shaderChanges = textureChanges = vaoChanges = 0;
+			ShaderProgram shader = null;
+			Texture[] textures = null;
+			VertexData<?> vertices = null;
+			for (int i = 0; i < count; i++) {
+				Item item = items[i];
+				if (item.shader != shader) {
+					shaderChanges++;
+					// Like flush, rebind every texture after a shader change.
+					textures = null;
+				}
+				if (item.textures != textures) {
+					for (int u = 0; u < item.textures.length; u++)
+						if (textures == null || u >= textures.length || textures[u] != item.textures[u])
+							textureChanges++;
+				}
+				if (item.model.vertexData != vertices)
+					vaoChanges++;
+				shader = item.shader;
+				textures = item.textures;
+				vertices = item.model.vertexData;
+			}
+		}
+
+		public int textureChanges() {
+			return textureChanges;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats[shader=" + shaderChanges + ", texture=" + textureChanges + ", vao=" + vaoChanges + "]";
+		}
+
+		public int total() {
+			return shaderChanges + textureChanges + vaoChanges;
+		}
+
+		public int vaoChanges() {
+			return vaoChanges;
+		}
+	}
+
+	/**
+	 * The uniform values of one queued draw. Applied after the shader is bound
+	 * and before its data is committed.
+	 */
+	public static interface UniformSnapshot {
+		public void apply(ShaderProgram shader);
+	}
+}
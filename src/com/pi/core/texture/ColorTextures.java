@@ -39,9 +39,7 @@ public class ColorTextures {
 			data.put((byte) ((argb >> 0) & 0xFF));
 			data.put((byte) ((argb >> 24) & 0xFF));
 			data.flip();
-			GL11.glBindTexture(GL11.GL_TEXTURE_2D, t.getID());
-			GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, 1, 1,
-					GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, data);
+			t.upload(GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, data);
 		}
 		return t;
 	}
@@ -6,6 +6,7 @@ import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL30;
 
+import com.pi.core.util.GLFeature;
 import com.pi.math.vector.VectorBuff;
 
 public class DataTexture<T extends VectorBuff> extends Texture {
@@ -91,20 +92,21 @@ public class DataTexture<T extends VectorBuff> extends Texture {
 
 	@Override
 	protected void gpuDownloadInternal() {
-		super.bind();
 		backing.position(0);
-		GL11.glGetTexImage(GL11.GL_TEXTURE_2D, 0, stashFormat, GL11.GL_FLOAT, backing);
-		super.unbind();
+		download(stashFormat, GL11.GL_FLOAT, backing);
 	}
 
 	@Override
 	protected void gpuUploadInternal() {
-		super.bind();
-		super.commitParameters();
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			super.commitParameters();
+		} else {
+			super.bind();
+			super.commitParameters();
+			super.unbind();
+		}
 		backing.position(0);
-		GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, super.getWidth(), super.getHeight(), stashFormat,
-				GL11.GL_FLOAT, backing);
-		super.unbind();
+		upload(stashFormat, GL11.GL_FLOAT, backing);
 	}
 
 	@Override
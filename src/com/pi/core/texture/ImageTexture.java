@@ -9,7 +9,6 @@ import javax.imageio.ImageIO;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL30;
 
 public class ImageTexture extends Texture {
 	private BufferedImage img;
@@ -60,10 +59,7 @@ public class ImageTexture extends Texture {
 			}
 		}
 		data.flip();
-		bind();
-		GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, getWidth(), getHeight(), GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE,
-				data);
-		GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
-		unbind();
+		upload(GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, data);
+		generateMipmap();
 	}
 }
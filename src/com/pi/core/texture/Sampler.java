@@ -0,0 +1,87 @@
+package com.pi.core.texture;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL33;
+
+import com.pi.core.util.GLIdentifiable;
+import com.pi.core.util.GLRef;
+
+/**
+ * A GL sampler object: wrap and filter state kept apart from the textures it
+ * samples, so one texture can be sampled several ways and textures with the
+ * same state share one object. Samplers are cached by their state; get them
+ * with {@link #get(TextureWrap, TextureWrap, TextureFilter, TextureFilter, TextureFilter)}
+ * or {@link Texture#sampler()}. The GL object is made the first time it's
+ * used.
+ */
+public final class Sampler implements GLIdentifiable {
+	private static final Map<Integer, Sampler> cache = new HashMap<>();
+
+	private final TextureWrap sWrap, tWrap;
+	private final TextureFilter mipmapFilter, minFilter, magFilter;
+	private int glref = GLRef.NULL;
+
+	/**
+	 * Frees every cached sampler object, such as before the context is
+	 * destroyed. Samplers are made again when next used.
+	 */
+	public static void freeAll() {
+		for (Sampler s : cache.values()) {
+			if (GLRef.notNull(s.glref)) {
+				GL33.glDeleteSamplers(s.glref);
+				s.glref = GLRef.NULL;
+			}
+		}
+		TextureUnits.forgetSamplers();
+	}
+
+	/**
+	 * @param mipmap
+	 *            the filter between mipmap levels, or null to not use mipmaps
+	 * @return the sampler with the given state
+	 */
+	public static Sampler get(TextureWrap sWrap, TextureWrap tWrap, TextureFilter mipmap, TextureFilter minFilter,
+			TextureFilter magFilter) {
+		final int key = (((sWrap.ordinal() * 4 + tWrap.ordinal()) * 4 + (mipmap == null ? 3 : mipmap.ordinal())) * 4
+				+ minFilter.ordinal()) * 4 + magFilter.ordinal();
+		Sampler s = cache.get(key);
+		if (s == null)
+			cache.put(key, s = new Sampler(sWrap, tWrap, mipmap, minFilter, magFilter));
+		return s;
+	}
+
+	private Sampler(TextureWrap sWrap, TextureWrap tWrap, TextureFilter mipmap, TextureFilter minFilter,
+			TextureFilter magFilter) {
+		if (mipmap != null && Texture.minFilterID(mipmap, minFilter) == -1)
+			throw new IllegalArgumentException("The mimap filter " + mipmap.name() + " and minifying filter "
+					+ minFilter.name() + " aren't compatible");
+		this.sWrap = sWrap;
+		this.tWrap = tWrap;
+		this.mipmapFilter = mipmap;
+		this.minFilter = minFilter;
+		this.magFilter = magFilter;
+	}
+
+	@Override
+	public int getID() {
+		if (GLRef.isNull(glref)) {
+			glref = GL33.glGenSamplers();
+			if (GLRef.isNull(glref))
+				throw new NullPointerException("Failed to allocate sampler");
+			GL33.glSamplerParameteri(glref, GL11.GL_TEXTURE_WRAP_S, sWrap.glID);
+			GL33.glSamplerParameteri(glref, GL11.GL_TEXTURE_WRAP_T, tWrap.glID);
+			GL33.glSamplerParameteri(glref, GL11.GL_TEXTURE_MIN_FILTER, Texture.minFilterID(mipmapFilter, minFilter));
+			GL33.glSamplerParameteri(glref, GL11.GL_TEXTURE_MAG_FILTER, magFilter.glID);
+		}
+		return glref;
+	}
+
+	@Override
+	public String toString() {
+		return "Sampler[wrap=" + sWrap + "/" + tWrap + ", mipmap=" + mipmapFilter + ", min=" + minFilter + ", mag="
+				+ magFilter + "]";
+	}
+}
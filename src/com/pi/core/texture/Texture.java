@@ -1,29 +1,30 @@
 package com.pi.core.texture;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
 
+import org.lwjgl.opengl.ARBBindlessTexture;
 import org.lwjgl.opengl.ARBDirectStateAccess;
-import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
 import org.lwjgl.opengl.GL13;
 import org.lwjgl.opengl.GL14;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
 import org.lwjgl.opengl.GL45;
 
 import com.pi.core.debug.FrameCounter;
 import com.pi.core.debug.FrameCounter.FrameParam;
 import com.pi.core.framebuffer.FrameBufferAttachable;
 import com.pi.core.util.Bindable;
+import com.pi.core.util.GLFeature;
 import com.pi.core.util.GLRef;
 import com.pi.core.util.GPUObject;
-import com.pi.util.ReferenceTable;
+import com.pi.core.util.MemoryBarriers;
 
 public class Texture extends GPUObject<Texture> implements Bindable, FrameBufferAttachable {
-	private static final int MAX_TEXTURE_UNITS = 64;
 	private static int activeTextureUnit = 0;
-	private static final ReferenceTable<Texture> bound = new ReferenceTable<>(MAX_TEXTURE_UNITS);
 	private static final int[][] MIPMAP_FILTER_TABLE;
 	private static final int[] DEPTH_FORMATS = { GL11.GL_DEPTH_COMPONENT, GL14.GL_DEPTH_COMPONENT16,
 			GL14.GL_DEPTH_COMPONENT24, GL14.GL_DEPTH_COMPONENT32, GL30.GL_DEPTH24_STENCIL8, GL30.GL_DEPTH32F_STENCIL8,
@@ -47,6 +48,7 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 	}
 
 	private int glref;
+	private long handle = 0;
 	private final int internalFormat;
 
 	private final int width, height;
@@ -61,24 +63,55 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 		activeTextureUnit = n;
 	}
 
+	/**
+	 * @return the GL minifying filter for a mipmap filter, which may be null,
+	 *         and a filter within a level; -1 if they aren't compatible
+	 */
+	static int minFilterID(TextureFilter mipmap, TextureFilter minFilter) {
+		return mipmap != null ? MIPMAP_FILTER_TABLE[mipmap.ordinal()][minFilter.ordinal()] : minFilter.glID;
+	}
+
+	/**
+	 * Immutable storage needs a sized format, so unsized formats get the size
+	 * drivers pick for them with glTexImage2D.
+	 */
+	private static int sizedFormat(int format) {
+		switch (format) {
+		case GL11.GL_RED:
+			return GL30.GL_R8;
+		case GL30.GL_RG:
+			return GL30.GL_RG8;
+		case GL11.GL_RGB:
+			return GL11.GL_RGB8;
+		case GL11.GL_RGBA:
+			return GL11.GL_RGBA8;
+		case GL11.GL_DEPTH_COMPONENT:
+			return GL14.GL_DEPTH_COMPONENT24;
+		case GL30.GL_DEPTH_STENCIL:
+			return GL30.GL_DEPTH24_STENCIL8;
+		default:
+			return format;
+		}
+	}
+
 	public static void unbind() {
-		if (bound.isEmpty(activeTextureUnit))
+		if (TextureUnits.textures().isEmpty(activeTextureUnit))
 			return;
 		GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
-		bound.empty(activeTextureUnit);
+		TextureUnits.textures().empty(activeTextureUnit);
 		FrameCounter.increment(FrameParam.TEXTURE_BINDS);
 	}
 
 	public static void unbind(int unit) {
-		if (bound.isEmpty(unit))
+		if (TextureUnits.textures().isEmpty(unit))
 			return;
-		if (GL.getCapabilities().GL_ARB_direct_state_access) {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
 			ARBDirectStateAccess.glBindTextureUnit(unit, 0);
 		} else {
 			glActiveTexture(unit);
 			GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
 		}
-		bound.empty(unit);
+		TextureUnits.textures().empty(unit);
 		FrameCounter.increment(FrameParam.TEXTURE_BINDS);
 	}
 
@@ -103,36 +136,45 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 	public void bind() {
 		if (GLRef.isNull(glref))
 			throw new RuntimeException("Can't bind an unallocated texture.");
-		if (bound.isAttached(activeTextureUnit, this))
+		MemoryBarriers.require(this, GL42.GL_TEXTURE_FETCH_BARRIER_BIT);
+		if (TextureUnits.textures().isAttached(activeTextureUnit, this))
 			return;
 		GL11.glBindTexture(GL11.GL_TEXTURE_2D, glref);
-		bound.attach(activeTextureUnit, this);
+		TextureUnits.textures().attach(activeTextureUnit, this);
 		FrameCounter.increment(FrameParam.TEXTURE_BINDS);
 	}
 
 	public void bind(int unit) {
 		if (GLRef.isNull(glref))
 			throw new RuntimeException("Can't bind an unallocated texture.");
-		if (bound.isAttached(unit, this))
+		MemoryBarriers.require(this, GL42.GL_TEXTURE_FETCH_BARRIER_BIT);
+		if (TextureUnits.textures().isAttached(unit, this))
 			return;
-		if (GL.getCapabilities().GL_ARB_direct_state_access) {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
 			ARBDirectStateAccess.glBindTextureUnit(unit, glref);
 		} else {
 			glActiveTexture(unit);
 			GL11.glBindTexture(GL11.GL_TEXTURE_2D, glref);
 		}
-		bound.attach(unit, this);
+		TextureUnits.textures().attach(unit, this);
 		FrameCounter.increment(FrameParam.TEXTURE_BINDS);
 	}
 
 	/**
-	 * The texture MUST be bound for this to work.
+	 * Without direct state access the texture MUST be bound for this to work.
 	 */
 	protected void commitParameters() {
+		final int min = minFilterID(mipmapFilter, minFilter);
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glTextureParameteri(glref, GL11.GL_TEXTURE_WRAP_S, sWrap.glID);
+			GL45.glTextureParameteri(glref, GL11.GL_TEXTURE_WRAP_T, tWrap.glID);
+			GL45.glTextureParameteri(glref, GL11.GL_TEXTURE_MIN_FILTER, min);
+			GL45.glTextureParameteri(glref, GL11.GL_TEXTURE_MAG_FILTER, magFilter.glID);
+			return;
+		}
 		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_S, sWrap.glID);
 		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_WRAP_T, tWrap.glID);
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, mipmapFilter != null
-				? MIPMAP_FILTER_TABLE[mipmapFilter.ordinal()][minFilter.ordinal()] : minFilter.glID);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, min);
 		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, magFilter.glID);
 	}
 
@@ -140,20 +182,45 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 		// Do nothing for the generic texture
 	}
 
+	/**
+	 * Reads level zero of the texture.
+	 */
+	protected void download(int format, int type, FloatBuffer pixels) {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glGetTextureImage(glref, 0, format, type, pixels);
+		} else {
+			bind();
+			GL11.glGetTexImage(GL11.GL_TEXTURE_2D, 0, format, type, pixels);
+			unbind();
+		}
+	}
+
 	public Texture filter(TextureFilter mipmap, TextureFilter minFilter, TextureFilter magFilter) {
 		if (minFilter == null)
 			throw new IllegalArgumentException("Minifying filter can't be null");
 		if (magFilter == null)
 			throw new IllegalArgumentException("Magnification filter can't be null");
-		if (mipmap != null && MIPMAP_FILTER_TABLE[mipmap.ordinal()][minFilter.ordinal()] == -1)
+		if (mipmap != null && minFilterID(mipmap, minFilter) == -1)
 			throw new IllegalArgumentException("The mimap filter " + mipmap.name() + " and minifying filter "
 					+ minFilter.name() + " aren't compatible");
+		if (handle != 0)
+			throw new IllegalStateException("Can't change the filter of a texture with a resident handle.");
 		this.mipmapFilter = mipmap;
 		this.minFilter = minFilter;
 		this.magFilter = magFilter;
 		return this;
 	}
 
+	protected void generateMipmap() {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glGenerateTextureMipmap(glref);
+		} else {
+			bind();
+			GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+			unbind();
+		}
+	}
+
 	public int getHeight() {
 		return height;
 	}
@@ -163,33 +230,43 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 		return glref;
 	}
 
+	public int getInternalFormat() {
+		return internalFormat;
+	}
+
 	public int getWidth() {
 		return width;
 	}
 
 	@Override
 	protected void gpuAllocInternal() {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			glref = GL45.glCreateTextures(GL11.GL_TEXTURE_2D);
+			if (GLRef.isNull(glref))
+				throw new NullPointerException("Failed to allocate texture");
+			// Storage fails with more levels than halvings down to 1x1.
+			final int levels = Math.min(mipmapLevels + 1, 32 - Integer.numberOfLeadingZeros(Math.max(width, height)));
+			GL45.glTextureStorage2D(glref, levels, sizedFormat(internalFormat), width, height);
+			commitParameters();
+			return;
+		}
 		glref = GL11.glGenTextures();
 		if (GLRef.isNull(glref))
 			throw new NullPointerException("Failed to allocate texture");
 		bind();
-		if (GL.getCapabilities().OpenGL45) {
-			GL45.glTextureStorage2D(GL11.GL_TEXTURE_2D, mipmapLevels, internalFormat, width, height);
-		} else {
-			int allocFmt = GL11.GL_RED;
-			if (Arrays.binarySearch(DEPTH_FORMATS, internalFormat) >= 0)
-				allocFmt = GL11.GL_DEPTH_COMPONENT;
-
-			GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_BASE_LEVEL, 0);
-			GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, mipmapLevels);
-			int tmpW = width;
-			int tmpH = height;
-			for (int level = 0; level <= mipmapLevels; level++) {
-				GL11.glTexImage2D(GL11.GL_TEXTURE_2D, level, internalFormat, tmpW, tmpH, 0, allocFmt,
-						GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
-				tmpW >>= 1;
-				tmpH >>= 1;
-			}
+		int allocFmt = GL11.GL_RED;
+		if (Arrays.binarySearch(DEPTH_FORMATS, internalFormat) >= 0)
+			allocFmt = GL11.GL_DEPTH_COMPONENT;
+
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_BASE_LEVEL, 0);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, mipmapLevels);
+		int tmpW = width;
+		int tmpH = height;
+		for (int level = 0; level <= mipmapLevels; level++) {
+			GL11.glTexImage2D(GL11.GL_TEXTURE_2D, level, internalFormat, tmpW, tmpH, 0, allocFmt,
+					GL11.GL_UNSIGNED_BYTE, (ByteBuffer) null);
+			tmpW >>= 1;
+			tmpH >>= 1;
 		}
 		commitParameters();
 		unbind();
@@ -199,6 +276,10 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 	protected void gpuFreeInternal() {
 		if (GLRef.isNull(glref))
 			return;
+		if (handle != 0) {
+			ARBBindlessTexture.glMakeTextureHandleNonResidentARB(handle);
+			handle = 0;
+		}
 		GL11.glDeleteTextures(glref);
 		glref = GLRef.NULL;
 	}
@@ -210,11 +291,64 @@ public class Texture extends GPUObject<Texture> implements Bindable, FrameBuffer
 		return this;
 	}
 
+	/**
+	 * Gets a bindless handle for this texture and makes it resident, so
+	 * shaders can sample it from a uniform block without a texture unit. The
+	 * texture's wrap and filter state can't change once it has a handle.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if {@link GLFeature#BINDLESS_TEXTURE} isn't available
+	 */
+	public long residentHandle() {
+		if (!GLFeature.BINDLESS_TEXTURE.available())
+			throw new UnsupportedOperationException("Bindless textures aren't available.");
+		if (GLRef.isNull(glref))
+			throw new IllegalStateException("Can't make a handle for an unallocated texture.");
+		if (handle == 0) {
+			handle = ARBBindlessTexture.glGetTextureHandleARB(glref);
+			ARBBindlessTexture.glMakeTextureHandleResidentARB(handle);
+		}
+		return handle;
+	}
+
+	/**
+	 * @return the cached sampler object with this texture's wrap and filter
+	 *         state
+	 */
+	public Sampler sampler() {
+		return Sampler.get(sWrap, tWrap, mipmapFilter, minFilter, magFilter);
+	}
+
+	/**
+	 * Replaces level zero of the texture.
+	 */
+	protected void upload(int format, int type, ByteBuffer pixels) {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glTextureSubImage2D(glref, 0, 0, 0, width, height, format, type, pixels);
+		} else {
+			bind();
+			GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, format, type, pixels);
+			unbind();
+		}
+	}
+
+	protected void upload(int format, int type, FloatBuffer pixels) {
+		if (GLFeature.DIRECT_STATE_ACCESS.available()) {
+			GL45.glTextureSubImage2D(glref, 0, 0, 0, width, height, format, type, pixels);
+		} else {
+			bind();
+			GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, width, height, format, type, pixels);
+			unbind();
+		}
+	}
+
 	public Texture wrap(TextureWrap sWrap, TextureWrap tWrap) {
 		if (sWrap == null)
 			throw new IllegalArgumentException("SWrap can't be null");
 		if (tWrap == null)
 			throw new IllegalArgumentException("TWrap can't be null");
+		if (handle != 0)
+			throw new IllegalStateException("Can't change the wrap of a texture with a resident handle.");
 		this.sWrap = sWrap;
 		this.tWrap = tWrap;
 		return this;
@@ -0,0 +1,69 @@
+package com.pi.core.texture;
+
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL33;
+
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+import com.pi.util.ReferenceTable;
+
+/**
+ * What is bound to each texture unit, shared by every program so a unit
+ * holding the right texture and sampler is never bound again, no matter
+ * which program or direct call bound it. Sized by
+ * GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS.
+ */
+public class TextureUnits {
+	private static int count = -1;
+	private static ReferenceTable<Texture> textures;
+	private static int[] samplers;
+
+	/**
+	 * @return the number of texture units usable at once by all stages
+	 */
+	public static int count() {
+		if (count < 0)
+			count = GL11.glGetInteger(GL20.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS);
+		return count;
+	}
+
+	static void forgetSamplers() {
+		if (samplers != null)
+			Arrays.fill(samplers, 0);
+	}
+
+	/**
+	 * Forgets everything bound, for when the context is recreated.
+	 */
+	public static void reset() {
+		count = -1;
+		textures = null;
+		samplers = null;
+	}
+
+	/**
+	 * Binds a sampler to a unit unless it's already bound there.
+	 *
+	 * @param s
+	 *            the sampler, or null to sample with the texture's own state
+	 */
+	public static void sampler(int unit, Sampler s) {
+		if (samplers == null)
+			samplers = new int[count()];
+		final int id = s == null ? 0 : s.getID();
+		if (samplers[unit] == id)
+			return;
+		GL33.glBindSampler(unit, id);
+		samplers[unit] = id;
+		FrameCounter.increment(FrameParam.SAMPLER_BINDS);
+	}
+
+	static ReferenceTable<Texture> textures() {
+		if (textures == null)
+			textures = new ReferenceTable<>(count());
+		return textures;
+	}
+}
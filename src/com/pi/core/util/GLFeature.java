@@ -0,0 +1,84 @@
+package com.pi.core.util;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * Optional GL features that change how objects are edited. Detected once from
+ * the context's capabilities; call {@link #detect()} after the context is made
+ * current, or the first query does it. A feature can be turned off to force
+ * the fallback path.
+ */
+public enum GLFeature {
+	/**
+	 * Resident texture handles that shaders read from uniform blocks, without
+	 * texture units. ARB_bindless_texture. Off unless enabled, as shaders have
+	 * to be written for it.
+	 */
+	BINDLESS_TEXTURE(false),
+	/**
+	 * Editing buffers and textures by name with glNamedBufferSubData,
+	 * glTextureParameteri and the like, without binding them. OpenGL 4.5 or
+	 * ARB_direct_state_access.
+	 */
+	DIRECT_STATE_ACCESS,
+	/**
+	 * Setting uniforms of a program that isn't bound, with glProgramUniform.
+	 * OpenGL 4.1 or ARB_separate_shader_objects.
+	 */
+	PROGRAM_UNIFORMS,
+	/**
+	 * Sampling state kept in sampler objects bound to texture units, separate
+	 * from the textures. OpenGL 3.3 or ARB_sampler_objects.
+	 */
+	SAMPLER_OBJECTS;
+
+	private static boolean detected = false;
+
+	private boolean supported = false;
+	private boolean enabled;
+
+	private GLFeature() {
+		this(true);
+	}
+
+	private GLFeature(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Reads the supported features from the current context's capabilities.
+	 */
+	public static void detect() {
+		GLCapabilities caps = GL.getCapabilities();
+		BINDLESS_TEXTURE.supported = caps.GL_ARB_bindless_texture;
+		DIRECT_STATE_ACCESS.supported = caps.OpenGL45 || caps.GL_ARB_direct_state_access;
+		PROGRAM_UNIFORMS.supported = caps.OpenGL41 || caps.GL_ARB_separate_shader_objects;
+		SAMPLER_OBJECTS.supported = caps.OpenGL33 || caps.GL_ARB_sampler_objects;
+		detected = true;
+	}
+
+	/**
+	 * @return true if the context supports this feature and it's enabled
+	 */
+	public boolean available() {
+		if (!detected)
+			detect();
+		return supported && enabled;
+	}
+
+	/**
+	 * Enables or disables this feature. Should be set before any GL objects
+	 * are allocated, as objects made one way may not work the other.
+	 */
+	public GLFeature enabled(boolean enabled) {
+		this.enabled = enabled;
+		return this;
+	}
+
+	public boolean supported() {
+		if (!detected)
+			detect();
+		return supported;
+	}
+}
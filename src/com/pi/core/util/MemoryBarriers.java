@@ -0,0 +1,63 @@
+package com.pi.core.util;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.lwjgl.opengl.GL42;
+
+import com.pi.core.debug.FrameCounter;
+import com.pi.core.debug.FrameCounter.FrameParam;
+
+/**
+ * Tracks incoherent shader writes (shader storage, images) and issues only the
+ * glMemoryBarrier bits needed before a written resource is used another way.
+ * <p>
+ * A barrier bit is global, so issuing it satisfies every pending write for
+ * that kind of access, not just the resource that asked for it.
+ */
+public class MemoryBarriers {
+	private static final Map<Object, Integer> pending = new IdentityHashMap<>();
+
+	/**
+	 * @return true if any resource has writes that no barrier covers yet
+	 */
+	public static boolean pending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Makes earlier shader writes to a resource visible to the given kind of
+	 * access, issuing a barrier only if there are such writes.
+	 * 
+	 * @param resource
+	 *            the resource about to be used
+	 * @param barrierBit
+	 *            the GL42 barrier bit for the kind of access
+	 */
+	public static void require(Object resource, int barrierBit) {
+		if (pending.isEmpty())
+			return;
+		Integer bits = pending.get(resource);
+		if (bits == null || (bits & barrierBit) == 0)
+			return;
+		GL42.glMemoryBarrier(barrierBit);
+		FrameCounter.increment(FrameParam.MEMORY_BARRIERS);
+		Iterator<Map.Entry<Object, Integer>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Object, Integer> e = it.next();
+			int left = e.getValue() & ~barrierBit;
+			if (left == 0)
+				it.remove();
+			else
+				e.setValue(left);
+		}
+	}
+
+	/**
+	 * Records that a shader may have written a resource incoherently.
+	 */
+	public static void written(Object resource) {
+		pending.put(resource, GL42.GL_ALL_BARRIER_BITS);
+	}
+}
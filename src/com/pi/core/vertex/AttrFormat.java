@@ -0,0 +1,113 @@
+package com.pi.core.vertex;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
+
+/**
+ * The storage format of a vertex attribute. Anything other than the natural
+ * format of the field ({@link #FLOAT} for vectors and matrices,
+ * {@link #NORMALIZED_UNSIGNED_BYTE} for byte vectors) isn't exposed on vertex
+ * objects, and has to be accessed through {@link VertexCursor} or
+ * {@link VertexAttribute}, which encode and decode the values.
+ */
+public enum AttrFormat {
+	/**
+	 * The natural format of the field type.
+	 */
+	DEFAULT(GL11.GL_FLOAT, 4, false, false),
+	FLOAT(GL11.GL_FLOAT, 4, false, false),
+	HALF_FLOAT(GL30.GL_HALF_FLOAT, 2, false, false),
+	/**
+	 * Signed shorts mapped to [-1, 1].
+	 */
+	NORMALIZED_SHORT(GL11.GL_SHORT, 2, true, false),
+	/**
+	 * Unsigned shorts mapped to [0, 1].
+	 */
+	NORMALIZED_UNSIGNED_SHORT(GL11.GL_UNSIGNED_SHORT, 2, true, false),
+	/**
+	 * Unsigned bytes mapped to [0, 1].
+	 */
+	NORMALIZED_UNSIGNED_BYTE(GL11.GL_UNSIGNED_BYTE, 1, true, false),
+	/**
+	 * Three signed 10 bit components and a signed 2 bit component packed into
+	 * one integer, mapped to [-1, 1]. Typically used for normals.
+	 */
+	NORMALIZED_INT_2_10_10_10_REV(GL33.GL_INT_2_10_10_10_REV, 0, true, false),
+	/**
+	 * Signed integers, passed to the shader unconverted through
+	 * glVertexAttribIPointer.
+	 */
+	INTEGER(GL11.GL_INT, 4, false, true),
+	/**
+	 * Unsigned integers, passed to the shader unconverted through
+	 * glVertexAttribIPointer.
+	 */
+	UNSIGNED_INTEGER(GL11.GL_UNSIGNED_INT, 4, false, true);
+
+	public final int glType;
+	private final int componentBytes;
+	public final boolean normalized;
+	public final boolean integer;
+
+	static float halfToFloat(short h) {
+		int bits = h & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exp = (bits >> 10) & 0x1F;
+		int mant = bits & 0x3FF;
+		if (exp == 0) {
+			// Zero or subnormal
+			float v = mant * (1f / (1 << 24));
+			return sign != 0 ? -v : v;
+		} else if (exp == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mant << 13));
+		}
+		return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+	}
+
+	static short floatToHalf(float f) {
+		int bits = Float.floatToRawIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int exp = ((bits >>> 23) & 0xFF) - 112;
+		int mant = bits & 0x7FFFFF;
+		if (exp >= 0x1F) {
+			// Overflow to infinity, keep NaN a NaN
+			boolean nan = ((bits >>> 23) & 0xFF) == 0xFF && mant != 0;
+			return (short) (sign | 0x7C00 | (nan ? 0x200 : 0));
+		} else if (exp <= 0) {
+			if (exp < -10)
+				return (short) sign;
+			// Subnormal, round to nearest
+			mant |= 0x800000;
+			int shift = 14 - exp;
+			return (short) (sign | ((mant + (1 << (shift - 1))) >> shift));
+		}
+		// Round to nearest; a carry correctly bumps the exponent.
+		return (short) ((sign | (exp << 10) | (mant >> 13)) + ((mant >> 12) & 1));
+	}
+
+	private AttrFormat(int glType, int componentBytes, boolean normalized, boolean integer) {
+		this.glType = glType;
+		this.componentBytes = componentBytes;
+		this.normalized = normalized;
+		this.integer = integer;
+	}
+
+	/**
+	 * @return the size of an attribute with the given number of components,
+	 *         padded to four bytes
+	 */
+	int bytes(int components) {
+		if (this == NORMALIZED_INT_2_10_10_10_REV)
+			return 4;
+		return (componentBytes * components + 3) & ~3;
+	}
+
+	/**
+	 * @return the byte offset of a component, or zero for packed formats
+	 */
+	int componentOffset(int component) {
+		return component * componentBytes;
+	}
+}
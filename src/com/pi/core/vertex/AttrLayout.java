@@ -11,6 +11,18 @@ public @interface AttrLayout {
 	public int arraySize() default 1;
 
 	public int dimension() default -1;
-	
+
+	/**
+	 * The storage format of the attribute.
+	 */
+	public AttrFormat format() default AttrFormat.DEFAULT;
+
 	public int layout();
+
+	/**
+	 * The buffer stream the attribute is stored in. Each stream is a separate
+	 * buffer, so attributes that change often can be uploaded without the
+	 * static ones.
+	 */
+	public int stream() default 0;
 }
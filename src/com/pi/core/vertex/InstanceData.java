@@ -0,0 +1,133 @@
+package com.pi.core.vertex;
+
+import java.nio.ByteBuffer;
+
+import com.pi.core.util.GPUObject;
+
+/**
+ * A growable list of per-instance attributes, such as a Matrix4 transform per
+ * object. Attach it to a {@link VertexData} with
+ * {@link VertexData#instances(InstanceData)} and draw with an instanced draw
+ * call.
+ * <p>
+ * The list is meant to be rebuilt every frame:
+ *
+ * <pre>
+ * instances.begin();
+ * for (Obj o : visible)
+ * 	instances.cursor().seek(instances.add()).set(...);
+ * instances.end();
+ * instances.gpuUpload();
+ * </pre>
+ *
+ * {@link #end()} compares each instance with the previous frame, so only the
+ * instances that changed are uploaded.
+ */
+public class InstanceData<I> extends GPUObject<InstanceData<I>> {
+	private final VertexData<I> data;
+	private final VertexCursor cursor;
+	private byte[][] previous;
+	private int previousCount = 0;
+	private int count = 0;
+	/**
+	 * True when the GPU copy can't be patched, so everything is uploaded.
+	 */
+	private boolean full = true;
+
+	private static boolean same(ByteBuffer current, int offset, byte[] previous, int stride) {
+		for (int b = 0; b < stride; b++)
+			if (current.get(offset + b) != previous[offset + b])
+				return false;
+		return true;
+	}
+
+	public InstanceData(Class<I> instanceClass, int capacity) {
+		this.data = new VertexData<>(instanceClass, Math.max(capacity, 1), false);
+		this.cursor = data.cursor();
+		this.previous = new byte[data.streams()][0];
+	}
+
+	/**
+	 * Adds an instance. Its contents are left over from the last frame, if
+	 * any.
+	 *
+	 * @return the index of the new instance
+	 */
+	public int add() {
+		if (count == data.count()) {
+			data.grow(data.count() * 2);
+			full = true;
+		}
+		return count++;
+	}
+
+	/**
+	 * Starts rebuilding the instance list.
+	 */
+	public void begin() {
+		count = 0;
+	}
+
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @return the cursor used to write instances. Position it with
+	 *         {@link VertexCursor#seek(int)}.
+	 */
+	public VertexCursor cursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return the backing vertex data, with one entry per instance slot
+	 */
+	public VertexData<I> data() {
+		return data;
+	}
+
+	/**
+	 * Finishes rebuilding the instance list, marking the instances that differ
+	 * from the last frame as dirty.
+	 */
+	public void end() {
+		for (int s = 0; s < data.streams(); s++) {
+			final int stride = data.vertexSize(s);
+			final ByteBuffer backing = data.buffer(s).getBacking();
+			if (!full) {
+				data.markClean(s);
+				for (int i = 0; i < count; i++) {
+					if (i >= previousCount || !same(backing, i * stride, previous[s], stride))
+						data.buffer(s).markDirty(i * stride, (i + 1) * stride);
+				}
+			}
+			if (previous[s].length < count * stride)
+				previous[s] = new byte[data.count() * stride];
+			data.buffer(s).get(0, previous[s], 0, count * stride);
+		}
+		previousCount = count;
+	}
+
+	@Override
+	protected void gpuAllocInternal() {
+		data.gpuAlloc();
+		full = true;
+	}
+
+	@Override
+	protected void gpuFreeInternal() {
+		data.gpuFree();
+	}
+
+	@Override
+	protected void gpuUploadInternal() {
+		data.gpuUpload();
+		full = false;
+	}
+
+	@Override
+	public String toString() {
+		return "InstanceData[" + data.vertexClass.getSimpleName() + " x" + count + "]";
+	}
+}
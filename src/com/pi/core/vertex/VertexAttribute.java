@@ -0,0 +1,66 @@
+package com.pi.core.vertex;
+
+/**
+ * Reads and writes a single vertex attribute directly in the backing buffer of
+ * a {@link VertexData}, without going through vertex objects.
+ */
+public final class VertexAttribute {
+	private final VertexData<?> data;
+	private final VertexLayout layout;
+	private final int attr;
+
+	VertexAttribute(VertexData<?> data, VertexLayout layout, int attr) {
+		if (layout.attrMapping[attr] == null)
+			throw new IllegalArgumentException("No vertex attr is bound to layout " + attr);
+		this.data = data;
+		this.layout = layout;
+		this.attr = attr;
+	}
+
+	public int components() {
+		return layout.components(attr);
+	}
+
+	public float get(int vertex, int component) {
+		return layout.read(data.backing(attr), vertex, attr, component);
+	}
+
+	public int getInt(int vertex, int component) {
+		return layout.readInt(data.backing(attr), vertex, attr, component);
+	}
+
+	public void set(int vertex, float x, float y) {
+		set(vertex, 0, x);
+		set(vertex, 1, y);
+	}
+
+	public void set(int vertex, float x, float y, float z) {
+		set(vertex, 0, x);
+		set(vertex, 1, y);
+		set(vertex, 2, z);
+	}
+
+	public void set(int vertex, float x, float y, float z, float w) {
+		set(vertex, 0, x);
+		set(vertex, 1, y);
+		set(vertex, 2, z);
+		set(vertex, 3, w);
+	}
+
+	public void set(int vertex, int component, float v) {
+		layout.write(data.backing(attr), vertex, attr, component, v);
+		data.markDirty(layout.attrStream[attr]);
+	}
+
+	public void setInt(int vertex, int component, int v) {
+		layout.writeInt(data.backing(attr), vertex, attr, component, v);
+		data.markDirty(layout.attrStream[attr]);
+	}
+
+	/**
+	 * @return the stream the attribute is stored in
+	 */
+	public int stream() {
+		return layout.attrStream[attr];
+	}
+}
@@ -0,0 +1,132 @@
+package com.pi.core.vertex;
+
+/**
+ * A reusable view of one vertex at a time. Reads and writes go directly to the
+ * backing buffer, so walking a mesh with a cursor creates no objects.
+ * 
+ * <pre>
+ * VertexCursor c = data.cursor();
+ * while (c.next())
+ * 	c.set(0, x, y, z);
+ * </pre>
+ */
+public final class VertexCursor {
+	private final VertexData<?> data;
+	private final VertexLayout layout;
+	private int vertex;
+
+	VertexCursor(VertexData<?> data, VertexLayout layout) {
+		this.data = data;
+		this.layout = layout;
+		reset();
+	}
+
+	private int address(int attr, int component) {
+		return vertex * layout.streamSize[layout.attrStream[attr]] + layout.address(attr, component);
+	}
+
+	public int components(int attr) {
+		return layout.components(attr);
+	}
+
+	public float get(int attr, int component) {
+		return layout.read(data.backing(attr), vertex, attr, component);
+	}
+
+	/**
+	 * Reads an unnormalized unsigned byte attribute component.
+	 */
+	public int getByte(int attr, int component) {
+		if (layout.attrFormat[attr] != AttrFormat.NORMALIZED_UNSIGNED_BYTE)
+			throw new IllegalArgumentException("Attr " + attr + " isn't stored as bytes");
+		return data.backing(attr).get(address(attr, component)) & 0xFF;
+	}
+
+	/**
+	 * Reads an {@link AttrFormat#INTEGER} or
+	 * {@link AttrFormat#UNSIGNED_INTEGER} attribute component.
+	 */
+	public int getInt(int attr, int component) {
+		return layout.readInt(data.backing(attr), vertex, attr, component);
+	}
+
+	/**
+	 * @return the vertex the cursor is on, or -1 before the first
+	 *         {@link #next()}
+	 */
+	public int index() {
+		return vertex;
+	}
+
+	/**
+	 * Moves to the next vertex.
+	 * 
+	 * @return false if there are no more vertices
+	 */
+	public boolean next() {
+		if (vertex + 1 >= data.count())
+			return false;
+		vertex++;
+		return true;
+	}
+
+	/**
+	 * Moves before the first vertex.
+	 */
+	public VertexCursor reset() {
+		this.vertex = -1;
+		return this;
+	}
+
+	public VertexCursor seek(int i) {
+		if (i < 0 || i >= data.count())
+			throw new IndexOutOfBoundsException("Vertex " + i + " of " + data.count());
+		this.vertex = i;
+		return this;
+	}
+
+	public VertexCursor set(int attr, float x, float y) {
+		set(attr, 0, x);
+		return set(attr, 1, y);
+	}
+
+	public VertexCursor set(int attr, float x, float y, float z) {
+		set(attr, 0, x);
+		set(attr, 1, y);
+		return set(attr, 2, z);
+	}
+
+	public VertexCursor set(int attr, float x, float y, float z, float w) {
+		set(attr, 0, x);
+		set(attr, 1, y);
+		set(attr, 2, z);
+		return set(attr, 3, w);
+	}
+
+	public VertexCursor set(int attr, int component, float v) {
+		layout.write(data.backing(attr), vertex, attr, component, v);
+		data.markDirty(layout.attrStream[attr]);
+		return this;
+	}
+
+	/**
+	 * Writes an unnormalized unsigned byte attribute component.
+	 */
+	public VertexCursor setByte(int attr, int component, int v) {
+		if (layout.attrFormat[attr] != AttrFormat.NORMALIZED_UNSIGNED_BYTE)
+			throw new IllegalArgumentException("Attr " + attr + " isn't stored as bytes");
+		data.backing(attr).put(address(attr, component), (byte) v);
+		data.markDirty(layout.attrStream[attr]);
+		return this;
+	}
+
+	/**
+	 * Writes an {@link AttrFormat#INTEGER} or
+	 * {@link AttrFormat#UNSIGNED_INTEGER} attribute component.
+	 */
+	public VertexCursor setInt(int attr, int component, int v) {
+		layout.writeInt(data.backing(attr), vertex, attr, component, v);
+		data.markDirty(layout.attrStream[attr]);
+		return this;
+	}
+}
@@ -1,20 +1,26 @@
 package com.pi.core.vertex;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
 
 import com.pi.core.GLException;
 import com.pi.core.buffers.BufferType;
 import com.pi.core.buffers.GLGenericBuffer;
 import com.pi.core.misc.VertexArrayObject;
 import com.pi.core.util.GPUObject;
+import com.pi.core.util.MemoryBarriers;
 import com.pi.math.matrix.Matrix4;
 import com.pi.math.vector.ByteVector;
 import com.pi.math.vector.VectorBuff;
 import com.pi.math.volume.BoundingArea;
+import com.pi.util.ParallelRange;
 
 public class VertexData<E> extends GPUObject<VertexData<E>> implements Iterable<E> {
 	private E[] vertexDB;
@@ -22,78 +28,311 @@ public class VertexData<E> extends GPUObject<VertexData<E>> implements Iterable<
 	private int capacity;
 	private int count;
 	private final VertexLayout layout;
+	/**
+	 * The buffer of the first stream.
+	 */
 	public final GLGenericBuffer bufferObject;
+	private final GLGenericBuffer[] streams;
+	private final boolean[] streamDirty;
+	/**
+	 * Set once a write goes through the cursor or attribute API. Until then
+	 * writes made through {@link #bufferObject} or vertex objects can't be
+	 * seen, so every stream is uploaded in full.
+	 */
+	private boolean tracked;
 	private VertexArrayObject vao = new VertexArrayObject();
+	private FloatBuffer[] floatViews;
+	/**
+	 * When false there is no vertex object table, and the data is only
+	 * accessible through {@link #cursor()} and {@link #attribute(int)}.
+	 */
+	private final boolean vertexObjects;
+	/**
+	 * Per-instance attributes bound to this data's VAO with a divisor of one.
+	 */
+	private InstanceData<?> instances;
 
 	public VertexData(Class<E> vertexClass, GLGenericBuffer data) {
+		this(vertexClass, data, true);
+	}
+
+	public VertexData(Class<E> vertexClass, GLGenericBuffer data, boolean vertexObjects) {
 		this.vertexClass = vertexClass;
+		this.vertexObjects = vertexObjects;
 		this.layout = new VertexLayout(vertexClass);
+		if (this.layout.streamCount > 1)
+			throw new IllegalArgumentException(
+					vertexClass.getSimpleName() + " uses multiple streams and can't wrap a single buffer.");
 		this.count = data.size() / this.layout.structureSize;
 		this.capacity = count;
 		this.layout.validate();
 		this.bufferObject = data;
+		this.streams = new GLGenericBuffer[] { data };
+		this.streamDirty = new boolean[1];
 		init();
 	}
 
 	public VertexData(Class<E> vertexClass, int count) {
+		this(vertexClass, count, true);
+	}
+
+	public VertexData(Class<E> vertexClass, int count, boolean vertexObjects) {
 		this.vertexClass = vertexClass;
+		this.vertexObjects = vertexObjects;
 		this.layout = new VertexLayout(vertexClass);
 		this.count = count;
 		this.capacity = count;
 		this.layout.validate();
-		this.bufferObject = new GLGenericBuffer(this.count * this.layout.structureSize);
+		this.streams = new GLGenericBuffer[this.layout.streamCount];
+		for (int s = 0; s < streams.length; s++)
+			this.streams[s] = new GLGenericBuffer(this.count * this.layout.streamSize[s]);
+		this.bufferObject = streams[0];
+		this.streamDirty = new boolean[streams.length];
 		init();
 	}
 
 	public void activate() {
+		if (MemoryBarriers.pending()) {
+			for (GLGenericBuffer b : streams)
+				MemoryBarriers.require(b, BufferType.ARRAY.barrierBit());
+			if (instances != null)
+				for (int s = 0; s < instances.data().streams(); s++)
+					MemoryBarriers.require(instances.data().buffer(s), BufferType.ARRAY.barrierBit());
+		}
 		vao.bind();
 	}
 
+	/**
+	 * Creates an accessor that reads and writes the given attribute without
+	 * creating vertex objects.
+	 * 
+	 * @param layout
+	 *            the {@link AttrLayout#layout()} of the attribute
+	 * @return the accessor
+	 */
+	public VertexAttribute attribute(int layout) {
+		return new VertexAttribute(this, this.layout, layout);
+	}
+
+	/**
+	 * @return the backing of the stream holding the given attribute
+	 */
+	ByteBuffer backing(int attr) {
+		return streams[layout.attrStream[attr]].getBacking();
+	}
+
+	/**
+	 * @return the buffer of the given stream
+	 */
+	public GLGenericBuffer buffer(int stream) {
+		return streams[stream];
+	}
+
 	public int count() {
 		return count;
 	}
 
 	@SuppressWarnings("unchecked")
 	public void cpuAlloc() {
-		this.bufferObject.cpuAlloc();
-		this.vertexDB = (E[]) Array.newInstance(vertexClass, capacity);
-		populate(0, capacity);
+		this.floatViews = new FloatBuffer[streams.length];
+		for (int s = 0; s < streams.length; s++) {
+			this.streams[s].cpuAlloc();
+			this.floatViews[s] = this.streams[s].floatImageAt(0);
+		}
+		markDirty();
+		// Vertex objects are created on first access.
+		if (vertexObjects)
+			this.vertexDB = (E[]) Array.newInstance(vertexClass, capacity);
+	}
+
+	/**
+	 * Copies vertices from another vertex data of the same type. The source
+	 * may be this vertex data, and the ranges may overlap.
+	 * 
+	 * @param src
+	 *            the source vertex data
+	 * @param srcIndex
+	 *            the first source vertex
+	 * @param destIndex
+	 *            the first destination vertex
+	 * @param n
+	 *            the number of vertices
+	 */
+	public void copy(VertexData<E> src, int srcIndex, int destIndex, int n) {
+		if (src.layout.structureSize != layout.structureSize || src.streams.length != streams.length)
+			throw new IllegalArgumentException("Can't copy " + src.vertexClass.getSimpleName() + " into "
+					+ vertexClass.getSimpleName());
+		if (srcIndex < 0 || srcIndex + n > src.count || destIndex < 0 || destIndex + n > count)
+			throw new IndexOutOfBoundsException("Can't copy " + n + " vertices from " + srcIndex + " to " + destIndex);
+		for (int s = 0; s < streams.length; s++) {
+			final int stride = layout.streamSize[s];
+			byte[] tmp = new byte[n * stride];
+			src.streams[s].get(srcIndex * stride, tmp, 0, tmp.length);
+			streams[s].put(destIndex * stride, tmp, 0, tmp.length);
+		}
+		if (vertexDB != null)
+			Arrays.fill(vertexDB, destIndex, destIndex + n, null);
+		markDirty(destIndex, destIndex + n);
+	}
+
+	/**
+	 * Creates a cursor over this data. Cursors can be kept and reused.
+	 * 
+	 * @return the cursor, positioned before the first vertex
+	 */
+	public VertexCursor cursor() {
+		return new VertexCursor(this, layout);
 	}
 
 	public void cpuFree() {
-		this.bufferObject.cpuFree();
+		for (GLGenericBuffer b : streams)
+			b.cpuFree();
 		this.vertexDB = null;
+		this.floatViews = null;
+	}
+
+	/**
+	 * Fills every vertex using the given generator.
+	 * 
+	 * @see #fill(int, int, VertexGenerator)
+	 */
+	public VertexData<E> fill(VertexGenerator gen) {
+		return fill(0, count, gen);
+	}
+
+	/**
+	 * Fills the vertices [from, to) using the given generator. The range is
+	 * split into disjoint slices that are generated in parallel, each with its
+	 * own cursor, so the generator must only write the vertices of its slice.
+	 * 
+	 * @param from
+	 *            the first vertex
+	 * @param to
+	 *            one past the last vertex
+	 * @param gen
+	 *            the generator
+	 * @return this vertex data
+	 */
+	public VertexData<E> fill(int from, int to, final VertexGenerator gen) {
+		if (from < 0 || to > count)
+			throw new IndexOutOfBoundsException("Can't fill [" + from + ", " + to + ") of " + count + " vertices");
+		ParallelRange.forEach(from, to, new ParallelRange.RangeTask() {
+			@Override
+			public void run(int left, int right) {
+				gen.generate(cursor(), left, right);
+			}
+		});
+		return this;
 	}
 
 	@Override
 	protected void gpuAllocInternal() {
+		markDirty();
 		// Dump the buffer
 		vao.gpuAlloc();
 		vao.bind();
 
-		bufferObject.gpuAlloc();
+		for (GLGenericBuffer b : streams)
+			b.gpuAlloc();
 		setupVertexParams();
+		if (instances != null)
+			setupInstanceParams();
 		VertexArrayObject.unbind();
 	}
 
 	@Override
 	protected void gpuFreeInternal() {
 		vao.gpuFree();
-		bufferObject.gpuFree();
+		for (GLGenericBuffer b : streams)
+			b.gpuFree();
 	}
 
 	/**
 	 * If you changed the vertex data you need to resync the buffer. This does
-	 * that.
+	 * that. Every stream is uploaded, unless the data was only written through
+	 * cursors, attributes or {@link #copy(VertexData, int, int, int)} since the
+	 * last upload; then only streams marked dirty are uploaded, and streams
+	 * with only vertex ranges marked dirty upload just those ranges. Call
+	 * {@link #markDirty()} after writing {@link #bufferObject} or vertex
+	 * objects if the data is also written those ways.
 	 */
 	@Override
 	protected void gpuUploadInternal() {
-		bufferObject.gpuUpload();
+		for (int s = 0; s < streams.length; s++) {
+			if (streamDirty[s] || !tracked)
+				streams[s].gpuUpload();
+			else if (streams[s].isDirty())
+				streams[s].gpuUploadDirty();
+			streamDirty[s] = false;
+		}
+		tracked = false;
+	}
+
+	/**
+	 * Changes the vertex count, keeping the existing vertices. Unlike
+	 * {@link #resize(int, int)} the contents survive reallocation.
+	 * 
+	 * @param n
+	 *            the new vertex count, at least the current count
+	 * @return this vertex data
+	 * @throws IllegalArgumentException
+	 *             if n is less than the current count
+	 */
+	public VertexData<E> grow(int n) {
+		if (n < count)
+			throw new IllegalArgumentException("Can't grow " + count + " vertices to " + n + "; use resize to shrink.");
+		if (n > capacity) {
+			byte[][] keep = new byte[streams.length][];
+			for (int s = 0; s < streams.length; s++) {
+				keep[s] = new byte[count * layout.streamSize[s]];
+				streams[s].get(0, keep[s], 0, keep[s].length);
+			}
+			resize(n, 0);
+			for (int s = 0; s < streams.length; s++)
+				streams[s].put(0, keep[s], 0, keep[s].length);
+		}
+		this.count = n;
+		return this;
 	}
 
 	public void include(BoundingArea area, PositionVertex<? super E> cpy) {
-		for (int i = 0; i < vertexDB.length; i++)
-			area.include(cpy.position(vertexDB[i]));
+		for (int i = 0; i < count; i++)
+			area.include(cpy.position(v(i)));
+	}
+
+	/**
+	 * Binds per-instance attributes to this vertex data's VAO. Their
+	 * locations must not overlap this data's locations. The instance data is
+	 * allocated with this data if needed, but is uploaded separately.
+	 * 
+	 * @param instances
+	 *            the instance data, or null to detach
+	 * @return this vertex data
+	 */
+	public VertexData<E> instances(InstanceData<?> instances) {
+		if (instances != null) {
+			// Matrix attributes use a location per column, so compare ranges.
+			VertexLayout other = instances.data().layout;
+			for (int i = 0; i < other.attrMapping.length; i++) {
+				for (int j = 0; j < layout.attrMapping.length; j++) {
+					if (other.locations(i) > 0 && layout.locations(j) > 0 && i < j + layout.locations(j)
+							&& j < i + other.locations(i))
+						throw new IllegalArgumentException("Instance attribute " + other.attrMapping[i].getName()
+								+ " overlaps the locations of " + layout.attrMapping[j].getName());
+				}
+			}
+		}
+		this.instances = instances;
+		if (allocated() && instances != null) {
+			vao.bind();
+			setupInstanceParams();
+			VertexArrayObject.unbind();
+		}
+		return this;
+	}
+
+	public InstanceData<?> instances() {
+		return instances;
 	}
 
 	private void init() {
@@ -112,98 +351,156 @@ public class VertexData<E> extends GPUObject<VertexData<E>> implements Iterable<
 
 			@Override
 			public E next() {
-				return vertexDB[head++];
+				return v(head++);
 			}
 		};
 	}
 
-	private void populate(int left, int right) {
-		for (int i = left; i < right; i++) {
-			try {
-				E itm = vertexClass.newInstance();
-				int head = i * layout.structureSize;
-				for (int j = 0; j < layout.attrMapping.length; j++) {
-					Field attr = layout.attrMapping[j];
-					if (attr != null) {
-						attr.setAccessible(true);
-						if (attr.getType().isArray()) {
-							Class<?> type = attr.getType().getComponentType();
-							Object array = attr.get(itm);
-							if (array == null) {
-								array = Array.newInstance(type, attr.getAnnotation(AttrLayout.class).arraySize());
-								attr.set(itm, array);
-							}
-
-							if (VectorBuff.class.isAssignableFrom(type)) {
-								Array.set(array, layout.attrIndex[j],
-										VectorBuff.make(this.bufferObject.floatImageAt(head + layout.attrOffset[j]), 0,
-												layout.attrSize[j]));
-							} else if (type.isAssignableFrom(Matrix4.class)) {
-								Array.set(array, layout.attrIndex[j],
-										new Matrix4(this.bufferObject.floatImageAt(head + layout.attrOffset[j]), 0));
-							} else if (ByteVector.class.isAssignableFrom(type)) {
-								Array.set(array, layout.attrIndex[j], ByteVector.make(this.bufferObject.getBacking(),
-										head + layout.attrOffset[j], layout.attrSize[j]));
-							}
-						} else {
-							if (VectorBuff.class.isAssignableFrom(attr.getType())) {
-								attr.set(itm,
-										VectorBuff.make(this.bufferObject.floatImageAt(head + layout.attrOffset[j]), 0,
-												layout.attrSize[j]));
-							} else if (attr.getType().isAssignableFrom(Matrix4.class)) {
-								attr.set(itm,
-										new Matrix4(this.bufferObject.floatImageAt(head + layout.attrOffset[j]), 0));
-							} else if (ByteVector.class.isAssignableFrom(attr.getType())) {
-								attr.set(itm, ByteVector.make(this.bufferObject.getBacking(),
-										head + layout.attrOffset[j], layout.attrSize[j]));
-							}
-						}
+	/**
+	 * Clears the whole-stream dirty flag, leaving any dirty ranges.
+	 */
+	void markClean(int stream) {
+		streamDirty[stream] = false;
+		tracked = true;
+	}
+
+	/**
+	 * Marks every stream as changed.
+	 */
+	public void markDirty() {
+		for (int s = 0; s < streamDirty.length; s++)
+			streamDirty[s] = true;
+	}
+
+	/**
+	 * Marks a stream as changed, so it is sent on the next upload.
+	 * 
+	 * @param stream
+	 *            the stream
+	 */
+	public void markDirty(int stream) {
+		streamDirty[stream] = true;
+		tracked = true;
+	}
+
+	/**
+	 * Marks the vertices [from, to) as changed in every stream. Unlike
+	 * {@link #markDirty()} only those ranges are uploaded.
+	 */
+	public void markDirty(int from, int to) {
+		tracked = true;
+		for (int s = 0; s < streams.length; s++)
+			streams[s].markDirty(from * layout.streamSize[s], to * layout.streamSize[s]);
+	}
+
+	private E materialize(int i) {
+		if (layout.constructor == null)
+			throw new GLException("Unable to create VertexData",
+					new NoSuchMethodException(vertexClass.getName() + " has no no-arg constructor"));
+		try {
+			Object itm = layout.constructor.invokeExact();
+			for (int j = 0; j < layout.attrMapping.length; j++) {
+				// Packed attrs are only reachable through cursors.
+				if (layout.attrMapping[j] == null || !layout.hasView(j))
+					continue;
+				Object view = view(j, i * layout.streamSize[layout.attrStream[j]] + layout.attrOffset[j]);
+				if (layout.attrArraySetter[j] != null) {
+					Object array = layout.attrGetter[j].invokeExact(itm);
+					if (array == null) {
+						array = Array.newInstance(layout.attrMapping[j].getType().getComponentType(),
+								layout.attrArraySize[j]);
+						layout.attrSetter[j].invokeExact(itm, array);
 					}
+					layout.attrArraySetter[j].invokeExact(array, layout.attrIndex[j], view);
+				} else {
+					layout.attrSetter[j].invokeExact(itm, view);
 				}
-				vertexDB[i] = itm;
-			} catch (Exception e) {
-				throw new GLException("Unable to create VertexData", e);
 			}
+			return vertexClass.cast(itm);
+		} catch (Throwable e) {
+			throw new GLException("Unable to create VertexData", e);
+		}
+	}
+
+	/**
+	 * Permutes the vertices; vertex <em>i</em> moves to slot
+	 * <em>remap[i]</em>. Existing vertex objects are invalidated.
+	 * 
+	 * @param remap
+	 *            the permutation
+	 */
+	public void remap(int[] remap) {
+		if (remap.length != count)
+			throw new IllegalArgumentException("Remap table has " + remap.length + " entries for " + count
+					+ " vertices.");
+		for (int s = 0; s < streams.length; s++) {
+			final int stride = layout.streamSize[s];
+			byte[] copy = new byte[count * stride];
+			streams[s].get(0, copy, 0, copy.length);
+			for (int i = 0; i < count; i++)
+				streams[s].put(remap[i] * stride, copy, i * stride, stride);
 		}
+		if (vertexDB != null)
+			Arrays.fill(vertexDB, null);
+		markDirty();
 	}
 
 	public VertexData<E> resize(int n, int pad) {
-		int oc = vertexDB.length;
 		this.count = n;
-		if (oc < n || oc > n + pad) {
+		if (capacity < n || capacity > n + pad) {
 			this.capacity = n + pad;
-			this.bufferObject.resize(capacity * this.layout.structureSize, 0);
+			for (int s = 0; s < streams.length; s++)
+				this.streams[s].resize(capacity * this.layout.streamSize[s], 0);
 			cpuAlloc();
 		}
 		return this;
 	}
 
+	private void setupInstanceParams() {
+		if (!instances.allocated())
+			instances.gpuAlloc();
+		instances.data().setupVertexParams(1);
+	}
+
 	public void setupVertexParams() {
-		bufferObject.bind(BufferType.ARRAY);
+		setupVertexParams(0);
+	}
+
+	/**
+	 * Points the attributes of the bound VAO at this data's streams.
+	 * 
+	 * @param divisor
+	 *            the attribute divisor; 0 for per-vertex data, 1 for
+	 *            per-instance data
+	 */
+	public void setupVertexParams(int divisor) {
 		for (int j = 0; j < layout.attrMapping.length; j++) {
 			if (layout.attrMapping[j] != null) {
-				if (layout.attrMapping[j].getType().isAssignableFrom(Matrix4.class)) {
+				final int stream = layout.attrStream[j];
+				final int stride = layout.streamSize[stream];
+				streams[stream].bind(BufferType.ARRAY);
+				if (layout.attrKind[j] == VertexLayout.KIND_MATRIX) {
 					for (int r = 0; r < layout.attrSize[j]; r++)
 						GL20.glVertexAttribPointer(j + r, layout.attrSize[j], layout.attrType[j],
-								layout.attrNormalize[j], layout.structureSize,
-								layout.attrOffset[j] + r * layout.attrSize[j] * 4);
+								layout.attrNormalize[j], stride, layout.attrOffset[j] + r * layout.attrSize[j] * 4);
+				} else if (layout.attrFormat[j].integer) {
+					GL30.glVertexAttribIPointer(j, layout.attrSize[j], layout.attrType[j], stride,
+							layout.attrOffset[j]);
 				} else {
-					GL20.glVertexAttribPointer(j, layout.attrSize[j], layout.attrType[j], layout.attrNormalize[j],
-							layout.structureSize, layout.attrOffset[j]);
+					// Packed 2_10_10_10 attrs always have a GL size of 4.
+					int size = layout.attrFormat[j] == AttrFormat.NORMALIZED_INT_2_10_10_10_REV ? 4
+							: layout.attrSize[j];
+					GL20.glVertexAttribPointer(j, size, layout.attrType[j], layout.attrNormalize[j], stride,
+							layout.attrOffset[j]);
 				}
 			}
 		}
 
 		for (int j = 0; j < layout.attrMapping.length; j++) {
-			if (layout.attrMapping[j] != null) {
-				int span = 1;
-				Class<?> type = layout.attrMapping[j].getType();
-				if (type.isArray())
-					type = type.getComponentType();
-				if (type.isAssignableFrom(Matrix4.class))
-					span = 4;
-				for (int r = 0; r < span; r++)
-					GL20.glEnableVertexAttribArray(j + r);
+			for (int r = 0; r < layout.locations(j); r++) {
+				GL20.glEnableVertexAttribArray(j + r);
+				if (divisor != 0)
+					GL33.glVertexAttribDivisor(j + r, divisor);
 			}
 		}
 	}
@@ -214,14 +511,52 @@ public class VertexData<E> extends GPUObject<VertexData<E>> implements Iterable<
 	}
 
 	public E v(int i) {
-		return vertexDB[i];
+		if (!vertexObjects)
+			throw new IllegalStateException("This vertex data has no vertex objects; use cursor() instead.");
+		E itm = vertexDB[i];
+		if (itm == null)
+			vertexDB[i] = itm = materialize(i);
+		return itm;
+	}
+
+	private Object view(int attr, int offset) {
+		final int stream = layout.attrStream[attr];
+		switch (layout.attrKind[attr]) {
+		case VertexLayout.KIND_VECTOR:
+			return VectorBuff.make(floatViews[stream], offset >> 2, layout.attrSize[attr]);
+		case VertexLayout.KIND_MATRIX:
+			return new Matrix4(floatViews[stream], offset >> 2);
+		case VertexLayout.KIND_BYTE:
+			return ByteVector.make(streams[stream].getBacking(), offset, layout.attrSize[attr]);
+		default:
+			throw new IllegalStateException("Unknown attr kind " + layout.attrKind[attr]);
+		}
+	}
+
+	public int streams() {
+		return streams.length;
 	}
 
+	/**
+	 * @return the size of a vertex across all streams
+	 */
 	public int vertexSize() {
 		return layout.structureSize;
 	}
 
+	public int vertexSize(int stream) {
+		return layout.streamSize[stream];
+	}
+
 	public static interface PositionVertex<E> {
 		public VectorBuff position(E vtx);
 	}
+
+	public static interface VertexGenerator {
+		/**
+		 * Writes the vertices [from, to). The cursor belongs to this call
+		 * only; position it with {@link VertexCursor#seek(int)}.
+		 */
+		public void generate(VertexCursor cursor, int from, int to);
+	}
 }
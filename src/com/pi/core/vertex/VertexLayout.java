@@ -1,6 +1,11 @@
 package com.pi.core.vertex;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -9,6 +14,7 @@ import org.lwjgl.glfw.GLFW;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
 
+import com.pi.core.GLException;
 import com.pi.math.matrix.Matrix4;
 import com.pi.math.vector.ByteVector;
 import com.pi.math.vector.ByteVector4;
@@ -20,11 +26,40 @@ import com.pi.math.vector.VectorBuff4;
 class VertexLayout {
 	private static final int MAX_ATTR_COUNT = 64; // Realistically 16 on most
 													// GPUs
+	private static final int MAX_STREAM_COUNT = 16;
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final MethodType ARRAY_SETTER_TYPE = MethodType.methodType(void.class, Object.class, int.class,
+			Object.class);
 
+	static final int KIND_VECTOR = 0;
+	static final int KIND_MATRIX = 1;
+	static final int KIND_BYTE = 2;
+
+	/**
+	 * The size of a vertex across all streams.
+	 */
 	public final int structureSize;
+	public final int streamCount;
+	public final int[] streamSize;
 	public final Field[] attrMapping;
-	public final int[] attrOffset, attrSize, attrType, attrIndex;
+	/**
+	 * Attribute offsets are relative to the start of the vertex in its stream.
+	 */
+	public final int[] attrOffset, attrSize, attrType, attrIndex, attrKind, attrArraySize, attrStream;
 	public final boolean[] attrNormalize;
+	public final AttrFormat[] attrFormat;
+
+	/**
+	 * Resolved once here so that creating vertex objects doesn't need
+	 * reflection. {@link #constructor} is <code>()Object</code>, the getters
+	 * are <code>(Object)Object</code>, the setters
+	 * <code>(Object,Object)void</code> and the array setters
+	 * <code>(Object,int,Object)void</code>.
+	 */
+	public final MethodHandle constructor;
+	public final MethodHandle[] attrGetter, attrSetter, attrArraySetter;
 
 	private static void getFields(List<Field> fields, Class<?> clazz) {
 		for (Field f : clazz.getDeclaredFields())
@@ -34,13 +69,21 @@ class VertexLayout {
 	}
 
 	public VertexLayout(Class<?> clazz) {
-		int structSize = 0;
+		int[] streamBytes = new int[MAX_STREAM_COUNT];
+		int maxStream = 0;
 		attrMapping = new Field[MAX_ATTR_COUNT];
 		attrOffset = new int[MAX_ATTR_COUNT];
 		attrSize = new int[MAX_ATTR_COUNT];
 		attrType = new int[MAX_ATTR_COUNT];
 		attrNormalize = new boolean[MAX_ATTR_COUNT];
 		attrIndex = new int[MAX_ATTR_COUNT];
+		attrKind = new int[MAX_ATTR_COUNT];
+		attrArraySize = new int[MAX_ATTR_COUNT];
+		attrStream = new int[MAX_ATTR_COUNT];
+		attrFormat = new AttrFormat[MAX_ATTR_COUNT];
+		attrGetter = new MethodHandle[MAX_ATTR_COUNT];
+		attrSetter = new MethodHandle[MAX_ATTR_COUNT];
+		attrArraySetter = new MethodHandle[MAX_ATTR_COUNT];
 
 		List<Field> fields = new ArrayList<>();
 		getFields(fields, clazz);
@@ -71,14 +114,31 @@ class VertexLayout {
 				if (layout.arraySize() != 1 && !type.isArray())
 					throw new IllegalArgumentException(
 							"Array size of non-array type " + f.getName() + " not one.  This will never work");
+				final int stream = layout.stream();
+				if (stream < 0 || stream >= MAX_STREAM_COUNT)
+					throw new IllegalArgumentException("Stream of " + f.getName() + " must be between 0 and "
+							+ (MAX_STREAM_COUNT - 1) + ", was " + stream);
+
+				MethodHandle getter, setter, arraySetter = null;
+				try {
+					f.setAccessible(true);
+					getter = LOOKUP.unreflectGetter(f).asType(GETTER_TYPE);
+					setter = LOOKUP.unreflectSetter(f).asType(SETTER_TYPE);
+					if (type.isArray())
+						arraySetter = MethodHandles.arrayElementSetter(type).asType(ARRAY_SETTER_TYPE);
+				} catch (IllegalAccessException e) {
+					throw new GLException("Unable to access vertex attr " + f.getName(), e);
+				}
 
 				if (type.isArray())
 					type = type.getComponentType();
 
 				for (int k = 0; k < layout.arraySize(); k++) {
 					int attrID = layout.layout() + k * (type.isAssignableFrom(Matrix4.class) ? 4 : 1);
-					attrOffset[attrID] = structSize;
+					attrOffset[attrID] = streamBytes[stream];
+					attrStream[attrID] = stream;
 					attrIndex[attrID] = k;
+					AttrFormat format = layout.format();
 					if (VectorBuff.class.isAssignableFrom(type)) {
 						int dimension = -1;
 						if (VectorBuff2.class.isAssignableFrom(type))
@@ -89,21 +149,33 @@ class VertexLayout {
 							dimension = 4;
 						if (layout.dimension() >= 0)
 							dimension = layout.dimension();
-						if (dimension < 2 || dimension > 4)
+						if (format == AttrFormat.DEFAULT)
+							format = AttrFormat.FLOAT;
+						// Packed formats have no vector view, so single components are fine.
+						int minDimension = format == AttrFormat.FLOAT ? 2 : 1;
+						if (dimension < minDimension || dimension > 4)
+							throw new IllegalArgumentException("A vector style vertex attr may only have "
+									+ minDimension + "-4 components.  (" + f.getName()
+									+ ")  You likely have to define the AttrLayout#dimension() parameter.");
+						if (format == AttrFormat.NORMALIZED_INT_2_10_10_10_REV && dimension < 3)
 							throw new IllegalArgumentException(
-									"A vector style vertex attr may only have 2-4 components.  (" + f.getName()
-											+ ")  You likely have to define the AttrLayout#dimension() parameter.");
-						structSize += 4 * dimension;
-						attrType[attrID] = GL11.GL_FLOAT;
+									"A 2_10_10_10 vertex attr must have 3 or 4 components.  (" + f.getName() + ")");
+						streamBytes[stream] += format.bytes(dimension);
+						attrType[attrID] = format.glType;
 						attrSize[attrID] = dimension;
-						attrNormalize[attrID] = false;
+						attrNormalize[attrID] = format.normalized;
+						attrKind[attrID] = KIND_VECTOR;
 					} else if (type.isAssignableFrom(Matrix4.class)) {
 						if (layout.dimension() >= 0 && layout.dimension() != 4)
 							throw new UnsupportedOperationException("Non 4-D matricies aren't supported.");
-						structSize += 16 * 4;
+						if (format != AttrFormat.DEFAULT && format != AttrFormat.FLOAT)
+							throw new UnsupportedOperationException("Matrix attrs must be stored as floats.");
+						format = AttrFormat.FLOAT;
+						streamBytes[stream] += 16 * 4;
 						attrSize[attrID] = 4;
 						attrType[attrID] = GL11.GL_FLOAT;
 						attrNormalize[attrID] = false;
+						attrKind[attrID] = KIND_MATRIX;
 					} else if (ByteVector.class.isAssignableFrom(type)) {
 						int dimension = -1;
 						if (ByteVector4.class.isAssignableFrom(type))
@@ -112,10 +184,14 @@ class VertexLayout {
 							dimension = layout.dimension();
 						if (dimension != 4 && dimension != 3)
 							throw new UnsupportedOperationException("Non 3/4-D colors aren't supported.");
-						structSize += 4;
+						if (format != AttrFormat.DEFAULT && format != AttrFormat.NORMALIZED_UNSIGNED_BYTE)
+							throw new UnsupportedOperationException("Byte vector attrs must be stored as bytes.");
+						format = AttrFormat.NORMALIZED_UNSIGNED_BYTE;
+						streamBytes[stream] += 4;
 						attrSize[attrID] = dimension;
 						attrType[attrID] = GL11.GL_UNSIGNED_BYTE;
 						attrNormalize[attrID] = true;
+						attrKind[attrID] = KIND_BYTE;
 					} else {
 						System.err.println("Warning: You tried to mark " + f.getName() + " of type "
 								+ type.getSimpleName() + " as a vertex attr.  It wasn't recognized.");
@@ -125,10 +201,111 @@ class VertexLayout {
 						throw new IllegalStateException(
 								"Attribute " + f.getName() + " collides with " + attrMapping[attrID].getName());
 					attrMapping[attrID] = f;
+					attrFormat[attrID] = format;
+					attrArraySize[attrID] = layout.arraySize();
+					attrGetter[attrID] = getter;
+					attrSetter[attrID] = setter;
+					attrArraySetter[attrID] = arraySetter;
+					maxStream = Math.max(maxStream, stream);
 				}
 			}
 		}
+		int structSize = 0;
+		this.streamCount = maxStream + 1;
+		this.streamSize = new int[streamCount];
+		for (int i = 0; i < streamCount; i++) {
+			if (streamBytes[i] == 0 && streamCount > 1)
+				throw new IllegalArgumentException("Vertex stream " + i + " of " + clazz.getSimpleName()
+						+ " has no attributes.  Streams must be numbered without gaps.");
+			streamSize[i] = streamBytes[i];
+			structSize += streamBytes[i];
+		}
 		this.structureSize = structSize;
+
+		MethodHandle ctor = null;
+		try {
+			Constructor<?> c = clazz.getDeclaredConstructor();
+			c.setAccessible(true);
+			ctor = LOOKUP.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			// Only an error if vertex objects are requested.
+		}
+		this.constructor = ctor;
+	}
+
+	/**
+	 * @return the byte offset of an attribute component within a vertex in its
+	 *         stream
+	 */
+	int address(int attr, int component) {
+		if (attrMapping[attr] == null)
+			throw new IllegalArgumentException("No vertex attr is bound to layout " + attr);
+		if (component < 0 || component >= components(attr))
+			throw new IndexOutOfBoundsException(
+					"Component " + component + " of a " + components(attr) + " component attr");
+		return attrOffset[attr] + attrFormat[attr].componentOffset(component);
+	}
+
+	/**
+	 * @return the number of components an attribute holds
+	 */
+	public int components(int attr) {
+		return attrKind[attr] == KIND_MATRIX ? 16 : attrSize[attr];
+	}
+
+	/**
+	 * @return true if the attribute is stored in the format of its field, and
+	 *         so can be exposed on vertex objects
+	 */
+	boolean hasView(int attr) {
+		if (attrKind[attr] == KIND_BYTE)
+			return attrFormat[attr] == AttrFormat.NORMALIZED_UNSIGNED_BYTE;
+		return attrFormat[attr] == AttrFormat.FLOAT;
+	}
+
+	/**
+	 * @return the number of consecutive attribute locations an attribute
+	 *         uses, or 0 if none is bound to the given layout
+	 */
+	int locations(int attr) {
+		if (attrMapping[attr] == null)
+			return 0;
+		return attrKind[attr] == KIND_MATRIX ? attrSize[attr] : 1;
+	}
+
+	/**
+	 * Reads an attribute component of a vertex from the backing of the
+	 * attribute's stream. Normalized attributes are returned in the [0, 1]
+	 * range.
+	 */
+	float read(ByteBuffer data, int vertex, int attr, int component) {
+		int addr = vertex * streamSize[attrStream[attr]] + address(attr, component);
+		switch (attrFormat[attr]) {
+		case HALF_FLOAT:
+			return AttrFormat.halfToFloat(data.getShort(addr));
+		case NORMALIZED_SHORT:
+			return Math.max(data.getShort(addr) / 32767f, -1);
+		case NORMALIZED_UNSIGNED_SHORT:
+			return (data.getShort(addr) & 0xFFFF) / 65535f;
+		case NORMALIZED_UNSIGNED_BYTE:
+			return (data.get(addr) & 0xFF) / 255f;
+		case NORMALIZED_INT_2_10_10_10_REV:
+			if (component == 3)
+				return Math.max(data.getInt(addr) >> 30, -1);
+			return Math.max(((data.getInt(addr) << (22 - 10 * component)) >> 22) / 511f, -1);
+		case INTEGER:
+			return data.getInt(addr);
+		case UNSIGNED_INTEGER:
+			return data.getInt(addr) & 0xFFFFFFFFL;
+		default:
+			return data.getFloat(addr);
+		}
+	}
+
+	int readInt(ByteBuffer data, int vertex, int attr, int component) {
+		if (!attrFormat[attr].integer)
+			throw new IllegalArgumentException("Attr " + attr + " isn't an integer attr");
+		return data.getInt(vertex * streamSize[attrStream[attr]] + address(attr, component));
 	}
 
 	public void validate() {
@@ -162,4 +339,44 @@ class VertexLayout {
 			}
 		}
 	}
+
+	void write(ByteBuffer data, int vertex, int attr, int component, float v) {
+		int addr = vertex * streamSize[attrStream[attr]] + address(attr, component);
+		switch (attrFormat[attr]) {
+		case HALF_FLOAT:
+			data.putShort(addr, AttrFormat.floatToHalf(v));
+			break;
+		case NORMALIZED_SHORT:
+			data.putShort(addr, (short) Math.round(Math.max(-1, Math.min(1, v)) * 32767));
+			break;
+		case NORMALIZED_UNSIGNED_SHORT:
+			data.putShort(addr, (short) Math.round(Math.max(0, Math.min(1, v)) * 65535));
+			break;
+		case NORMALIZED_UNSIGNED_BYTE:
+			data.put(addr, (byte) Math.round(Math.max(0, Math.min(1, v)) * 255));
+			break;
+		case NORMALIZED_INT_2_10_10_10_REV: {
+			final int shift = 10 * component;
+			final int bits = component == 3 ? 2 : 10;
+			final int max = (1 << (bits - 1)) - 1;
+			final int mask = ((1 << bits) - 1) << shift;
+			int packed = Math.round(Math.max(-1, Math.min(1, v)) * max);
+			data.putInt(addr, (data.getInt(addr) & ~mask) | ((packed << shift) & mask));
+			break;
+		}
+		case INTEGER:
+		case UNSIGNED_INTEGER:
+			data.putInt(addr, (int) (long) v);
+			break;
+		default:
+			data.putFloat(addr, v);
+			break;
+		}
+	}
+
+	void writeInt(ByteBuffer data, int vertex, int attr, int component, int v) {
+		if (!attrFormat[attr].integer)
+			throw new IllegalArgumentException("Attr " + attr + " isn't an integer attr");
+		data.putInt(vertex * streamSize[attrStream[attr]] + address(attr, component), v);
+	}
 }
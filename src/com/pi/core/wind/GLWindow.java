@@ -15,8 +15,12 @@ import org.lwjgl.system.MemoryUtil;
 
 import com.pi.core.debug.FrameCounter;
 import com.pi.core.debug.WarningManager;
+import com.pi.core.glsl.UniformBindings;
 import com.pi.core.model.BasicShapes;
 import com.pi.core.texture.ColorTextures;
+import com.pi.core.texture.Sampler;
+import com.pi.core.texture.TextureUnits;
+import com.pi.core.util.GLFeature;
 import com.pi.math.BufferProvider;
 
 public abstract class GLWindow {
@@ -145,6 +149,7 @@ public abstract class GLWindow {
 		windowEvents.bind();
 
 		GL.createCapabilities();
+		GLFeature.detect();
 		init();
 
 		while (valid()) {
@@ -185,6 +190,10 @@ public abstract class GLWindow {
 		// Kill BasicShapes
 		BasicShapes.removeShapes();
 		ColorTextures.removeTextures();
+		// Shared GL objects and binding caches belong to this context.
+		Sampler.freeAll();
+		UniformBindings.reset();
+		TextureUnits.reset();
 
 		GLFW.glfwDestroyWindow(windowID);
 		GLFW.glfwTerminate();
@@ -0,0 +1,59 @@
+package com.pi.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits an index range into disjoint slices and runs them on the common
+ * {@link ForkJoinPool}. Slices never overlap, so tasks that only write their
+ * own slice produce the same output as a sequential loop.
+ */
+public class ParallelRange {
+	/**
+	 * Ranges smaller than this are never split.
+	 */
+	public static final int DEFAULT_GRAIN = 4096;
+
+	public static void forEach(int from, int to, int grain, RangeTask task) {
+		if (to <= from)
+			return;
+		if (to - from <= grain || ForkJoinPool.getCommonPoolParallelism() <= 1)
+			task.run(from, to);
+		else
+			ForkJoinPool.commonPool().invoke(new Slice(from, to, Math.max(grain, 1), task));
+	}
+
+	public static void forEach(int from, int to, RangeTask task) {
+		forEach(from, to, DEFAULT_GRAIN, task);
+	}
+
+	public static interface RangeTask {
+		/**
+		 * Processes the range [from, to).
+		 */
+		public void run(int from, int to);
+	}
+
+	private static class Slice extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to, grain;
+		private final RangeTask task;
+
+		private Slice(int from, int to, int grain, RangeTask task) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.task = task;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				task.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Slice(from, mid, grain, task), new Slice(mid, to, grain, task));
+			}
+		}
+	}
+}